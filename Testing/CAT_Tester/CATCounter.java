@@ -1,8 +1,11 @@
-
 import org.cliffc.high_scale_lib.*;
 public final class CATCounter extends Counter {
-  public String name() { return "CAT"; }
-  private final ConcurrentAutoTable _tab = new ConcurrentAutoTable();
+  private final ConcurrentAutoTable _tab;
+  private final String _name;
+  CATCounter() { _tab = new ConcurrentAutoTable(); _name = "CAT"; }
+  // Stripes padded to the given cache-line size
+  CATCounter( int line_bytes ) { _tab = new ConcurrentAutoTable(line_bytes); _name = "CAT-"+line_bytes; }
+  public String name() { return _name; }
   public long get(){ return _tab.get(); }
   public void add( long x ) {  _tab.add(x); }
   public void print() { _tab.print(); }
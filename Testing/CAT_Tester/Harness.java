@@ -21,6 +21,9 @@ public class Harness extends Thread {
     case 10: return new   StripeLockCounter(256);
     case 11: return new StripeUnsafeCounter(256);
     case 12: return new CATCounter();
+    case 13: return new CATCounter( 32); // The old dense layout, 4 longs apart
+    case 14: return new CATCounter( 64);
+    case 15: return new CATCounter(128);
     default:
       throw new Error("Bad imple");
     }
@@ -45,16 +48,16 @@ public class Harness extends Thread {
       _thread_min   = check( args[0], "thread_min", 1, 100000 );
       _thread_max   = check( args[1], "thread_max", 1, 100000 );
       _thread_incr  = check( args[2], "thread_incr", 1, 100000 );
-      _ctr_impl     = check( args[3], "implementation", -1, 13 );
+      _ctr_impl     = check( args[3], "implementation", -2, 15 );
 
       int trips = (_thread_max - _thread_min)/_thread_incr;
       _thread_max = trips*_thread_incr + _thread_min;
 
     } catch( Error e ) {
-      System.out.println("Usage: harness thread-min thread-max thread-incr impl[All=0]");
+      System.out.println("Usage: harness thread-min thread-max thread-incr impl[All=0,Best=-1,CAT layouts=-2]");
       throw e;
     }
-    String name = _ctr_impl == 0 ? "ALL" : (_ctr_impl==-1 ? "Best" : make_ctr(_ctr_impl).name());
+    String name = _ctr_impl == 0 ? "ALL" : (_ctr_impl==-1 ? "Best" : (_ctr_impl==-2 ? "CAT layouts" : make_ctr(_ctr_impl).name()));
     System.out.println("=====  "+name+"   =====");
     System.out.println("Threads from "+_thread_min+" to "+_thread_max+" by "+_thread_incr);
 
@@ -79,6 +82,11 @@ public class Harness extends Thread {
       for( int impl=1;impl<13; impl++ )
         run_till_stable(num_threads,num_trials,impl);
       System.out.println();
+    } else if( _ctr_impl == -2 ) {
+      // Cache-line padding of the CAT stripes: 32 bytes (old), 64, 128
+      for( int impl=13;impl<=15; impl++ )
+        run_till_stable(num_threads,num_trials,impl);
+      System.out.println();
     } else {
       run_till_stable(num_threads,num_trials,11); // big stripage Unsafe
       run_till_stable(num_threads,num_trials,12); // CAT
@@ -17,6 +17,11 @@ public class perf_hash_test extends Thread {
   static int _thread_min, _thread_max, _thread_incr;
   static int _table_size;
   static int _map_impl;
+  static int _put_mode;         // 0=putIfAbsent, 1=computeIfAbsent, 2=get-then-putIfAbsent
+  static int _latency_rate = -1;// -1=off, 0=closed loop, N=fixed N ops/sec/thread
+  // Per-op latencies in nanos, summed over the trials of one impl & thread count
+  static ConcurrentHistogram _latency[];
+  static final String op_names[] = { "get", "put", "remove" };
 
   static ConcurrentMap<String,String> make_map( int impl ) {
     switch( impl ) {
@@ -38,6 +43,11 @@ public class perf_hash_test extends Thread {
     "CHM_4096",
     "NBHashMap",
   };
+  static String put_names[] = {
+    "putIfAbsent",
+    "computeIfAbsent",
+    "get+putIfAbsent",
+  };
 
 
   static String KEYS[];
@@ -63,6 +73,8 @@ public class perf_hash_test extends Thread {
       _thread_incr  = check( args[3], "thread_incr", 1, 100000 );
       _table_size   = check( args[4], "table_size", 1, 100000000 );
       _map_impl     = check( args[5], "implementation", -1, names.length );
+      _put_mode     = args.length > 6 ? check( args[6], "put_mode", 0, put_names.length-1 ) : 0;
+      _latency_rate = args.length > 7 ? check( args[7], "latency", -1, 100000000 ) : -1;
 
       _gr = (_read_ratio<<20)/100;
       _pr = (((1<<20) - _gr)>>1) + _gr;
@@ -71,7 +83,7 @@ public class perf_hash_test extends Thread {
       _thread_max = trips*_thread_incr + _thread_min;
 
     } catch( Exception e ) {
-      System.out.println("Usage: perf_hash_test read%[0=churn test] thread-min thread-max thread-increment hash_table_size impl[All=0,Hashtable=1,HerlihyHashSet=2,CHM_16=3,CHM_256=4,CHM_4096=5,NonBlockingHashMap=6]");
+      System.out.println("Usage: perf_hash_test read%[0=churn test] thread-min thread-max thread-increment hash_table_size impl[All=0,Hashtable=1,HerlihyHashSet=2,CHM_16=3,CHM_256=4,CHM_4096=5,NonBlockingHashMap=6] [put_mode[putIfAbsent=0,computeIfAbsent=1,get+putIfAbsent=2] [latency[off=-1,closed-loop=0,N=fixed N ops/sec/thread]]]");
       throw e;
     }
     
@@ -82,7 +94,9 @@ public class perf_hash_test extends Thread {
     if( _read_ratio==0 )
       System.out.print(" -- churn");
     String name = _map_impl == -1 ? "Best" : names[_map_impl];
-    System.out.println(" "+name);
+    System.out.println(" "+name+" inserts via "+put_names[_put_mode]);
+    if( _latency_rate >= 0 && _read_ratio > 0 )
+      System.out.println("Latency percentiles in nanos, "+(_latency_rate == 0 ? "closed loop" : "fixed rate "+_latency_rate+" ops/sec/thread, from intended start"));
     System.out.println("Threads from "+_thread_min+" to "+_thread_max+" by "+_thread_incr);
 
     // Do some warmup
@@ -142,6 +156,12 @@ public class perf_hash_test extends Thread {
 
     long[] trials = new long[num_trials]; // Number of trials
     long total = 0;
+    _latency = null;
+    if( _latency_rate >= 0 && _read_ratio > 0 ) {
+      _latency = new ConcurrentHistogram[op_names.length];
+      for( int k=0; k<_latency.length; k++ )
+        _latency[k] = new ConcurrentHistogram();
+    }
 
     for( int j=0; j<trials.length; j++ ) {
       long[] ops = new long[num_threads];
@@ -206,6 +226,14 @@ public class perf_hash_test extends Thread {
       System.out.printf(" (+/-%2d%%)  %d",p,HM.size());
     }
     System.out.println();
+    if( _latency != null )
+      for( int k=0; k<_latency.length; k++ ) {
+        ConcurrentHistogram h = _latency[k];
+        if( h.count() == 0 ) continue;
+        System.out.printf("    %-6s  p50=%8d p99=%8d p99.9=%9d p99.99=%9d max=%10d  n=%d%n",
+                          op_names[k],h.percentile(50),h.percentile(99),h.percentile(99.9),
+                          h.percentile(99.99),h.max(),h.count());
+      }
   }
 
   static long compute_stddev(long[] trials, int len) {
@@ -226,7 +254,15 @@ public class perf_hash_test extends Thread {
   final ConcurrentMap<String,String> _hash; // Shared hashtable
   final long[] _ops;
   final long[] _nanos;
-  perf_hash_test( int tnum, ConcurrentMap<String,String> HM, long[] ops, long[] nanos ) { _tnum = tnum; _hash = HM; _ops = ops; _nanos = nanos; }
+  final ConcurrentHistogram _lat[]; // This thread's latencies, or null
+  perf_hash_test( int tnum, ConcurrentMap<String,String> HM, long[] ops, long[] nanos ) {
+    _tnum = tnum; _hash = HM; _ops = ops; _nanos = nanos;
+    if( _latency != null ) {
+      _lat = new ConcurrentHistogram[op_names.length];
+      for( int k=0; k<_lat.length; k++ )
+        _lat[k] = new ConcurrentHistogram();
+    } else _lat = null;
+  }
 
   static long run_once( int num_threads, ConcurrentMap<String,String> HM, long[] ops, long[] nanos ) throws Exception {
     Random R = new Random();
@@ -288,6 +324,10 @@ public class perf_hash_test extends Thread {
 
     for( int i=0; i<num_threads; i++ )
       thrs[i].join();
+    if( _latency != null )      // Merge the per-thread latencies
+      for( int i=0; i<num_threads; i++ )
+        for( int k=0; k<_latency.length; k++ )
+          _latency[k].add(thrs[i]._lat[k]);
     return millis;
   }
 
@@ -301,6 +341,8 @@ public class perf_hash_test extends Thread {
     int total = 0;
     if( _read_ratio == 0 ) {
       total = run_churn();
+    } else if( _lat != null ) {
+      total = run_latency(_hash);
     } else {
       if( _hash instanceof NonBlockingHashMap ) {
         total = run_normal( (NonBlockingHashMap) _hash);
@@ -359,7 +401,7 @@ public class perf_hash_test extends Thread {
         if( val != null && !val.equals(key) ) throw new IllegalArgumentException("Mismatched key="+key+" and val="+val);
       } else if( x < _pr ) {
         put_ops++;
-	hm.putIfAbsent( key, key );
+        put( hm, key );
       } else {
         del_ops++;
         hm.remove( key );
@@ -384,7 +426,7 @@ public class perf_hash_test extends Thread {
         if( val != null && !val.equals(key) ) throw new IllegalArgumentException("Mismatched key="+key+" and val="+val);
       } else if( x < _pr ) {
         put_ops++;
-	hm.putIfAbsent( key, key );
+        put( hm, key );
       } else {
         del_ops++;
         hm.remove( key );
@@ -409,7 +451,7 @@ public class perf_hash_test extends Thread {
         if( val != null && !val.equals(key) ) throw new IllegalArgumentException("Mismatched key="+key+" and val="+val);
       } else if( x < _pr ) {
         put_ops++;
-	hm.putIfAbsent( key, key );
+        put( hm, key );
       } else {
         del_ops++;
         hm.remove( key );
@@ -419,6 +461,64 @@ public class perf_hash_test extends Thread {
     return get_ops+put_ops+del_ops;
   }
 
+  // The normal mixed workload, timing every op.  In closed loop each op is
+  // timed from its own start, which hides stalls: a thread stuck in a long
+  // help_copy issues no ops, so the requests that should have queued behind
+  // the stall are never measured ("coordinated omission").  At a fixed rate
+  // each op has an intended start time on a fixed schedule, and is timed
+  // from that; ops that fall behind schedule are issued back-to-back and
+  // carry the queueing delay a real client would have seen.
+  public int run_latency( ConcurrentMap<String,String> hm ) {
+    SimpleRandom R = new SimpleRandom();
+    final long interval = _latency_rate == 0 ? 0 : 1000000000L/_latency_rate;
+    long intended = System.nanoTime();
+
+    int ops = 0;
+    while( !_stop ) {
+      if( interval > 0 ) {
+        while( System.nanoTime() < intended ) // Wait for this op's slot
+          if( _stop ) return ops;
+      }
+      int x = R.nextInt()&((1<<20)-1);
+      String key = KEYS[R.nextInt()&(KEYS.length-1)];
+      final long t0 = interval > 0 ? intended : System.nanoTime();
+      int k;
+      if( x < _gr ) {
+        k = 0;
+        String val = hm.get(key);
+        if( val != null && !val.equals(key) ) throw new IllegalArgumentException("Mismatched key="+key+" and val="+val);
+      } else if( x < _pr ) {
+        k = 1;
+        put( hm, key );
+      } else {
+        k = 2;
+        hm.remove( key );
+      }
+      _lat[k].record(System.nanoTime()-t0);
+      intended += interval;
+      ops++;
+    }
+    return ops;
+  }
+
+  // The insert half of the mixed workload.  The compute modes model a
+  // memoization cache: the 'expensive' value is only built on a miss.
+  static String put( ConcurrentMap<String,String> hm, String key ) {
+    switch( _put_mode ) {
+    case 0: return hm.putIfAbsent( key, key );
+    case 1: return hm.computeIfAbsent( key, IDENT );
+    case 2: { String val = hm.get(key);
+              if( val != null ) return val;
+              val = IDENT.apply(key);
+              String old = hm.putIfAbsent( key, val );
+              return old == null ? val : old; }
+    default: throw new Error("Bad put_mode");
+    }
+  }
+  static final java.util.function.Function<String,String> IDENT = new java.util.function.Function<String,String>() {
+    public String apply( String key ) { return key; }
+  };
+
   // Fairly fast random numbers
   public static final class SimpleRandom {
     private final static long multiplier = 0x5DEECE66DL;
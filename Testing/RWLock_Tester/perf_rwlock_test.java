@@ -0,0 +1,207 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+
+import org.cliffc.high_scale_lib.*;
+import java.util.concurrent.locks.*;
+
+// Compare reader-writer locks under a read-mostly load.  Each op takes the
+// read lock (read% of the time) or the write lock, and touches a little
+// shared state under it.  Writers bump two fields together; readers check
+// they match, so a broken lock shows up as an Error.
+public class perf_rwlock_test extends Thread {
+  static int _read_ratio, _gr;
+  static int _thread_min, _thread_max, _thread_incr;
+  static int _lock_impl;
+
+  static ReadWriteLock make_lock( int impl ) {
+    switch( impl ) {
+    case 1: return new ReentrantReadWriteLock();
+    case 2: return new ReentrantReadWriteLock(true);
+    case 3: return new StampedLock().asReadWriteLock();
+    case 4: return new StripedReadWriteLock(StripedReadWriteLock.WRITER_PREFERRED);
+    case 5: return new StripedReadWriteLock(StripedReadWriteLock.READER_PREFERRED);
+    case 6: return new StripedReadWriteLock(StripedReadWriteLock.FAIR);
+    default: throw new Error("Bad imple");
+    }
+  }
+  static String names[] = {
+    "ALL",
+    "RRWL",
+    "RRWL_fair",
+    "StampedLock",
+    "Striped_W",
+    "Striped_R",
+    "Striped_fair",
+  };
+
+  static volatile boolean _start;
+  static volatile boolean _stop;
+  // Shared state guarded by the lock under test
+  static long _a, _b;
+
+  static int check( String arg, String msg, int lower, int upper ) throws Exception {
+    int x = Integer.parseInt(arg);
+    if( x < lower || x > upper )
+      throw new Error(msg+" must be from "+lower+" to "+upper);
+    return x;
+  }
+
+  public static void main( String args[] ) throws Exception {
+    // Parse args
+    try {
+      _read_ratio   = check( args[0], "read%", 0, 100 );
+      _thread_min   = check( args[1], "thread_min", 1, 100000 );
+      _thread_max   = check( args[2], "thread_max", 1, 100000 );
+      _thread_incr  = check( args[3], "thread_incr", 1, 100000 );
+      _lock_impl    = check( args[4], "implementation", 0, names.length-1 );
+
+      _gr = (_read_ratio<<20)/100;
+
+      int trips = (_thread_max - _thread_min)/_thread_incr;
+      _thread_max = trips*_thread_incr + _thread_min;
+
+    } catch( Exception e ) {
+      System.out.println("Usage: perf_rwlock_test read% thread-min thread-max thread-increment impl[All=0,RRWL=1,RRWL_fair=2,StampedLock=3,Striped_W=4,Striped_R=5,Striped_fair=6]");
+      throw e;
+    }
+
+    System.out.println(_read_ratio+"% reads, "+(100-_read_ratio)+"% writes, "+names[_lock_impl]);
+    System.out.println("Threads from "+_thread_min+" to "+_thread_max+" by "+_thread_incr);
+
+    // Do some warmup
+    System.out.println("Warmup -variance: ");
+    run_till_stable(Math.min(_thread_min,2),1);
+
+    // Now do the real thing
+    System.out.print("==== Lock     Threads   Trial: ");
+    int num_trials = 7;         // Number of Trials
+    for( int i=0; i<num_trials; i++ )
+      System.out.printf(" %3d       ",i);
+    System.out.println("   Avg      Stddev");
+    for( int i=_thread_min; i<=_thread_max; i += _thread_incr )
+      run_till_stable( i, num_trials );
+  }
+
+  static void run_till_stable( int num_threads, int num_trials ) throws Exception {
+    if( _lock_impl > 0 ) {
+      run_till_stable(num_threads,num_trials,_lock_impl);
+    } else {
+      for( int i=1; i<names.length; i++ )
+        run_till_stable(num_threads,num_trials,i);
+    }
+  }
+
+  static void run_till_stable( int num_threads, int num_trials, int impl ) throws Exception {
+    ReadWriteLock L = make_lock(impl);
+    System.out.printf("=== %10.10s  %3d",names[impl],num_threads);
+
+    long[] trials = new long[num_trials]; // Number of trials
+    long total = 0;
+
+    for( int j=0; j<trials.length; j++ ) {
+      long[] ops = new long[num_threads];
+      long millis = run_once(num_threads,L,ops);
+      long sum_ops = 0;
+      for( int i=0; i<num_threads; i++ )
+        sum_ops += ops[i];
+      long ops_per_sec = (sum_ops*1000L)/millis;
+      trials[j] = ops_per_sec;
+      total += ops_per_sec;
+      if( j == 0 )
+        System.out.printf("  ops/sec=");
+      System.out.printf(" %10d",ops_per_sec);
+    }
+
+    if( trials.length > 2 ) {
+      // Toss out low & high
+      int lo=0;
+      int hi=0;
+      for( int j=1; j<trials.length; j++ ) {
+        if( trials[lo] < trials[j] ) lo=j;
+        if( trials[hi] > trials[j] ) hi=j;
+      }
+      total -= (trials[lo]+trials[hi]);
+      trials[lo] = trials[trials.length-1];
+      trials[hi] = trials[trials.length-2];
+      // Print avg,stddev
+      long avg = total/(trials.length-2);
+      long stddev = compute_stddev(trials,trials.length-2);
+      long p = avg == 0 ? 0 : stddev*100/avg; // std-dev as a percent
+      System.out.printf(" %10d",avg);
+      System.out.printf(" (+/-%2d%%)",p);
+    }
+    System.out.println();
+  }
+
+  static long compute_stddev(long[] trials, int len) {
+    double sum = 0;
+    double squ = 0.0;
+    for( int i=0; i<len; i++ ) {
+      double d = (double)trials[i];
+      sum += d;
+      squ += d*d;
+    }
+    double x = squ - sum*sum/len;
+    double stddev = Math.sqrt(x/(len-1));
+    return (long)stddev;
+  }
+
+  // Worker thread fields
+  final int _tnum;
+  final ReadWriteLock _lock;
+  final long[] _ops;
+  perf_rwlock_test( int tnum, ReadWriteLock L, long[] ops ) { _tnum = tnum; _lock = L; _ops = ops; }
+
+  static long run_once( int num_threads, ReadWriteLock L, long[] ops ) throws Exception {
+    _start = false;
+    _stop = false;
+
+    // Launch threads
+    perf_rwlock_test thrs[] = new perf_rwlock_test[num_threads];
+    for( int i=0; i<num_threads; i++ )
+      thrs[i] = new perf_rwlock_test(i, L, ops);
+    for( int i=0; i<num_threads; i++ )
+      thrs[i].start();
+    // Run threads
+    long start = System.currentTimeMillis();
+    _start = true;
+    try { Thread.sleep(2000); } catch( InterruptedException e ){}
+    _stop = true;
+    long stop = System.currentTimeMillis();
+    long millis = stop-start;
+
+    for( int i=0; i<num_threads; i++ )
+      thrs[i].join();
+    return millis;
+  }
+
+  // What a worker thread does
+  public void run() {
+    while( !_start )            // Spin till Time To Go
+      try { Thread.sleep(1); } catch( Exception e ){}
+
+    final Lock r = _lock.readLock();
+    final Lock w = _lock.writeLock();
+    int seed = System.identityHashCode(this)|1;
+    long ops = 0;
+    while( !_stop ) {
+      seed ^= seed<<13; seed ^= seed>>>17; seed ^= seed<<5; // xorshift
+      int x = seed&((1<<20)-1);
+      if( x < _gr ) {
+        r.lock();
+        try {
+          if( _a != _b ) throw new Error("Reader saw a writer: "+_a+" != "+_b);
+        } finally { r.unlock(); }
+      } else {
+        w.lock();
+        try { _a++; _b++; } finally { w.unlock(); }
+      }
+      ops++;
+    }
+    // We stopped; report results into shared result structure
+    _ops[_tnum] = ops;
+  }
+}
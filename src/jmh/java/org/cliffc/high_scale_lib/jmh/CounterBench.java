@@ -0,0 +1,58 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib.jmh;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.cliffc.high_scale_lib.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Shared counters, the JMH port of Testing/CAT_Tester/Harness: every thread
+ * increments one counter, and {@code read_pct} percent of the ops read it
+ * instead.  A read of {@link Counter} sums all its stripes, so reads are
+ * where it pays for cheap increments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class CounterBench {
+  @Param({"Counter","AtomicLong","LongAdder"})
+  public String impl;
+  @Param({"0","1","10"})
+  public int read_pct;
+
+  Counter _cat;
+  AtomicLong _atomic;
+  LongAdder _adder;
+  int _gr;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    switch( impl ) {
+    case "Counter":    _cat    = new Counter();    break;
+    case "AtomicLong": _atomic = new AtomicLong(); break;
+    case "LongAdder":  _adder  = new LongAdder();  break;
+    default: throw new IllegalArgumentException(impl);
+    }
+    _gr = (read_pct<<20)/100;
+  }
+
+  @Benchmark
+  public long op( MapBench.Rnd r ) {
+    final boolean read = (r.next() & ((1<<20)-1)) < _gr;
+    if( _cat != null ) {
+      if( read ) return _cat.get();
+      _cat.increment(); return 0;
+    }
+    if( _atomic != null )
+      return read ? _atomic.get() : _atomic.incrementAndGet();
+    if( read ) return _adder.sum();
+    _adder.increment(); return 0;
+  }
+}
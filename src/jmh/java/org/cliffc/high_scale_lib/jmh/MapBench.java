@@ -0,0 +1,78 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib.jmh;
+import java.util.concurrent.*;
+import org.cliffc.high_scale_lib.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * String-keyed maps under a mixed get/put/remove load: the JMH port of
+ * Testing/NBHM_Tester/perf_hash_test.  {@code read_ratio} percent of the ops
+ * are gets; the rest are split evenly between puts and removes, so the
+ * table hovers around half of {@code table_size} live keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class MapBench {
+  @Param({"NBHM","CHM","CHM_16","CHM_4096"})
+  public String impl;
+  @Param({"1000","100000"})
+  public int table_size;
+  @Param({"50","90","100"})
+  public int read_ratio;
+
+  ConcurrentMap<String,String> _map;
+  String[] _keys;
+  int _gr, _pr;                 // Get and put thresholds, out of 1<<20
+
+  static ConcurrentMap<String,String> make_map( String impl ) {
+    switch( impl ) {
+    case "NBHM":     return new NonBlockingHashMap<String,String>();
+    case "CHM":      return new ConcurrentHashMap<String,String>();
+    case "CHM_16":   return new ConcurrentHashMap<String,String>(16,0.75f,  16);
+    case "CHM_4096": return new ConcurrentHashMap<String,String>(16,0.75f,4096);
+    default: throw new IllegalArgumentException(impl);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    _map = make_map(impl);
+    int keymax = 1;
+    while( keymax < table_size ) keymax<<=1;
+    _keys = new String[keymax];
+    for( int i=0; i<_keys.length; i++ )
+      _keys[i] = String.valueOf(i) + "abc" + String.valueOf(i*17+123);
+    for( int i=0; i<table_size; i+=2 ) // Start half full
+      _map.put(_keys[i],_keys[i]);
+    _gr = (read_ratio<<20)/100;
+    _pr = (((1<<20) - _gr)>>1) + _gr;
+  }
+
+  @Benchmark
+  public Object op( Rnd r ) {
+    final int x = r.next() & ((1<<20)-1);
+    final String key = _keys[r.next() & (_keys.length-1)];
+    if( x < _gr ) return _map.get(key);
+    if( x < _pr ) return _map.putIfAbsent(key,key);
+    return _map.remove(key);
+  }
+
+  /** Per-thread xorshift random numbers, cheap enough not to dominate. */
+  @State(Scope.Thread)
+  public static class Rnd {
+    int _seed = (int)System.nanoTime()|1;
+    public int next() {
+      int s = _seed;
+      s ^= s<<13; s ^= s>>>17; s ^= s<<5;
+      return _seed = s;
+    }
+  }
+}
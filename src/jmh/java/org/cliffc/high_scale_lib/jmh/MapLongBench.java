@@ -0,0 +1,69 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib.jmh;
+import java.util.concurrent.*;
+import org.cliffc.high_scale_lib.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Long-keyed maps under a mixed get/put/remove load: the JMH port of
+ * Testing/NBHM_Tester/perf_hashlong_test.  Mixes as {@link MapBench}.
+ * {@code NBHML} is driven through its primitive-key calls; the boxed maps
+ * pay for a Long per op, as their users would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class MapLongBench {
+  @Param({"NBHML","NBHM","CHM"})
+  public String impl;
+  @Param({"1000","100000"})
+  public int table_size;
+  @Param({"50","90","100"})
+  public int read_ratio;
+
+  NonBlockingHashMapLong<String> _nbhml; // Set for NBHML only
+  ConcurrentMap<Long,String> _map;       // Set for the boxed maps
+  int _mask;
+  int _gr, _pr;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    switch( impl ) {
+    case "NBHML": _nbhml = new NonBlockingHashMapLong<String>(); break;
+    case "NBHM":  _map = new NonBlockingHashMap<Long,String>(); break;
+    case "CHM":   _map = new ConcurrentHashMap<Long,String>(); break;
+    default: throw new IllegalArgumentException(impl);
+    }
+    int keymax = 1;
+    while( keymax < table_size ) keymax<<=1;
+    _mask = keymax-1;
+    for( int i=0; i<table_size; i+=2 ) // Start half full
+      if( _nbhml != null ) _nbhml.put(key(i),"v"); else _map.put(key(i),"v");
+    _gr = (read_ratio<<20)/100;
+    _pr = (((1<<20) - _gr)>>1) + _gr;
+  }
+
+  // Spread keys over the whole long range, not just a dense int range
+  static long key( int i ) { return i*0x9E3779B97F4A7C15L; }
+
+  @Benchmark
+  public Object op( MapBench.Rnd r ) {
+    final int x = r.next() & ((1<<20)-1);
+    final long key = key(r.next() & _mask);
+    if( _nbhml != null ) {
+      if( x < _gr ) return _nbhml.get(key);
+      if( x < _pr ) return _nbhml.putIfAbsent(key,"v");
+      return _nbhml.remove(key);
+    }
+    if( x < _gr ) return _map.get(key);
+    if( x < _pr ) return _map.putIfAbsent(key,"v");
+    return _map.remove(key);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib.jmh;
+import java.util.Set;
+import java.util.concurrent.*;
+import org.cliffc.high_scale_lib.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Sets of small ints under a mixed contains/add/remove load: the JMH port of
+ * Testing/NBHS_Tester/perf_set_test.  Mixes as {@link MapBench}, over the
+ * ints 0 to {@code universe}-1.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class SetIntBench {
+  @Param({"NBSI","NBHS","CHM_keySet"})
+  public String impl;
+  @Param({"1024","1048576"})
+  public int universe;
+  @Param({"50","90","100"})
+  public int read_ratio;
+
+  NonBlockingSetInt _nbsi;      // Set for NBSI only
+  Set<Integer> _set;            // Set for the boxed sets
+  int _gr, _pr;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    switch( impl ) {
+    case "NBSI":       _nbsi = new NonBlockingSetInt(); break;
+    case "NBHS":       _set = new NonBlockingHashSet<Integer>(); break;
+    case "CHM_keySet": _set = ConcurrentHashMap.<Integer>newKeySet(); break;
+    default: throw new IllegalArgumentException(impl);
+    }
+    if( Integer.bitCount(universe) != 1 ) throw new IllegalArgumentException("universe must be a power of 2");
+    for( int i=0; i<universe; i+=2 ) // Start half full
+      if( _nbsi != null ) _nbsi.add(i); else _set.add(i);
+    _gr = (read_ratio<<20)/100;
+    _pr = (((1<<20) - _gr)>>1) + _gr;
+  }
+
+  @Benchmark
+  public boolean op( MapBench.Rnd r ) {
+    final int x = r.next() & ((1<<20)-1);
+    final int i = r.next() & (universe-1);
+    if( _nbsi != null ) {
+      if( x < _gr ) return _nbsi.contains(i);
+      if( x < _pr ) return _nbsi.add(i);
+      return _nbsi.remove(i);
+    }
+    if( x < _gr ) return _set.contains(i);
+    if( x < _pr ) return _set.add(i);
+    return _set.remove(i);
+  }
+}
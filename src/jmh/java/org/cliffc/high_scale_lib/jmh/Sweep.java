@@ -0,0 +1,42 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib.jmh;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Run the benchmarks once per thread count, as the old harnesses' thread
+ * sweeps did, writing each run's results as JSON for regression tracking.
+ * <pre>
+ *   mvn -Pjmh package
+ *   java -cp target/benchmarks.jar org.cliffc.high_scale_lib.jmh.Sweep 1,2,4,8 MapBench results
+ * </pre>
+ * writes results/jmh-MapBench-t1.json and so on.  Plain JMH runs work too:
+ * {@code java -jar target/benchmarks.jar MapBench -t 8 -rf json}.
+ */
+public class Sweep {
+  public static void main( String args[] ) throws Exception {
+    if( args.length < 1 ) {
+      System.out.println("Usage: Sweep thread,thread,... [benchmark-regex [result-dir]]");
+      return;
+    }
+    final String include = args.length > 1 ? args[1] : ".*Bench";
+    final String dir     = args.length > 2 ? args[2] : ".";
+    new java.io.File(dir).mkdirs();
+    final String tag = include.replaceAll("[^A-Za-z0-9_]","");
+    for( String t : args[0].split(",") ) {
+      final int threads = Integer.parseInt(t.trim());
+      Options opt = new OptionsBuilder()
+        .include(Sweep.class.getPackage().getName()+"."+include)
+        .threads(threads)
+        .resultFormat(ResultFormatType.JSON)
+        .result(dir+"/jmh-"+(tag.isEmpty() ? "all" : tag)+"-t"+threads+".json")
+        .build();
+      new Runner(opt).run();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.boundary.high_scale_lib;
+
+import org.cliffc.high_scale_lib.IntIterator;
+import org.cliffc.high_scale_lib.NonBlockingHashMapInt;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A simple wrapper around {@link NonBlockingHashMapInt} making it implement the
+ * {@link Set} interface.  All operations are Non-Blocking and multi-thread safe.
+ * Unlike the bit-vector {@link org.cliffc.high_scale_lib.NonBlockingSetInt},
+ * memory is proportional to the number of members and not to the largest
+ * member, so this is the set to use for sparse or negative ints.
+ */
+public class NonBlockingHashSetInt extends AbstractSet<Integer> implements Serializable {
+  private static final long serialVersionUID = 1234123412341234126L;
+  private static final Object V = "";
+
+  private final NonBlockingHashMapInt<Object> _map;
+
+  /** Make a new empty {@link NonBlockingHashSetInt}.  */
+  public NonBlockingHashSetInt() {
+    super();
+    _map = new NonBlockingHashMapInt<Object>();
+  }
+
+  @Override
+  public boolean addAll(Collection<? extends Integer> c) {
+    if (!NonBlockingHashSetInt.class.equals(c.getClass())) {
+      return super.addAll(c);
+    }
+    boolean modified = false;
+    for (final IntIterator it = ((NonBlockingHashSetInt)c).intIterator(); it.hasNext(); ) {
+      modified |= add(it.next());
+    }
+    return modified;
+  }
+
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    if (!NonBlockingHashSetInt.class.equals(c.getClass())) {
+      return super.removeAll(c);
+    }
+    boolean modified = false;
+    for (final IntIterator it = ((NonBlockingHashSetInt)c).intIterator(); it.hasNext(); ) {
+      modified |= remove(it.next());
+    }
+    return modified;
+  }
+
+  @Override
+  public boolean containsAll(Collection<?> c) {
+    if (!NonBlockingHashSetInt.class.equals(c.getClass())) {
+      return super.containsAll(c);
+    }
+    for (final IntIterator it = ((NonBlockingHashSetInt)c).intIterator(); it.hasNext(); ) {
+      if (!contains(it.next())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    if (!NonBlockingHashSetInt.class.equals(c.getClass())) {
+      return super.retainAll(c);
+    }
+    boolean modified = false;
+    final NonBlockingHashSetInt nonBlockingHashSetInt = (NonBlockingHashSetInt) c;
+    for (final IntIterator it = intIterator(); it.hasNext(); ) {
+      if (!nonBlockingHashSetInt.contains(it.next())) {
+        it.remove();
+        modified = true;
+      }
+    }
+    return modified;
+  }
+
+  @Override
+  public int hashCode() {
+    int hashCode = 0;
+    for (final IntIterator it = intIterator(); it.hasNext(); ) {
+      hashCode += it.next();
+    }
+    return hashCode;
+  }
+
+  /** Add {@code o} to the set.
+   * @return <tt>true</tt> if {@code o} was added to the set, <tt>false</tt>
+   * if {@code o} was already in the set.
+   */
+  public boolean add(final int o) {
+    return _map.putIfAbsent(o,V) != V;
+  }
+  
+  /** 
+   * To support AbstractCollection.addAll
+   */
+  @Override
+  public boolean add(final Integer o) {
+    return _map.putIfAbsent(o.intValue(),V) != V;
+  }
+
+  /** 
+   * @return <tt>true</tt> if {@code o} is in the set.
+   */
+  public boolean contains(final int o) { return _map.containsKey(o); }
+
+  @Override
+  public boolean contains(Object o) {
+    return o instanceof Integer && contains(((Integer) o).intValue());
+  }
+
+  /** Remove {@code o} from the set.
+   * @return <tt>true</tt> if {@code o} was removed to the set, <tt>false</tt>
+   * if {@code o} was not in the set.
+   */
+  public boolean remove(final int o) { return _map.remove(o) == V; }
+
+  @Override
+  public boolean remove(final Object o) { return o instanceof Integer && remove(((Integer) o).intValue()); }
+  /** 
+   * Current count of elements in the set.  Due to concurrent racing updates,
+   * the size is only ever approximate.  Updates due to the calling thread are
+   * immediately visible to calling thread.
+   * @return count of elements.
+   */
+  @Override
+  public int size() { return _map.size(); }
+  /** Empty the set. */
+  @Override
+  public void clear() { _map.clear(); }
+
+  @Override
+  public String toString() {
+    // Overloaded to avoid auto-boxing
+    final IntIterator it = intIterator();
+    if (!it.hasNext()) {
+      return "[]";
+    }
+    final StringBuilder sb = new StringBuilder().append('[');
+    for (;;) {
+      sb.append(it.next());
+      if (!it.hasNext()) {
+        return sb.append(']').toString();
+      }
+      sb.append(", ");
+    }
+  }
+
+  @Override
+  public Iterator<Integer>iterator() { return _map.keySet().iterator(); }
+
+  /** An iterator over the members which does not auto-box. */
+  public IntIterator intIterator() {
+    final NonBlockingHashMapInt<Object>.IteratorInt it = _map.new IteratorInt();
+    return new IntIterator() {
+      public int next() { return it.nextInt(); }
+      public boolean hasNext() { return it.hasNext(); }
+      public void remove() { it.remove(); }
+    };
+  }
+}
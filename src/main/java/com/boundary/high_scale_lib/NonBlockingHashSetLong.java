@@ -5,18 +5,38 @@ import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 
 import java.io.Serializable;
 import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * A simple wrapper around {@link NonBlockingHashMapLong} making it implement the
  * {@link Set} interface.  All operations are Non-Blocking and multi-thread safe.
  */
 public class NonBlockingHashSetLong extends AbstractSet<Long> implements Serializable {
+  // The UID computed for the class before readOnly() changed its fields;
+  // older streams still read, with _ro left null
+  private static final long serialVersionUID = 6963295642604014021L;
   private static final Object V = "";
 
-  private final NonBlockingHashMapLong<Object> _map;
+  // The live map; nulled out by readOnly() once _ro is published.
+  private volatile NonBlockingHashMapLong<Object> _map;
+  // The frozen table, set once by readOnly()
+  private volatile FrozenTable _ro;
+  private static final AtomicReferenceFieldUpdater<NonBlockingHashSetLong,FrozenTable> _roUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(NonBlockingHashSetLong.class, FrozenTable.class, "_ro");
+
+  // The live map, for mutators
+  private NonBlockingHashMapLong<Object> map() {
+    final NonBlockingHashMapLong<Object> map = _map;
+    if (map == null) {
+      throw new IllegalStateException("set is read-only");
+    }
+    return map;
+  }
 
   /** Make a new empty {@link NonBlockingHashSetLong}.  */
   public NonBlockingHashSetLong() {
@@ -92,7 +112,7 @@ public class NonBlockingHashSetLong extends AbstractSet<Long> implements Seriali
    * if {@code o} was already in the set.
    */
   public boolean add(final long o) {
-    return _map.putIfAbsent(o,V) != V;
+    return map().putIfAbsent(o,V) != V;
   }
   
   /** 
@@ -100,13 +120,16 @@ public class NonBlockingHashSetLong extends AbstractSet<Long> implements Seriali
    */
   @Override
   public boolean add(final Long o) {
-    return _map.putIfAbsent(o.longValue(),V) != V;
+    return map().putIfAbsent(o.longValue(),V) != V;
   }
 
   /** 
    * @return <tt>true</tt> if {@code o} is in the set.
    */
-  public boolean contains(final long o) { return _map.containsKey(o); }
+  public boolean contains(final long o) {
+    final NonBlockingHashMapLong<Object> map = _map;
+    return map != null ? map.containsKey(o) : _ro.contains(o);
+  }
 
   @Override
   public boolean contains(Object o) {
@@ -117,7 +140,7 @@ public class NonBlockingHashSetLong extends AbstractSet<Long> implements Seriali
    * @return <tt>true</tt> if {@code o} was removed to the set, <tt>false</tt>
    * if {@code o} was not in the set.
    */
-  public boolean remove(final long o) { return _map.remove(o) == V; }
+  public boolean remove(final long o) { return map().remove(o) == V; }
 
   @Override
   public boolean remove(final Object o) { return o instanceof Long && remove(((Long) o).longValue()); }
@@ -128,10 +151,13 @@ public class NonBlockingHashSetLong extends AbstractSet<Long> implements Seriali
    * @return count of elements.
    */
   @Override
-  public int size() { return _map.size(); }
+  public int size() {
+    final NonBlockingHashMapLong<Object> map = _map;
+    return map != null ? map.size() : _ro._size;
+  }
   /** Empty the set. */
   @Override
-  public void clear() { _map.clear(); }
+  public void clear() { map().clear(); }
 
   @Override
   public String toString() {
@@ -151,10 +177,11 @@ public class NonBlockingHashSetLong extends AbstractSet<Long> implements Seriali
   }
 
   @Override
-  public Iterator<Long>iterator() { return _map.keySet().iterator(); }
+  public Iterator<Long>iterator() { return longIterator(); }
 
   public LongIterator longIterator() {
-    return (LongIterator) _map.keySet().iterator();
+    final NonBlockingHashMapLong<Object> map = _map;
+    return map != null ? (LongIterator) map.keySet().iterator() : _ro.iterator();
   }
 
   // ---
@@ -178,13 +205,113 @@ public class NonBlockingHashSetLong extends AbstractSet<Long> implements Seriali
    * complete to throw an {@link IllegalStateException}.
    */
 
-  // (1) call _map's immutable() call
-  // (2) get snapshot
-  // (3) CAS down a local map, power-of-2 larger than _map.size()+1/8th
-  // (4) start @ random, visit all snapshot, insert live keys
-  // (5) CAS _map to null, needs happens-after (4)
-  // (6) if Set call sees _map is null, needs happens-after (4) for readers
   public void readOnly() {
-    throw new RuntimeException("Unimplemented");
+    final NonBlockingHashMapLong<Object> map = _map;
+    if (map == null) {
+      return;                   // Already read-only
+    }
+    // Freeze the map: from here on its contents cannot change, and racing
+    // mutators either made it in or throw.  Then build a compact copy; racing
+    // readOnly() calls build identical copies and the first CAS wins.
+    map.immutable();
+    _roUpdater.compareAndSet(this, null, new FrozenTable(map));
+    // Drop the big map only after _ro is visible, so a reader seeing a null
+    // _map always finds the frozen table.
+    _map = null;
+  }
+
+  // ---
+  // A densely packed, open-addressed, read-only table of longs.  With no
+  // deletes there are no TOMBSTONEs, and with no updates there is no CAS or
+  // Prime'ing, so a probe is a plain array load and compare.  Key 0 marks
+  // an empty slot and is kept out of the array.
+  private static final class FrozenTable implements Serializable {
+    private static final long serialVersionUID = 1234123412341234124L;
+    private final long[] _keys;
+    private final int _shift;   // 64 - log2(_keys.length)
+    private final boolean _zero; // Member 0 is in the set
+    private final int _size;
+
+    FrozenTable(final NonBlockingHashMapLong<Object> map) {
+      // Gather the keys first: map.size() is only an approximate Counter
+      // sum, and a table sized from it could fill up and probe forever.
+      long[] ks = new long[16];
+      int cnt = 0;
+      boolean zero = false;
+      for (final LongIterator it = (LongIterator) map.keySet().iterator(); it.hasNext(); ) {
+        final long k = it.nextLong();
+        if (k == 0) {
+          zero = true;
+          continue;
+        }
+        if (cnt == ks.length) {
+          ks = Arrays.copyOf(ks, cnt << 1);
+        }
+        ks[cnt++] = k;
+      }
+      // Room for twice the real count, rounded up to a power of 2: at most
+      // 50% full, so probe runs stay short and there is always an empty slot.
+      int log2 = 1;
+      while ((1 << log2) < (cnt << 1) + 1) {
+        log2++;
+      }
+      _keys = new long[1 << log2];
+      _shift = 64 - log2;
+      for (int i = 0; i < cnt; i++) {
+        final long k = ks[i];
+        int idx = idx(k);
+        while (_keys[idx] != 0) {
+          idx = (idx + 1) & (_keys.length - 1);
+        }
+        _keys[idx] = k;
+      }
+      _zero = zero;
+      _size = cnt + (zero ? 1 : 0);
+    }
+
+    // Fibonacci hashing: unlike the live map (which masks the low bits) the
+    // frozen table mixes all 64 key bits, since reprobe runs here are paid
+    // on every later lookup.
+    private int idx(final long k) {
+      return (int) ((k * 0x9E3779B97F4A7C15L) >>> _shift);
+    }
+
+    boolean contains(final long k) {
+      if (k == 0) {
+        return _zero;
+      }
+      for (int idx = idx(k); ; idx = (idx + 1) & (_keys.length - 1)) {
+        final long K = _keys[idx];
+        if (K == k) {
+          return true;
+        }
+        if (K == 0) {
+          return false;
+        }
+      }
+    }
+
+    LongIterator iterator() {
+      return new LongIterator() {
+        private int _idx = _zero ? -1 : next_idx(0);
+        private int next_idx(int i) {
+          while (i < _keys.length && _keys[i] == 0) {
+            i++;
+          }
+          return i;
+        }
+        public boolean hasNext() { return _idx < _keys.length; }
+        public long nextLong() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          final int i = _idx;
+          _idx = next_idx(i + 1);
+          return i == -1 ? 0 : _keys[i];
+        }
+        public Long next() { return nextLong(); }
+        public void remove() { throw new IllegalStateException("set is read-only"); }
+      };
+    }
   }
 }
@@ -5,6 +5,7 @@
 
 package org.cliffc.high_scale_lib;
 import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.*;
 import sun.misc.Unsafe;
 
@@ -16,9 +17,9 @@ import sun.misc.Unsafe;
  * otherwise happen at such a high volume that the cache contention for
  * CAS'ing a single word is unacceptable.
  *
- * <p>This API is overkill for simple counters (e.g. no need for the 'mask')
- * and is untested as an API for making a scalable r/w lock and so is likely
- * to change!
+ * <p>This API is overkill for simple counters (e.g. no need for the 'mask'),
+ * which is there for {@link StripedReadWriteLock}: a fixed-size table whose
+ * mask bit marks a writer, and whose stripes count the readers.
  *
  * @since 1.5
  * @author Cliff Click
@@ -29,6 +30,57 @@ public class ConcurrentAutoTable implements Serializable {
 
   // --- public interface ---
 
+  /** Default cache-line size in bytes, used by the no-arg constructor. */
+  public static final int DEFAULT_LINE_BYTES = 64;
+
+  /** Create a table with one stripe per {@link #DEFAULT_LINE_BYTES} line. */
+  public ConcurrentAutoTable() { this(DEFAULT_LINE_BYTES); }
+
+  /**
+   * Create a table whose active stripes each sit on their own cache line of
+   * {@code line_bytes} bytes, so threads updating different stripes never
+   * false-share a line, nor the line holding the array header.  Larger lines
+   * cost memory: a table of N stripes takes (N+1)*line_bytes bytes.  Use 128
+   * on machines that prefetch adjacent line pairs; 32 gives the dense layout
+   * of older versions.
+   * @param line_bytes cache-line size; a power of 2 from 8 to 4096
+   * @throws IllegalArgumentException if line_bytes is out of range or not a
+   *         power of 2
+   */
+  public ConcurrentAutoTable( int line_bytes ) { this(line_bytes,SUM); }
+
+  // Striped tables reducing with an operation other than '+'.  The stripes
+  // start at the operation's identity; 'add' then combines into a stripe
+  // and the readers reduce over all stripes.  See MaxCounter, MinCounter.
+  static final int SUM = 0, MAX = 1, MIN = 2;
+  ConcurrentAutoTable( int line_bytes, int op ) { this(line_bytes,op,0); }
+
+  // A table of exactly 'fixed_stripes' stripes (a power of 2) which never
+  // grows or shrinks, or an auto-sizing one if zero.  Mask bits set with
+  // all_or stay set in every stripe only while the table is not replaced,
+  // so users of the mask protocol (StripedReadWriteLock) need a fixed table.
+  ConcurrentAutoTable( int line_bytes, int op, int fixed_stripes ) {
+    if( line_bytes < 8 || line_bytes > 4096 || Integer.bitCount(line_bytes) != 1 )
+      throw new IllegalArgumentException(""+line_bytes);
+    if( fixed_stripes < 0 || Integer.bitCount(fixed_stripes) > 1 )
+      throw new IllegalArgumentException(""+fixed_stripes);
+    _shift = Integer.numberOfTrailingZeros(line_bytes>>3);
+    _op = op;
+    _fixed = fixed_stripes != 0;
+    _cat = new CAT(null,_fixed ? fixed_stripes : 1/*Start Small, Think Big!*/,_shift,op,identity(op));
+  }
+
+  static long identity( int op ) {
+    return op == MAX ? Long.MIN_VALUE : (op == MIN ? Long.MAX_VALUE : 0);
+  }
+  private static long combine( int op, long a, long b ) {
+    switch( op ) {
+    case MAX: return Math.max(a,b);
+    case MIN: return Math.min(a,b);
+    default:  return a+b;
+    }
+  }
+
   /**
    * Add the given value to current counter value.  Concurrent updates will
    * not be lost, but addAndGet or getAndAdd are not implemented because the
@@ -46,7 +98,7 @@ public class ConcurrentAutoTable implements Serializable {
    *  Rather more expensive than a simple store, in order to remain atomic.
    */
   public void set( long x ) { 
-    CAT newcat = new CAT(null,4,x);
+    CAT newcat = new CAT(null,1,_shift,_op,x);
     // Spin until CAS works
     while( !CAS_cat(_cat,newcat) );
   }
@@ -56,22 +108,62 @@ public class ConcurrentAutoTable implements Serializable {
    * the value is only approximate, but it includes all counts made by the
    * current thread.  Requires a pass over the internally striped counters.
    */
-  public long get()       { return      _cat.sum(0); }
+  public long get()       { return      sum(false); }
   /** Same as {@link #get}, included for completeness. */
-  public int  intValue()  { return (int)_cat.sum(0); }
+  public int  intValue()  { return (int)sum(false); }
   /** Same as {@link #get}, included for completeness. */
-  public long longValue() { return      _cat.sum(0); }
+  public long longValue() { return      sum(false); }
+
+  /**
+   * Return the current sum and reset the counter to zero, without losing
+   * counts.  Each stripe is atomically swapped to zero, so every concurrent
+   * update lands either in the returned sum or in the counter afterwards -
+   * unlike {@link #get} followed by {@link #set}, which drops the updates
+   * racing between the two.  The counter as a whole is not reset at a
+   * single instant.  Intended for "count since last scrape" reporting.
+   */
+  public long sumThenReset() {
+    long sum = identity(_op);
+    CAT cat = cat();
+    while( true ) {
+      sum = combine(_op,sum,cat.sum_then_reset());
+      if( cat._newer == null ) return sum;
+      cat = _cat;               // Retired meanwhile: drain what moved on too
+    }
+  }
+  /** Same as {@link #sumThenReset}, included for completeness. */
+  public long getAndReset()  { return sumThenReset(); }
+
+  /**
+   * Return a reader of the counter's growth between calls, for taking
+   * rates without resetting the counter.  Each reader keeps its own
+   * previous value, so several reporters can read the same counter
+   * independently.  The deltas are as approximate as {@link #get}, but
+   * consecutive deltas always add up to the change in the counter.
+   */
+  public Interval interval() { return new Interval(); }
+
+  /** Reads the growth of a counter since the previous read; see {@link #interval}. */
+  public final class Interval {
+    private final AtomicLong _last;
+    private Interval() { _last = new AtomicLong(get()); }
+    /** @return the change in the counter since the previous call, or since creation */
+    public long delta() {
+      final long now = get();
+      return now - _last.getAndSet(now);
+    }
+  }
 
   /**
    * A cheaper {@link #get}.  Updated only once/millisecond, but as fast as a
    * simple load instruction when not updating.
    */
-  public long estimate_get( ) { return _cat.estimate_sum(0); }
+  public long estimate_get( ) { return sum(true); }
 
   /**
    * Return the counter's {@code long} value converted to a string.
    */
-  public String toString() { return _cat.toString(0); }
+  public String toString() { return Long.toString(sum(false)); }
   
   /**
    * A more verbose print than {@link #toString}, showing internal structure.
@@ -83,31 +175,111 @@ public class ConcurrentAutoTable implements Serializable {
    * Return the internal counter striping factor.  Useful for diagnosing
    * performance problems.
    */
-  public int internal_size() { return _cat._t.length; }
+  public int internal_size() { return _cat.stripes(); }
+
+  /** Return the cache-line size, in bytes, given to each stripe. */
+  public int line_bytes() { return 8<<_shift; }
 
-  // Only add 'x' to some slot in table, hinted at by 'hash', if bits under
-  // the mask are all zero.  The sum can overflow or 'x' can contain bits in
-  // the mask. Value is CAS'd so no counts are lost.  The CAS is retried until
-  // it succeeds or bits are found under the mask.  Returned value is the old
-  // value - which WILL have zero under the mask on success and WILL NOT have
-  // zero under the mask for failure.
-  private long add_if_mask( long x, long mask ) { return _cat.add_if_mask(x,mask,hash(),this); }
+  // Only add 'x' to some slot in table, hinted at by the thread's probe, if
+  // bits under the mask are all zero.  The sum can overflow or 'x' can
+  // contain bits in the mask. Value is CAS'd so no counts are lost.  The CAS
+  // is retried until it succeeds or bits are found under the mask.  Returned
+  // value is the old value - which WILL have zero under the mask on success
+  // and WILL NOT have zero under the mask for failure.
+  long add_if_mask( long x, long mask ) { return _cat.add_if_mask(x,mask,probe(),this); }
+
+  // Set (or clear) bits in every stripe; see add_if_mask
+  void all_or ( long mask ) { _cat.all_or (mask); }
+  void all_and( long mask ) { _cat.all_and(mask); }
+  // Double the stripes now, as contention would; for tests of the
+  // grow, fold and shrink paths on machines too small to contend
+  void grow() { _cat.grow(this); }
+
+  // Sum stripping off mask, always read afresh from the stripes.  The
+  // cached sum may have been stored by a racing reader after a mask change.
+  long fresh_sum( long mask ) { return _cat.fresh_sum(mask); }
 
   // The underlying array of concurrently updated long counters
-  private volatile CAT _cat = new CAT(null,4/*Start Small, Think Big!*/,0L);
+  private volatile CAT _cat;
+  // log2 of the longs per cache line: stripes sit 1<<_shift longs apart
+  private final int _shift;
+  // Reducing operation: SUM, MAX or MIN
+  private final int _op;
+  // True if the table never grows or shrinks
+  private final boolean _fixed;
   private static final AtomicReferenceFieldUpdater<ConcurrentAutoTable,CAT> _catUpdater =
     AtomicReferenceFieldUpdater.newUpdater(ConcurrentAutoTable.class,CAT.class, "_cat");
   private boolean CAS_cat( CAT oldcat, CAT newcat ) { return _catUpdater.compareAndSet(this,oldcat,newcat); }
 
-  // Hash spreader
-  private static final int hash() {
-    int h = System.identityHashCode(Thread.currentThread());
-    // You would think that System.identityHashCode on the current thread
-    // would be a good hash fcn, but actually on SunOS 5.8 it is pretty lousy
-    // in the low bits.
-    h ^= (h>>>20) ^ (h>>>12);   // Bit spreader, borrowed from Doug Lea
-    h ^= (h>>> 7) ^ (h>>> 4);
-    return h<<2;                // Pad out cache lines.  The goal is to avoid cache-line contention
+  // Sum of the current CAT.  A table retired (folded into a newer one) while
+  // being summed has had counts moved out from under the sum, so the newer
+  // table is summed instead.
+  private long sum( boolean estimate ) {
+    CAT cat = cat();
+    while( true ) {
+      long sum = estimate ? cat.estimate_sum(0) : cat.sum(0);
+      if( cat._newer == null ) return sum;
+      cat = _cat;
+    }
+  }
+
+  // The current CAT, for readers.  Readers are also where a table grown
+  // during a load spike gets shrunk again: if no add has collided for a
+  // while, the table is halved.  The check reads the clock, so it is made
+  // only once every few sums walked over the stripes; a read served from
+  // the sum cache, as most estimate_get calls are, stays a plain load.  A
+  // table nobody writes to is never walked and keeps its size until the
+  // next write; that costs memory, not time.
+  private CAT cat() {
+    CAT cat = _cat;
+    if( !_fixed && cat._walks >= CAT.WALKS_PER_CHECK ) {
+      cat.maybe_shrink(this);
+      cat = _cat;               // Possibly the shrunken table
+    }
+    return cat;
+  }
+
+  // --- Thread probe ---
+  // Each thread picks its slot with a per-thread probe value, the same one
+  // ThreadLocalRandom and LongAdder keep in java.lang.Thread.  Reading it is
+  // a plain load, where System.identityHashCode costs a call and may inflate
+  // the Thread's header.  A thread that loses a CAS re-hashes its probe and
+  // so moves to another slot, instead of staying collided with the winner
+  // until the whole table doubles.  JVMs without the field fall back to a
+  // ThreadLocal.
+  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
+  private static final long _probe_offset;
+  static {                      // <clinit>
+    long off = -1;
+    try {
+      off = _unsafe.objectFieldOffset(Thread.class.getDeclaredField("threadLocalRandomProbe"));
+    } catch( Exception e ) {
+    }
+    _probe_offset = off;
+  }
+  private static final ThreadLocal<int[]> _probes = new ThreadLocal<int[]>() {
+    @Override protected int[] initialValue() {
+      int h = System.identityHashCode(Thread.currentThread());
+      return new int[] { h == 0 ? 1 : h };
+    } };
+
+  // Current thread's probe, never zero
+  static int probe() {
+    if( _probe_offset == -1 ) return _probes.get()[0];
+    int p = _unsafe.getInt(Thread.currentThread(),_probe_offset);
+    if( p != 0 ) return p;
+    ThreadLocalRandom.current(); // Forces the probe to be initialized
+    return _unsafe.getInt(Thread.currentThread(),_probe_offset);
+  }
+
+  // Re-hash the current thread's probe after a collision; returns the new probe
+  static int advance_probe( int p ) {
+    p ^= p << 13;               // xorshift, as LongAdder does
+    p ^= p >>> 17;
+    p ^= p << 5;
+    if( _probe_offset == -1 ) _probes.get()[0] = p;
+    else _unsafe.putInt(Thread.currentThread(),_probe_offset,p);
+    return p;
   }
 
   // --- CAT -----------------------------------------------------------------
@@ -129,81 +301,245 @@ public class ConcurrentAutoTable implements Serializable {
     static private final AtomicLongFieldUpdater<CAT> _resizerUpdater =
       AtomicLongFieldUpdater.newUpdater(CAT.class, "_resizers");
 
-    private final CAT _next;
+    // The older, smaller table this one replaced.  Late updates may still
+    // land there until it has been folded into this table; then it is null.
+    private volatile CAT _next;
+    // The table this one was folded into, once retired
+    private volatile CAT _newer;
     private volatile long _sum_cache;
     private volatile long _fuzzy_sum_cache;
     private volatile long _fuzzy_time;
     private static final int MAX_SPIN=2;
-    private long[] _t;            // Power-of-2 array of longs
+    // Shrink once a table has seen no collisions for this long
+    private static final long IDLE_MILLIS = 1000;
+    private volatile long _idle_start; // Start of the current idle window
+    private int _collisions;           // Failed CASes in this window; racy is fine
+    // Check for idleness once per this many sums walked over the stripes
+    static final int WALKS_PER_CHECK = 16;
+    private int _walks;                // Sums walked since the last check; racy is fine
+    // Array of stripes+1 lines of (1<<_shift) longs.  Only the first long of
+    // each line is used, so each stripe has a cache line to itself; the rest
+    // is padding.  The first line is all padding: it shares the array header,
+    // which every add reads for the length, so no stripe may live there.
+    private long[] _t;
+    private final int _shift;
+    private final int _op;      // SUM, MAX or MIN
 
-    CAT( CAT next, int sz, long init ) {
+    CAT( CAT next, int stripes, int shift, int op, long init ) {
       _next = next;
       _sum_cache = Long.MIN_VALUE;
-      _t = new long[sz];
-      _t[0] = init;
+      _shift = shift;
+      _op = op;
+      _t = new long[(stripes+1)<<shift];
+      if( op != SUM )           // Empty stripes hold the identity
+        for( int i=2<<shift; i<_t.length; i+=1<<shift )
+          _t[i] = identity(op);
+      _t[1<<shift] = init;
+      _idle_start = System.currentTimeMillis();
+    }
+
+    // Number of stripes, a power of 2; the first line is padding
+    int stripes() { return (_t.length>>_shift)-1; }
+    // Index of the stripe picked by 'probe', skipping the padding line
+    private int idx( long[] t, int probe ) {
+      return ((probe & ((t.length>>_shift)-2))+1)<<_shift;
     }
     
-    // Only add 'x' to some slot in table, hinted at by 'hash', if bits under
-    // the mask are all zero.  The sum can overflow or 'x' can contain bits in
-    // the mask.  Value is CAS'd so no counts are lost.  The CAS is attempted
-    // ONCE.
-    public long add_if_mask( long x, long mask, int hash, ConcurrentAutoTable master ) {
+    // Only add 'x' to some slot in table, hinted at by the thread's 'probe',
+    // if bits under the mask are all zero.  The sum can overflow or 'x' can
+    // contain bits in the mask.  Value is CAS'd so no counts are lost.  The
+    // CAS is attempted ONCE per slot: a failed CAS re-hashes the thread's
+    // probe and retries in another slot.  Only a thread that keeps
+    // colliding wherever it moves grows the table.  Every long is a legal
+    // slot value; a table retired under the add is found via _newer after
+    // the CAS, and the count moved on by hand (see move_out).
+    public long add_if_mask( long x, long mask, int probe, ConcurrentAutoTable master ) {
+      if( _op != SUM ) return accumulate(x,probe,master);
+      if( _newer != null )      // Table retired?  Go to the newer table
+        return master._cat.add_if_mask(x,mask,probe,master);
       long[] t = _t;
-      int idx = hash & (t.length-1);
+      int idx = idx(t,probe);
       // Peel loop; try once fast
       long old = t[idx];
       boolean ok = CAS( t, idx, old&~mask, old+x );
       if( _sum_cache != Long.MIN_VALUE )
         _sum_cache = Long.MIN_VALUE; // Blow out cache
-      if( ok ) return old;      // Got it
+      if( ok ) {                // Got it
+        if( _newer != null ) move_out(t,idx,master);
+        return old;
+      }
       if( (old&mask) != 0 ) return old; // Failed for bit-set under mask
-      // Try harder
+      // Try harder, moving to a fresh slot after each failure
       int cnt=0;
       while( true ) {
+        _collisions++;
+        probe = advance_probe(probe);
+        idx = idx(t,probe);
         old = t[idx];
         if( (old&mask) != 0 ) return old; // Failed for bit-set under mask
         if( CAS( t, idx, old, old+x ) ) break; // Got it!
         cnt++;
       }
-      if( cnt < MAX_SPIN ) return old; // Allowable spin loop count
-      if( t.length >= 1024*1024 ) return old; // too big already
+      if( _newer != null ) move_out(t,idx,master);
+      else if( cnt >= MAX_SPIN ) grow(master); // More than the allowable spin loop count
+      return old;
+    }
+
+    // The table was retired around a successful add, and the fold may have
+    // already swept the slot.  Swap the slot to zero and carry what it held
+    // to the current table.  The fold swaps slots to zero the same way, so
+    // each count is moved by exactly one thread: whichever swaps it out.
+    private void move_out( long[] t, int idx, ConcurrentAutoTable master ) {
+      long v = t[idx];
+      while( !CAS(t,idx,v,0) )
+        v = t[idx];
+      if( v != 0 )
+        master.add(v);          // Lands in the current table, whichever it is
+    }
+
+    // Combine 'x' into some slot, for MAX and MIN.  A slot already at or
+    // past 'x' needs no write at all, so a settled high-water mark is read
+    // shared by every thread.  The operation is idempotent, so when the
+    // table was retired under us we simply repeat it in the newer table
+    // rather than moving counts by hand; see move_out.
+    private long accumulate( long x, int probe, ConcurrentAutoTable master ) {
+      long[] t = _t;
+      int idx = idx(t,probe);
+      int cnt=0;
+      long old;
+      while( true ) {
+        old = t[idx];
+        long nnn = combine(_op,old,x);
+        if( nnn == old ) break; // Nothing to do
+        if( CAS( t, idx, old, nnn ) ) {
+          if( _sum_cache != Long.MIN_VALUE )
+            _sum_cache = Long.MIN_VALUE; // Blow out cache
+          break;                // Got it!
+        }
+        _collisions++;
+        cnt++;
+        probe = advance_probe(probe);
+        idx = idx(t,probe);
+      }
+      if( _newer != null )      // Retired?  Maybe missed by the fold; repeat
+        return master._cat.accumulate(x,probe,master);
+      if( cnt >= MAX_SPIN ) grow(master); // More than the allowable spin loop count
+      return old;
+    }
+
+    // Too much contention; double array size in an effort to reduce contention
+    private void grow( ConcurrentAutoTable master ) {
+      if( master._fixed ) return;
+      final long[] t = _t;
+      if( t.length >= 1024*1024 ) return; // too big already
 
-      // Too much contention; double array size in an effort to reduce contention
       long r = _resizers;
       int newbytes = (t.length<<1)<<3/*word to bytes*/;
       while( !_resizerUpdater.compareAndSet(this,r,r+newbytes) )
         r = _resizers;
       r += newbytes;
-      if( master._cat != this ) return old; // Already doubled, don't bother
+      if( master._cat != this ) return; // Already doubled, don't bother
       if( (r>>17) != 0 ) {      // Already too much allocation attempts?
         // TODO - use a wait with timeout, so we'll wakeup as soon as the new
         // table is ready, or after the timeout in any case.  Annoyingly, this
         // breaks the non-blocking property - so for now we just briefly sleep.
         //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
         try { Thread.sleep(r>>17); } catch( InterruptedException e ) { }
-        if( master._cat != this ) return old;
+        if( master._cat != this ) return;
       }
 
-      CAT newcat = new CAT(this,t.length*2,0);
+      CAT newcat = new CAT(this,stripes()*2,_shift,_op,identity(_op));
       // Take 1 stab at updating the CAT with the new larger size.  If this
       // fails, we assume some other thread already expanded the CAT - so we
       // do not need to retry until it succeeds.
-      master.CAS_cat(this,newcat);
-      return old;
+      if( master.CAS_cat(this,newcat) )
+        newcat.fold(master);
+    }
+
+    // Fold the retired _next table into the master's current table: swap
+    // each slot to the identity, moving its value across, then drop the
+    // link so sums no longer walk the old table.  Counts in flight are
+    // briefly missing from a concurrent sum, which walks the new table
+    // before the old, but never counted twice nor lost: a writer landing
+    // in the old table after its slot was swept sees _newer and moves its
+    // count itself (see move_out, accumulate).  Swapping rather than copying
+    // means a value drained by a racing sum_then_reset is not carried across
+    // and reported a second time.
+    private void fold( ConcurrentAutoTable master ) {
+      final CAT old = _next;
+      if( old == null ) return;
+      old._newer = this;        // Readers of the old table come here instead
+      old._sum_cache = Long.MIN_VALUE; // Its cached sum is about to go stale
+      final long[] t = old._t;
+      final long zero = identity(_op);
+      for( int i=1<<_shift; i<t.length; i+=1<<_shift ) {
+        long v = t[i];
+        while( !CAS(t,i,v,zero) )
+          v = t[i];
+        if( v != zero )
+          master.add(v);        // Lands in the current table, whichever it is
+      }
+      _next = null;
+      _sum_cache = Long.MIN_VALUE; // May have counted moved counts twice
+    }
+
+    // Halve the table if no add has collided during the last IDLE_MILLIS.
+    private void maybe_shrink( ConcurrentAutoTable master ) {
+      _walks = 0;
+      if( stripes() == 1 ) return; // Nothing to shrink
+      long now = System.currentTimeMillis();
+      if( now - _idle_start < IDLE_MILLIS ) return;
+      int collisions = _collisions;
+      _collisions = 0;
+      _idle_start = now;        // Start a fresh window
+      if( collisions != 0 || _next != null || master._cat != this ) return;
+      CAT newcat = new CAT(this,stripes()>>1,_shift,_op,identity(_op));
+      if( master.CAS_cat(this,newcat) )
+        newcat.fold(master);
     }
     
 
     // Return the current sum of all things in the table, stripping off mask
     // before the add.  Writers can be updating the table furiously, so the
-    // sum is only locally accurate.
+    // sum is only locally accurate.  Counts only move from the older table
+    // to this one, so this table is walked first: a count moved during the
+    // sum is then missed, never counted twice.  A sum taken while a fold is
+    // moving counts is not cached: only a table with no older table, and
+    // not itself retired, caches its sum.
     public long sum( long mask ) {
       long sum = _sum_cache;
-      if( sum != Long.MIN_VALUE ) return sum;
-      sum = _next == null ? 0 : _next.sum(mask); // Recursively get cached sum
+      if( sum != Long.MIN_VALUE && _newer == null ) return sum;
+      final CAT next = _next;   // Read before the walk; decides caching
+      sum = identity(_op);
       long[] t = _t;
-      for( int i=0; i<t.length; i++ )
-        sum += t[i]&(~mask);
-      _sum_cache = sum;         // Cache includes recursive counts
+      for( int i=1<<_shift; i<t.length; i+=1<<_shift ) {
+        long v = t[i];
+        if( _op != SUM ) sum = combine(_op,sum,v);
+        else sum += v&(~mask);
+      }
+      if( next != null )        // Recursively get cached sum
+        sum = combine(_op,sum,next.sum(mask));
+      if( next == null && _newer == null ) {
+        _sum_cache = sum;
+        _walks++;               // Counts towards the next idle check
+      }
+      return sum;
+    }
+
+    // Swap every slot to zero, returning the sum of the old values.  Older
+    // tables may still be taking late updates, so they are drained as well.
+    public long sum_then_reset() {
+      final long zero = identity(_op);
+      long sum = _next == null ? zero : _next.sum_then_reset();
+      long[] t = _t;
+      for( int i=1<<_shift; i<t.length; i+=1<<_shift ) {
+        long old = t[i];
+        while( !CAS(t,i,old,zero) )
+          old = t[i];
+        sum = combine(_op,sum,old);
+      }
+      if( _sum_cache != Long.MIN_VALUE )
+        _sum_cache = Long.MIN_VALUE; // Blow out cache
       return sum;
     }
 
@@ -211,7 +547,7 @@ public class ConcurrentAutoTable implements Serializable {
     // the cache.
     public long estimate_sum( long mask ) {
       // For short tables, just do the work
-      if( _t.length <= 64 ) return sum(mask);
+      if( stripes() <= 64 ) return sum(mask);
       // For bigger tables, periodically freshen a cached value
       long millis = System.currentTimeMillis();
       if( _fuzzy_time != millis ) { // Time marches on?
@@ -221,10 +557,20 @@ public class ConcurrentAutoTable implements Serializable {
       return _fuzzy_sum_cache;  // Return cached sum
     }
 
+    // Sum stripping off mask, without using or filling the cache.
+    public long fresh_sum( long mask ) {
+      final CAT next = _next;
+      long sum = 0;
+      long[] t = _t;
+      for( int i=1<<_shift; i<t.length; i+=1<<_shift )
+        sum += t[i]&(~mask);
+      return next == null ? sum : sum + next.fresh_sum(mask);
+    }
+
     // Update all table slots with CAS.
     public void all_or ( long mask ) {
       long[] t = _t;
-      for( int i=0; i<t.length; i++ ) {
+      for( int i=1<<_shift; i<t.length; i+=1<<_shift ) {
         boolean done = false;
         while( !done ) {
           long old = t[i];
@@ -238,7 +584,7 @@ public class ConcurrentAutoTable implements Serializable {
     
     public void all_and( long mask ) {
       long[] t = _t;
-      for( int i=0; i<t.length; i++ ) {
+      for( int i=1<<_shift; i<t.length; i+=1<<_shift ) {
         boolean done = false;
         while( !done ) {
           long old = t[i];
@@ -253,7 +599,7 @@ public class ConcurrentAutoTable implements Serializable {
     // Set/stomp all table slots.  No CAS.
     public void all_set( long val ) {
       long[] t = _t;
-      for( int i=0; i<t.length; i++ ) 
+      for( int i=1<<_shift; i<t.length; i+=1<<_shift )
         t[i] = val;
       if( _next != null ) _next.all_set(val);
       if( _sum_cache != Long.MIN_VALUE )
@@ -264,8 +610,8 @@ public class ConcurrentAutoTable implements Serializable {
     
     public void print() { 
       long[] t = _t;
-      System.out.print("[sum="+_sum_cache+","+t[0]);
-      for( int i=1; i<t.length; i++ ) 
+      System.out.print("[sum="+_sum_cache+","+t[1<<_shift]);
+      for( int i=2<<_shift; i<t.length; i+=1<<_shift )
         System.out.print(","+t[i]);
       System.out.print("]");
       if( _next != null ) _next.print();
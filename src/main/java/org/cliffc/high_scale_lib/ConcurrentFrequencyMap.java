@@ -0,0 +1,649 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.ObjLongConsumer;
+import sun.misc.Unsafe;
+
+/**
+ * A lock-free map from keys to <strong>primitive long counts</strong>, for
+ * counting events by key over very many keys.  It is the {@link
+ * NonBlockingHashMap} algorithm with the value array held as a {@code
+ * long[]}, as in {@link NonBlockingHashMapLongLong}: a count costs one array
+ * slot, not a {@link Counter} (and its {@link ConcurrentAutoTable}) per key,
+ * and {@link #addAndGet} allocates nothing outside of a table resize.  The
+ * first add for a key inserts it; there is no putIfAbsent race to lose.
+ *
+ * <p>All operations are non-blocking and multi-thread safe, including the
+ * incremental table resize.  {@link #snapshotThenReset} removes each key
+ * with an atomic swap of its count, so an add racing with it is counted
+ * either in the returned snapshot or afterwards, never lost.  Other bulk
+ * reads ({@link #snapshot}, {@link #topK}, {@link #forEach}) are weakly
+ * consistent, as the iterators of {@link NonBlockingHashMap} are.
+ *
+ * <p>Counts must lie strictly between {@link
+ * NonBlockingHashMapLongLong#MIN_VALUE} and {@link
+ * NonBlockingHashMapLongLong#MAX_VALUE}, roughly +/- 2^62.  Absent keys
+ * count as 0.  Use {@link ConcurrentFrequencyMapLong} for primitive long keys.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ * @param <TypeK> the type of keys counted
+ */
+public class ConcurrentFrequencyMap<TypeK> implements Serializable {
+
+  private static final long serialVersionUID = 1234123412341234126L;
+
+  private static final int REPROBE_LIMIT=10; // Too many reprobes then force a table-resize
+
+  // --- Bits to allow Unsafe access to arrays
+  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
+  private static final int _Obase  = _unsafe.arrayBaseOffset(Object[].class);
+  private static final int _Oscale = _unsafe.arrayIndexScale(Object[].class);
+  private static long rawIndex(final Object[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Obase + idx * _Oscale;
+  }
+  private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
+  private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
+  private static long rawIndex(final long[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Lbase + idx * _Lscale;
+  }
+
+  // --- Bits to allow Unsafe CAS'ing of the CHM field
+  private static final long _chm_offset;
+  static {                      // <clinit>
+    try {
+      _chm_offset = _unsafe.objectFieldOffset(ConcurrentFrequencyMap.class.getDeclaredField("_chm"));
+    } catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+  }
+  private final boolean CAS_chm( final CHM old, final CHM nnn ) {
+    return _unsafe.compareAndSwapObject(this, _chm_offset, old, nnn );
+  }
+
+  // --- Count words ---------------------------------------------------------
+  // Counts are held as encoded words exactly as in NonBlockingHashMapLongLong:
+  // a count C is stored as (C<<1)^Long.MIN_VALUE, leaving the low bit free to
+  // be the 'prime' bit and the words 0 and -2 free for EMPTY and TOMBSTONE.
+  private static final long EMPTY = 0L;
+  private static final long TOMBSTONE = -2L;
+  private static final long TOMBPRIME = TOMBSTONE|1;
+  private static final long NO_MATCH_OLD = 1L;
+
+  private static boolean is_prime( final long w ) { return (w&1) != 0; }
+  private static long prime  ( final long w ) { return w |  1; }
+  private static long unprime( final long w ) { return w & ~1L; }
+
+  // Encode a count as a word, throwing for counts out of range.
+  private static long word( final long cnt ) {
+    if( cnt <= NonBlockingHashMapLongLong.MIN_VALUE || cnt >= NonBlockingHashMapLongLong.MAX_VALUE )
+      throw new IllegalArgumentException("count out of range: "+cnt);
+    return (cnt<<1)^Long.MIN_VALUE;
+  }
+  // Decode a word back to a count; absent words decode as 0.
+  private static long count( final long w ) {
+    assert !is_prime(w);
+    return (w == EMPTY || w == TOMBSTONE) ? 0 : (w^Long.MIN_VALUE)>>1;
+  }
+  private static boolean absent( final long w ) { return w == EMPTY || w == TOMBSTONE; }
+
+  // Key slots slammed by copy_slot, to stop fresh inserts in an old table.
+  // Never equal to a user key, and never handed to a user's equals().
+  private static final Object DEAD_KEY = new Object();
+
+  // Spread bits to regularize both segment and index locations; see
+  // NonBlockingHashMap.hash.
+  private static final int hash(final Object key) {
+    int h = key.hashCode();     // The real hashCode call
+    h += (h <<  15) ^ 0xffffcd7d;
+    h ^= (h >>> 10);
+    h += (h <<   3);
+    h ^= (h >>>  6);
+    h += (h <<   2) + (h << 14);
+    return h ^ (h >>> 16);
+  }
+
+  // Check for key equality as NonBlockingHashMap.keyeq does: pointer compare
+  // first, then memoized hashes, and finally the user's equals.
+  private static boolean keyeq( Object K, Object key, int[] hashes, int idx, int fullhash ) {
+    return
+      K==key ||
+      ((hashes[idx] == 0 || hashes[idx] == fullhash) &&
+       K != DEAD_KEY &&
+       key.equals(K));
+  }
+
+  // --- The Hash Table --------------------
+  private transient volatile CHM _chm;
+
+  // Time since last resize
+  private transient long _last_resize_milli;
+
+  // --- Minimum table size ----------------
+  private static final int MIN_SIZE_LOG=4;             //
+  private static final int MIN_SIZE=(1<<MIN_SIZE_LOG); // Must be power of 2
+
+  private static final int reprobe_limit( int len ) {
+    return REPROBE_LIMIT + (len>>2);
+  }
+
+  // --- ConcurrentFrequencyMap ----------------------------------------------
+  // Constructors
+  /** Create a new ConcurrentFrequencyMap with default minimum size
+   *  (currently set to 16 keys). */
+  public ConcurrentFrequencyMap( ) { this(MIN_SIZE); }
+
+  /** Create a new ConcurrentFrequencyMap with initial room for the given
+   *  number of keys, thus avoiding internal resizing operations to reach an
+   *  appropriate size.  The initial size will be rounded up internally to
+   *  the next larger power of 2. */
+  public ConcurrentFrequencyMap( final int initial_sz ) { initialize(initial_sz); }
+
+  private final void initialize( final int initial_sz ) {
+    if( initial_sz < 0 ) throw new IllegalArgumentException();
+    int i;                      // Convert to next largest power-of-2
+    for( i=MIN_SIZE_LOG; (1<<i) < initial_sz; i++ ) ;
+    _chm = new CHM(this,new Counter(),i);
+    _last_resize_milli = System.currentTimeMillis();
+  }
+
+  // --- wrappers ------------------------------------------------------------
+
+  /** Returns the number of keys counted.
+   *  @return the number of keys counted */
+  public int     size       ( )            { return _chm.size(); }
+  /** Returns <tt>size() == 0</tt>.
+   *  @return <tt>size() == 0</tt> */
+  public boolean isEmpty    ( )            { return size() == 0; }
+  /** Tests if the key is counted, even if its count is 0.
+   *  @return <tt>true</tt> if the key is in the table */
+  public boolean containsKey( Object key ) { return !absent(_chm.get_impl(key,hash(key))); }
+
+  /** Returns the count for the key, or 0 if it is not counted.
+   *  <p>No allocation is done.
+   *  @throws NullPointerException if the key is null */
+  public long    get        ( Object key ) { return count(_chm.get_impl(key,hash(key))); }
+
+  /** Atomically add {@code delta} to the count for {@code key}.  An absent
+   *  key counts as 0, so the first call inserts {@code delta}.  No
+   *  allocation is done (short of a table resize).
+   *  @return the updated count
+   *  @throws NullPointerException if the key is null
+   *  @throws IllegalArgumentException if the sum is out of range; the map is
+   *          left unchanged */
+  public long addAndGet( TypeK key, long delta ) {
+    final int fullhash = hash(key);
+    while( true ) {
+      final long oldw = _chm.get_impl(key,fullhash);
+      final long newc = count(oldw) + delta;
+      final long expw = absent(oldw) ? TOMBSTONE : oldw;
+      if( _chm.putIfMatch( key, fullhash, word(newc), expw ) == expw )
+        return newc;
+    }
+  }
+
+  /** Atomically add 1 to the count for {@code key}.
+   *  @return the updated count */
+  public long incrementAndGet( TypeK key ) { return addAndGet(key,1); }
+
+  /** Removes the key, returning its count at the moment of removal.
+   *  @return the count removed, or 0 if the key was not counted
+   *  @throws NullPointerException if the key is null */
+  public long remove( Object key ) { return count(_chm.putIfMatch( key, hash(key), TOMBSTONE, NO_MATCH_OLD )); }
+
+  /** Removes all of the keys from this map. */
+  public void clear() {         // Smack a new empty table down
+    CHM newchm = new CHM(this,new Counter(),MIN_SIZE_LOG);
+    while( !CAS_chm(_chm,newchm) ) // Spin until the clear works
+      ;
+  }
+
+  // --- help_copy -----------------------------------------------------------
+  // Help along an existing resize operation.  See NonBlockingHashMapLongLong.
+  private final void help_copy( ) {
+    CHM topchm = _chm;
+    if( topchm._newchm == null ) return; // No copy in-progress
+    topchm.help_copy_impl(false);
+  }
+
+  // --- Bulk reads ----------------------------------------------------------
+
+  /** Call {@code action} with each key and its count.  Weakly consistent:
+   *  every key counted when the call starts and still counted when the scan
+   *  reaches it is visited once, with its count at that moment. */
+  @SuppressWarnings("unchecked")
+  public void forEach( ObjLongConsumer<? super TypeK> action ) {
+    CHM topchm;
+    while( true ) {             // Verify no table-copy-in-progress
+      topchm = _chm;
+      if( topchm._newchm == null ) break;
+      topchm.help_copy_impl(true); // Cannot scan mid-copy; finish it first
+    }
+    final Object[] keys = topchm._keys;
+    for( int i=0; i<keys.length; i++ ) {
+      final Object K = keys[i];
+      if( K == null || K == DEAD_KEY ) continue;
+      final long w = _chm.get_impl(K,hash(K));
+      if( !absent(w) ) action.accept((TypeK)K,count(w));
+    }
+  }
+
+  /** Return a copy of the keys and counts. */
+  public Map<TypeK,Long> snapshot() {
+    final HashMap<TypeK,Long> res = new HashMap<TypeK,Long>();
+    forEach((k,c) -> res.put(k,c));
+    return res;
+  }
+
+  /** Return the keys and counts, removing each key as its count is read.
+   *  Each removal atomically swaps the count out, so adds racing with this
+   *  call are counted in the result or left in the map, never lost.
+   *  Intended for per-interval reporting. */
+  public Map<TypeK,Long> snapshotThenReset() {
+    final HashMap<TypeK,Long> res = new HashMap<TypeK,Long>();
+    forEach((k,c) -> {
+        final long w = _chm.putIfMatch( k, hash(k), TOMBSTONE, NO_MATCH_OLD );
+        if( !absent(w) ) res.put(k,count(w));
+      });
+    return res;
+  }
+
+  /** Return up to {@code k} keys with the largest counts, largest first.
+   *  Ties are broken arbitrarily.  Costs a scan of the table and a heap of
+   *  {@code k} entries.
+   *  @throws IllegalArgumentException if k is negative */
+  public List<Map.Entry<TypeK,Long>> topK( final int k ) {
+    if( k < 0 ) throw new IllegalArgumentException(""+k);
+    final PriorityQueue<Map.Entry<TypeK,Long>> heap = // Min-heap of the best k
+      new PriorityQueue<Map.Entry<TypeK,Long>>(Math.max(1,k),(a,b) -> Long.compare(a.getValue(),b.getValue()));
+    if( k == 0 ) return new ArrayList<Map.Entry<TypeK,Long>>();
+    forEach((key,c) -> {
+        if( heap.size() < k ) heap.add(new AbstractMap.SimpleImmutableEntry<TypeK,Long>(key,c));
+        else if( c > heap.peek().getValue() ) {
+          heap.poll();
+          heap.add(new AbstractMap.SimpleImmutableEntry<TypeK,Long>(key,c));
+        }
+      });
+    final ArrayList<Map.Entry<TypeK,Long>> res = new ArrayList<Map.Entry<TypeK,Long>>(heap);
+    Collections.sort(res,(a,b) -> Long.compare(b.getValue(),a.getValue()));
+    return res;
+  }
+
+  /** Returns a string of the form <tt>{k1=c1, k2=c2}</tt>.  */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder().append('{');
+    forEach((k,c) -> {
+        if( sb.length() > 1 ) sb.append(", ");
+        sb.append(k).append('=').append(c);
+      });
+    return sb.append('}').toString();
+  }
+
+  // --- CHM -----------------------------------------------------------------
+  // The control structure for the ConcurrentFrequencyMap.  The same as the
+  // CHM of NonBlockingHashMapLongLong, with Object keys and memoized hashes.
+  private static final class CHM implements Serializable {
+    private static final long serialVersionUID = 1234123412341234126L;
+    // Back-pointer to top-level structure
+    final ConcurrentFrequencyMap<?> _top;
+
+    // Size in active keys
+    private final Counter _size;
+    public int size () { return (int)_size.get(); }
+
+    // Count of used slots, to tell when table is full of dead unusable slots
+    private final Counter _slots;
+
+    // New mappings, used during resizing.  Monotonically transits from null
+    // to set (once).
+    volatile CHM _newchm;
+    private static final AtomicReferenceFieldUpdater<CHM,CHM> _newchmUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(CHM.class,CHM.class, "_newchm");
+    boolean CAS_newchm( CHM newchm ) {
+      return _newchmUpdater.compareAndSet(this,null,newchm);
+    }
+    // Count of threads attempting an initial resize
+    volatile long _resizers;
+    private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
+
+    // --- key,val -------------------------------------------------------------
+    private final boolean CAS_key( int idx, Object old, Object key ) {
+      return _unsafe.compareAndSwapObject( _keys, rawIndex(_keys, idx), old, key );
+    }
+    private final boolean CAS_val( int idx, long old, long val ) {
+      return _unsafe.compareAndSwapLong( _vals, rawIndex(_vals, idx), old, val );
+    }
+
+    final Object[] _keys;
+    final int   [] _hashes;     // Memoized key hashes; 0 until set
+    final long  [] _vals;       // Count words, not counts
+
+    CHM( final ConcurrentFrequencyMap<?> top, Counter size, final int logsize ) {
+      _top = top;
+      _size = size;
+      _slots= new Counter();
+      _keys  = new Object[1<<logsize];
+      _hashes= new int   [1<<logsize];
+      _vals  = new long  [1<<logsize];
+    }
+
+    // --- get_impl ----------------------------------------------------------
+    // Never returns a Prime nor a Tombstone; a miss is EMPTY.
+    private final long get_impl( final Object key, final int fullhash ) {
+      final int len = _keys.length;
+      int idx = fullhash & (len-1); // First key hash
+
+      int reprobe_cnt=0;
+      while( true ) {
+        final Object K = _keys[idx]; // Get key   before volatile read, could be null
+        final long   V = _vals[idx]; // Get value before volatile read, could be EMPTY or Tombstone or Prime
+        if( K == null ) return EMPTY; // A clear miss
+
+        // Volatile-read before the key compare, lest we read an uninitialized
+        // Key body; see NonBlockingHashMap.get_impl.
+        final CHM newchm = _newchm;
+        if( keyeq(K,key,_hashes,idx,fullhash) ) {
+          if( !is_prime(V) )    // No copy?
+            return V == TOMBSTONE ? EMPTY : V;
+          // Key hit - but slot is (possibly partially) copied to the new table.
+          return copy_slot_and_check(idx,true).get_impl(key,fullhash);
+        }
+        // Too many reprobes, or a dead key (only found mid-copy)?
+        if( ++reprobe_cnt >= reprobe_limit(len) || K == DEAD_KEY )
+          return newchm == null // Table copy in progress?
+            ? EMPTY             // Nope!  A clear miss
+            : copy_slot_and_check(idx,true).get_impl(key,fullhash);
+
+        idx = (idx+1)&(len-1);  // Reprobe by 1!
+      }
+    }
+
+    // --- putIfMatch ---------------------------------------------------------
+    // Returns the old count word, always TOMBSTONE for an absent key (EMPTY
+    // only if passed an expected EMPTY, from copy_slot).  The put worked if
+    // the returned word equals expVal or expVal is NO_MATCH_OLD.
+    private final long putIfMatch( final Object key, final int fullhash, final long putval, final long expVal ) {
+      assert putval != EMPTY;
+      assert !is_prime(putval);
+      final int len = _keys.length;
+      int idx = fullhash & (len-1); // The first key
+
+      // ---
+      // Key-Claim stanza: spin till we can claim a Key (or force a resizing).
+      int reprobe_cnt=0;
+      Object K = null;
+      long V = EMPTY;
+      CHM newchm = null;
+      while( true ) {           // Spin till we get a Key slot
+        V = _vals[idx];         // Get old value
+        K = _keys[idx];         // Get current key
+        if( K == null ) {       // Slot is free?
+          // Found an empty Key slot - which means this Key has never been in
+          // this table.  No need to put a Tombstone - the Key is not here!
+          if( putval == TOMBSTONE ) return putval;
+          if( CAS_key(idx, null, key) ) { // Claim slot for Key
+            _slots.add(1);      // Raise key-slots-used count
+            _hashes[idx] = fullhash; // Memoize fullhash
+            break;              // Got it!
+          }
+          K = _keys[idx];       // CAS failed, get updated value
+          assert K != null;     // If keys[idx] is null, CAS shoulda worked
+        }
+        newchm = _newchm;       // VOLATILE READ before key compare
+        if( keyeq(K,key,_hashes,idx,fullhash) )
+          break;                // Got it!
+
+        // get and put must have the same key lookup logic!  Lest 'get' give
+        // up looking too soon.
+        if( ++reprobe_cnt >= reprobe_limit(len) || K == DEAD_KEY ) {
+          newchm = resize();
+          if( expVal != EMPTY ) _top.help_copy(); // help along an existing copy
+          return newchm.putIfMatch(key,fullhash,putval,expVal);
+        }
+
+        idx = (idx+1)&(len-1);  // Reprobe!
+      }
+
+      // ---
+      // Found the proper Key slot, now update the matching Value slot.
+      if( putval == V ) return V; // Fast cutout for no-change
+
+      if( (V == EMPTY && tableFull(reprobe_cnt,len)) || is_prime(V) ) {
+        resize();               // Force the new table copy to start
+        return copy_slot_and_check(idx,expVal != EMPTY).putIfMatch(key,fullhash,putval,expVal);
+      }
+
+      // ---
+      // We are finally prepared to update the existing table
+      while( true ) {
+        assert !is_prime(V);
+        // Must match old, and we do not?  Then bail out now.  EMPTY and
+        // TOMBSTONE both mean absent, and match each other.
+        if( expVal != NO_MATCH_OLD &&
+            V != expVal &&
+            !(V==EMPTY && expVal == TOMBSTONE) )
+          return V == EMPTY ? TOMBSTONE : V;
+
+        if( CAS_val(idx, V, putval ) ) {
+          // Table-copy calls do not increase the number of live keys
+          if( expVal != EMPTY ) {
+            if(  absent(V) && putval != TOMBSTONE ) _size.add( 1);
+            if( !absent(V) && putval == TOMBSTONE ) _size.add(-1);
+          }
+          return (V==EMPTY && expVal!=EMPTY) ? TOMBSTONE : V;
+        }
+        V = _vals[idx];         // CAS failed; get new value
+        if( is_prime(V) )
+          return copy_slot_and_check(idx,expVal != EMPTY).putIfMatch(key,fullhash,putval,expVal);
+      }
+    }
+
+    // --- tableFull ---------------------------------------------------------
+    // See NonBlockingHashMapLongLong.tableFull
+    private final boolean tableFull( int reprobe_cnt, int len ) {
+      return
+        reprobe_cnt >= REPROBE_LIMIT &&
+        _slots.estimate_get() >= reprobe_limit(len);
+    }
+
+    // --- resize ------------------------------------------------------------
+    // Resizing after too many probes.  Callers must help_copy any in-progress
+    // copy.  A count table usually keeps growing, so this is the
+    // opt-for-space heuristic of NonBlockingHashMapLongLong.
+    private final CHM resize() {
+      CHM newchm = _newchm;     // VOLATILE READ
+      if( newchm != null )      // See if resize is already in progress
+        return newchm;          // Use the new table already
+
+      int oldlen = _keys.length; // Old count of K,V pairs allowed
+      int sz = size();          // Get current table count of active K,V pairs
+      int newsz = sz;           // First size estimate
+      if( sz >= (oldlen>>1) )   // If we are >50% full of keys then...
+        newsz = oldlen<<1;      // Double size
+
+      // Last (re)size operation was very recent?  Then double again.
+      long tm = System.currentTimeMillis();
+      if( newsz <= oldlen &&
+          tm <= _top._last_resize_milli+10000 )
+        newsz = oldlen<<1;
+
+      // Do not shrink, ever
+      if( newsz < oldlen ) newsz = oldlen;
+
+      int log2;
+      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz; log2++ ) ; // Compute log2 of size
+
+      // Limit the number of threads actually allocating memory to a handful
+      long r = _resizers;
+      while( !_resizerUpdater.compareAndSet(this,r,r+1) )
+        r = _resizers;
+      // Size calculation: 2.5 words (K+hash+V) per table entry, plus a handful.
+      int megs = ((((1<<log2)*20)>>3)+32)>>20/*megs*/;
+      if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
+        newchm = _newchm;
+        if( newchm != null )
+          return newchm;
+        try { Thread.sleep(8*megs); } catch( Exception e ) { }
+      }
+      newchm = _newchm;
+      if( newchm != null )
+        return newchm;
+
+      newchm = new CHM(_top,_size,log2);
+
+      if( _newchm != null )     // Another check after the slow allocation
+        return _newchm;
+
+      if( !CAS_newchm( newchm ) ) // NOW a resize-is-in-progress!
+        newchm = _newchm;       // CAS failed?  Reread new table
+      return newchm;
+    }
+
+    // The next part of the table to copy, and the work done so far; see
+    // NonBlockingHashMapLongLong.
+    volatile long _copyIdx = 0;
+    static private final AtomicLongFieldUpdater<CHM> _copyIdxUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyIdx");
+    volatile long _copyDone= 0;
+    static private final AtomicLongFieldUpdater<CHM> _copyDoneUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyDone");
+
+    // --- help_copy_impl ----------------------------------------------------
+    private final void help_copy_impl( final boolean copy_all ) {
+      final CHM newchm = _newchm;
+      assert newchm != null;    // Already checked by caller
+      int oldlen = _keys.length; // Total amount to copy
+      final int MIN_COPY_WORK = Math.min(oldlen,1024); // Limit per-thread work
+
+      int panic_start = -1;
+      int copyidx=-9999;            // Fool javac to think it's initialized
+      while( _copyDone < oldlen ) { // Still needing to copy?
+        if( panic_start == -1 ) { // No panic?
+          copyidx = (int)_copyIdx;
+          while( copyidx < (oldlen<<1) && // 'panic' check
+                 !_copyIdxUpdater.compareAndSet(this,copyidx,copyidx+MIN_COPY_WORK) )
+            copyidx = (int)_copyIdx;     // Re-read
+          if( !(copyidx < (oldlen<<1)) ) // Panic!
+            panic_start = copyidx;       // Record where we started to panic-copy
+        }
+
+        int workdone = 0;
+        for( int i=0; i<MIN_COPY_WORK; i++ )
+          if( copy_slot((copyidx+i)&(oldlen-1)) ) // Made an oldtable slot go dead?
+            workdone++;         // Yes!
+        if( workdone > 0 )      // Report work-done occasionally
+          copy_check_and_promote( workdone );// See if we can promote
+
+        copyidx += MIN_COPY_WORK;
+        if( !copy_all && panic_start == -1 ) // No panic?
+          return;               // Then done copying after doing MIN_COPY_WORK
+      }
+      copy_check_and_promote( 0 ); // See if we can promote
+    }
+
+    // --- copy_slot_and_check -----------------------------------------------
+    // Copy slot 'idx' from the old table to the new table, and return the
+    // new table.  Help along the copy generally unless called from a helper.
+    private final CHM copy_slot_and_check( int idx, boolean should_help ) {
+      assert _newchm != null;
+      if( copy_slot(idx) )      // Copy the desired slot
+        copy_check_and_promote(1); // Record the slot copied
+      if( should_help ) _top.help_copy();
+      return _newchm;
+    }
+
+    // --- copy_check_and_promote --------------------------------------------
+    private final void copy_check_and_promote( int workdone ) {
+      int oldlen = _keys.length;
+      long copyDone = _copyDone;
+      long nowDone = copyDone+workdone;
+      assert nowDone <= oldlen;
+      if( workdone > 0 ) {
+        while( !_copyDoneUpdater.compareAndSet(this,copyDone,nowDone) ) {
+          copyDone = _copyDone;   // Reload, retry
+          nowDone = copyDone+workdone;
+          assert nowDone <= oldlen;
+        }
+      }
+      // Only promote top-level copies
+      if( nowDone == oldlen &&
+          _top._chm == this &&
+          _top.CAS_chm(this,_newchm) ) {
+        _top._last_resize_milli = System.currentTimeMillis();
+      }
+    }
+
+    // --- copy_slot ---------------------------------------------------------
+    // Copy one key and count to the new table.  Returns true if we can
+    // confirm the new table has a count for this old-table slot.  See
+    // NonBlockingHashMapLongLong.copy_slot.
+    private boolean copy_slot( int idx ) {
+      // Blindly set the key slot from null to DEAD_KEY, to eagerly stop
+      // fresh put's from inserting new counts in the old table.
+      Object key;
+      while( (key=_keys[idx]) == null )
+        CAS_key(idx, null, DEAD_KEY);
+
+      // Prime what we see in the old table, to prevent further updates.
+      long oldval = _vals[idx]; // Read OLD table
+      while( !is_prime(oldval) ) {
+        final long box = absent(oldval) ? TOMBPRIME : prime(oldval);
+        if( CAS_val(idx,oldval,box) ) { // CAS down a prime'd version of oldval
+          if( box == TOMBPRIME )
+            return true;        // Absent count is vacuously in the new table
+          oldval = box;         // Record updated oldval
+          break;                // Break loop; oldval is now prime'd by us
+        }
+        oldval = _vals[idx];    // Else try, try again
+      }
+      if( oldval == TOMBPRIME ) return false; // Copy already complete here!
+
+      // Copy the count into the new table, but only if we overwrite an EMPTY.
+      long old_unboxed = unprime(oldval);
+      assert old_unboxed != TOMBSTONE;
+      assert key != DEAD_KEY;
+      final int h = _hashes[idx]; // Memoized, unless its putter is still racing
+      boolean copied_into_new = (_newchm.putIfMatch(key, h == 0 ? hash(key) : h, old_unboxed, EMPTY) == EMPTY);
+
+      // Forever hide the old-table count
+      while( !CAS_val(idx,oldval,TOMBPRIME) )
+        oldval = _vals[idx];
+
+      return copied_into_new;
+    } // end copy_slot
+  } // End of CHM
+
+  // --- writeObject -------------------------------------------------------
+  // Write a ConcurrentFrequencyMap to a stream
+  private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
+    s.defaultWriteObject();     // Write nothing
+    for( Map.Entry<TypeK,Long> e : snapshot().entrySet() ) {
+      s.writeObject(e.getKey());
+      s.writeLong(e.getValue());
+    }
+    s.writeObject(null);        // Sentinel to indicate end-of-data
+  }
+
+  // --- readObject --------------------------------------------------------
+  // Read a ConcurrentFrequencyMap from a stream
+  @SuppressWarnings("unchecked")
+  private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException  {
+    s.defaultReadObject();      // Read nothing
+    initialize(MIN_SIZE);
+    for(;;) {
+      final TypeK K = (TypeK) s.readObject();
+      if( K == null ) break;
+      addAndGet(K,s.readLong()); // Insert with an offical add
+    }
+  }
+
+}  // End ConcurrentFrequencyMap class
@@ -0,0 +1,132 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A lock-free map from <strong>primitive long keys</strong> to primitive long
+ * counts; the long-keyed twin of {@link ConcurrentFrequencyMap}.  Keys and
+ * counts both live inline in the {@code long[]} arrays of a {@link
+ * NonBlockingHashMapLongLong}, so {@link #addAndGet} neither boxes nor
+ * allocates outside of a table resize.
+ *
+ * <p>Counts must lie strictly between {@link
+ * NonBlockingHashMapLongLong#MIN_VALUE} and {@link
+ * NonBlockingHashMapLongLong#MAX_VALUE}.  Absent keys count as 0.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public class ConcurrentFrequencyMapLong implements Serializable {
+
+  private static final long serialVersionUID = 1234123412341234127L;
+
+  private static final long NO_VALUE = NonBlockingHashMapLongLong.NO_VALUE;
+
+  private final NonBlockingHashMapLongLong _map;
+
+  /** Create a new ConcurrentFrequencyMapLong with default minimum size. */
+  public ConcurrentFrequencyMapLong( ) { _map = new NonBlockingHashMapLongLong(); }
+
+  /** Create a new ConcurrentFrequencyMapLong with initial room for the given
+   *  number of keys. */
+  public ConcurrentFrequencyMapLong( final int initial_sz ) { _map = new NonBlockingHashMapLongLong(initial_sz); }
+
+  /** @return the number of keys counted */
+  public int     size       ( )          { return _map.size(); }
+  /** @return <tt>size() == 0</tt> */
+  public boolean isEmpty    ( )          { return _map.isEmpty(); }
+  /** @return <tt>true</tt> if the key is counted, even if its count is 0 */
+  public boolean containsKey( long key ) { return _map.containsKey(key); }
+  /** @return the count for the key, or 0 if it is not counted */
+  public long    get        ( long key ) { return _map.getOrDefault(key,0); }
+
+  /** Atomically add {@code delta} to the count for {@code key}.  An absent
+   *  key counts as 0, so the first call inserts {@code delta}.
+   *  @return the updated count
+   *  @throws IllegalArgumentException if the sum is out of range; the map is
+   *          left unchanged */
+  public long addAndGet( long key, long delta ) { return _map.addAndGet(key,delta); }
+  /** Atomically add 1 to the count for {@code key}.
+   *  @return the updated count */
+  public long incrementAndGet( long key ) { return _map.addAndGet(key,1); }
+
+  /** Removes the key, returning its count at the moment of removal.
+   *  @return the count removed, or 0 if the key was not counted */
+  public long remove( long key ) {
+    final long c = _map.remove(key);
+    return c == NO_VALUE ? 0 : c;
+  }
+
+  /** Removes all of the keys from this map. */
+  public void clear() { _map.clear(); }
+
+  /** Returns an iterator over the counted keys; {@link
+   *  NonBlockingHashMapLongLong.IteratorLong#value} gives each key's count.
+   *  Weakly consistent, as {@link NonBlockingHashMapLongLong#keys}. */
+  public NonBlockingHashMapLongLong.IteratorLong keys() { return _map.keys(); }
+
+  /** Return a copy of the keys and counts. */
+  public NonBlockingHashMapLongLong snapshot() {
+    final NonBlockingHashMapLongLong res = new NonBlockingHashMapLongLong(_map.size());
+    for( NonBlockingHashMapLongLong.IteratorLong it = _map.keys(); it.hasNext(); ) {
+      final long K = it.nextLong();
+      res.put(K,it.value());
+    }
+    return res;
+  }
+
+  /** Return the keys and counts, removing each key as its count is read.
+   *  Each removal atomically swaps the count out, so adds racing with this
+   *  call are counted in the result or left in the map, never lost. */
+  public NonBlockingHashMapLongLong snapshotThenReset() {
+    final NonBlockingHashMapLongLong res = new NonBlockingHashMapLongLong(_map.size());
+    for( NonBlockingHashMapLongLong.IteratorLong it = _map.keys(); it.hasNext(); ) {
+      final long K = it.nextLong();
+      final long c = _map.remove(K);
+      if( c != NO_VALUE ) res.put(K,c);
+    }
+    return res;
+  }
+
+  /** Return up to {@code k} keys with the largest counts, largest first.
+   *  Ties are broken arbitrarily.  Only the returned entries are boxed.
+   *  @throws IllegalArgumentException if k is negative */
+  public List<Map.Entry<Long,Long>> topK( final int k ) {
+    if( k < 0 ) throw new IllegalArgumentException(""+k);
+    // Min-heap of the best k so far, as parallel primitive arrays
+    final long[] keys = new long[k], cnts = new long[k];
+    int n = 0;
+    for( NonBlockingHashMapLongLong.IteratorLong it = _map.keys(); it.hasNext() && k > 0; ) {
+      final long K = it.nextLong(), c = it.value();
+      if( n < k ) {             // Sift up
+        int i = n++;
+        while( i > 0 && cnts[(i-1)>>1] > c ) { keys[i] = keys[(i-1)>>1]; cnts[i] = cnts[(i-1)>>1]; i = (i-1)>>1; }
+        keys[i] = K; cnts[i] = c;
+      } else if( c > cnts[0] ) { // Replace the smallest; sift down
+        int i = 0;
+        while( true ) {
+          int j = (i<<1)+1;
+          if( j >= k ) break;
+          if( j+1 < k && cnts[j+1] < cnts[j] ) j++;
+          if( cnts[j] >= c ) break;
+          keys[i] = keys[j]; cnts[i] = cnts[j]; i = j;
+        }
+        keys[i] = K; cnts[i] = c;
+      }
+    }
+    final ArrayList<Map.Entry<Long,Long>> res = new ArrayList<Map.Entry<Long,Long>>(n);
+    for( int i=0; i<n; i++ )
+      res.add(new AbstractMap.SimpleImmutableEntry<Long,Long>(keys[i],cnts[i]));
+    Collections.sort(res,(a,b) -> Long.compare(b.getValue(),a.getValue()));
+    return res;
+  }
+
+  /** Returns a string of the form <tt>{k1=c1, k2=c2}</tt>.  */
+  @Override
+  public String toString() { return _map.toString(); }
+}
@@ -0,0 +1,276 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.Serializable;
+import sun.misc.Unsafe;
+
+/**
+ * A histogram of non-negative {@code long} values (typically latencies),
+ * recorded concurrently from many threads with no locks and no allocation
+ * per record.  Buckets are log-linear, as in HdrHistogram: values below
+ * 2^{@code precision_bits} each get their own bucket, and every larger power
+ * of 2 is split into 2^{@code precision_bits} equal buckets, so a value's
+ * bucket is within a relative error of 2^-{@code precision_bits} of it.
+ *
+ * <p>Like {@link ConcurrentAutoTable}, the buckets are striped: each thread
+ * records into one of several bucket arrays, picked by its per-thread probe,
+ * with a single CAS.  A thread whose CAS fails moves to another stripe, and
+ * repeated failures double the number of stripes.  Queries sum the stripes,
+ * so they are approximate while other threads record, but include every
+ * record made by the current thread.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public class ConcurrentHistogram implements Serializable {
+
+  private static final long serialVersionUID = 1234123412341234127L;
+
+  // --- Bits to allow Unsafe access to arrays
+  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
+  private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
+  private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
+  private static long rawIndex(final long[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Lbase + idx * _Lscale;
+  }
+  private static boolean CAS( long[] A, int idx, long old, long nnn ) {
+    return _unsafe.compareAndSwapLong( A, rawIndex(A,idx), old, nnn );
+  }
+
+  /** Default precision: 64 buckets per power of 2, about 1.6% error. */
+  public static final int DEFAULT_PRECISION_BITS = 6;
+
+  // Stripes never grow past this; more stripes cost memory without
+  // buying anything once every CPU has its own
+  private static final int MAX_STRIPES =
+    Math.min(256,Integer.highestOneBit(Runtime.getRuntime().availableProcessors()*2-1)<<1);
+  private static final int MAX_SPIN = 2;
+
+  private final int _p;         // precision bits
+  // Power-of-2 array of stripes; each stripe is a full array of buckets.
+  // Growth copies the stripe references, so counts never move.
+  private volatile long[][] _stripes;
+
+  /** Create an empty histogram with {@link #DEFAULT_PRECISION_BITS}. */
+  public ConcurrentHistogram() { this(DEFAULT_PRECISION_BITS); }
+
+  /**
+   * Create an empty histogram whose buckets are within 2^-{@code
+   * precision_bits} of the values in them.  Each stripe takes
+   * (64-precision_bits)*2^precision_bits {@code longs}.
+   * @param precision_bits from 1 to 12
+   * @throws IllegalArgumentException if precision_bits is out of range
+   */
+  public ConcurrentHistogram( int precision_bits ) {
+    if( precision_bits < 1 || precision_bits > 12 )
+      throw new IllegalArgumentException(""+precision_bits);
+    _p = precision_bits;
+    _stripes = new long[][] { new long[nbuckets()] };
+  }
+
+  // --- Buckets -------------------------------------------------------------
+  private int nbuckets() { return (64-_p)<<_p; }
+
+  // Bucket holding value 'v', which is known non-negative
+  private int index( long v ) {
+    if( v < (1L<<_p) ) return (int)v;
+    int k = 63-Long.numberOfLeadingZeros(v)-_p; // Low bits dropped
+    return ((k+1)<<_p) + (int)((v>>>k) - (1L<<_p));
+  }
+  // Smallest and largest values in bucket 'idx'
+  private long lowest( int idx ) {
+    if( idx < (1<<_p) ) return idx;
+    int k = (idx>>_p)-1;
+    return ((1L<<_p) + (idx & ((1<<_p)-1))) << k;
+  }
+  private long highest( int idx ) {
+    if( idx < (1<<_p) ) return idx;
+    return lowest(idx) + (1L<<((idx>>_p)-1)) - 1;
+  }
+
+  // --- Recording -----------------------------------------------------------
+
+  /**
+   * Record one occurrence of {@code v}.
+   * @throws IllegalArgumentException if v is negative
+   */
+  public void record( long v ) { record(v,1); }
+
+  /**
+   * Record {@code count} occurrences of {@code v}.
+   * @throws IllegalArgumentException if v is negative
+   */
+  public void record( long v, long count ) {
+    if( v < 0 ) throw new IllegalArgumentException(""+v);
+    final int idx = index(v);
+    long[][] stripes = _stripes;
+    int probe = ConcurrentAutoTable.probe();
+    long[] t = stripes[probe & (stripes.length-1)];
+    long old = t[idx];
+    if( CAS(t,idx,old,old+count) ) return; // Peel loop; try once fast
+    int cnt = 0;
+    while( true ) {             // Try harder, in another stripe each time
+      probe = ConcurrentAutoTable.advance_probe(probe);
+      t = stripes[probe & (stripes.length-1)];
+      old = t[idx];
+      if( CAS(t,idx,old,old+count) ) break;
+      cnt++;
+    }
+    if( cnt >= MAX_SPIN && stripes.length < MAX_STRIPES && _stripes == stripes )
+      grow(stripes);
+  }
+
+  // Double the stripes.  One stab at the CAS: if it fails, somebody else
+  // already grew them.
+  private void grow( long[][] stripes ) {
+    long[][] nnn = new long[stripes.length<<1][];
+    System.arraycopy(stripes,0,nnn,0,stripes.length);
+    for( int i=stripes.length; i<nnn.length; i++ )
+      nnn[i] = new long[nbuckets()];
+    CAS_stripes(stripes,nnn);
+  }
+  private static final long _stripes_offset;
+  static {                      // <clinit>
+    try {
+      _stripes_offset = _unsafe.objectFieldOffset(ConcurrentHistogram.class.getDeclaredField("_stripes"));
+    } catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+  }
+  private boolean CAS_stripes( long[][] old, long[][] nnn ) {
+    return _unsafe.compareAndSwapObject(this, _stripes_offset, old, nnn );
+  }
+
+  /**
+   * Add all the counts of {@code h} into this histogram.
+   * @throws IllegalArgumentException if the precisions differ
+   */
+  public void add( ConcurrentHistogram h ) {
+    if( h._p != _p ) throw new IllegalArgumentException("precision "+h._p+" != "+_p);
+    final long[] counts = h.counts();
+    for( int i=0; i<counts.length; i++ )
+      if( counts[i] != 0 )
+        record(lowest(i),counts[i]);
+  }
+
+  // --- Snapshots -----------------------------------------------------------
+
+  // Bucket counts summed over the stripes
+  private long[] counts() {
+    final long[][] stripes = _stripes;
+    final long[] res = new long[nbuckets()];
+    for( long[] t : stripes )
+      for( int i=0; i<t.length; i++ )
+        res[i] += t[i];
+    return res;
+  }
+
+  // A single-stripe histogram holding exactly these counts
+  private ConcurrentHistogram load( long[] counts ) {
+    ConcurrentHistogram h = new ConcurrentHistogram(_p);
+    h._stripes[0] = counts;
+    return h;
+  }
+
+  /** Return a copy of this histogram, for querying a consistent view. */
+  public ConcurrentHistogram snapshot() { return load(counts()); }
+
+  /**
+   * Return a copy of this histogram and reset it to empty, without losing
+   * records: each bucket of each stripe is atomically swapped to zero, so a
+   * record racing with the reset lands either in the returned snapshot or
+   * in this histogram afterwards.  Intended for per-interval reporting.
+   */
+  public ConcurrentHistogram snapshotThenReset() {
+    final long[][] stripes = _stripes;
+    final long[] res = new long[nbuckets()];
+    for( long[] t : stripes )
+      for( int i=0; i<t.length; i++ ) {
+        long old = t[i];
+        if( old == 0 ) continue;
+        while( !CAS(t,i,old,0) )
+          old = t[i];
+        res[i] += old;
+      }
+    return load(res);
+  }
+
+  /** Reset to empty, as {@link #snapshotThenReset}. */
+  public void reset() { snapshotThenReset(); }
+
+  // --- Queries -------------------------------------------------------------
+
+  /** @return total number of values recorded */
+  public long count() {
+    long sum = 0;
+    for( long c : counts() ) sum += c;
+    return sum;
+  }
+
+  /**
+   * Value at the given percentile: the largest value in the bucket holding
+   * the value that {@code percentile} percent of the recorded values are at
+   * or below.  Returns 0 if the histogram is empty.
+   * @param percentile from 0 to 100
+   * @throws IllegalArgumentException if percentile is out of range
+   */
+  public long percentile( double percentile ) {
+    if( !(percentile >= 0 && percentile <= 100) )
+      throw new IllegalArgumentException(""+percentile);
+    final long[] counts = counts();
+    long total = 0;
+    for( long c : counts ) total += c;
+    if( total == 0 ) return 0;
+    final long target = Math.max(1,(long)Math.ceil(percentile/100.0*total));
+    long sum = 0;
+    for( int i=0; i<counts.length; i++ ) {
+      sum += counts[i];
+      if( sum >= target ) return highest(i);
+    }
+    return highest(counts.length-1); // Racing records; should not happen
+  }
+
+  /** @return the smallest value in the lowest non-empty bucket, or 0 if empty */
+  public long min() {
+    final long[] counts = counts();
+    for( int i=0; i<counts.length; i++ )
+      if( counts[i] != 0 ) return lowest(i);
+    return 0;
+  }
+
+  /** @return the largest value in the highest non-empty bucket, or 0 if empty */
+  public long max() {
+    final long[] counts = counts();
+    for( int i=counts.length-1; i>=0; i-- )
+      if( counts[i] != 0 ) return highest(i);
+    return 0;
+  }
+
+  /** @return the mean of the recorded values, taking each bucket at its midpoint; 0 if empty */
+  public double mean() {
+    final long[] counts = counts();
+    double sum = 0;
+    long total = 0;
+    for( int i=0; i<counts.length; i++ ) {
+      if( counts[i] == 0 ) continue;
+      sum += counts[i] * ((lowest(i)/2.0) + (highest(i)/2.0));
+      total += counts[i];
+    }
+    return total == 0 ? 0 : sum/total;
+  }
+
+  /** @return the precision, in bits, given at construction */
+  public int precision_bits() { return _p; }
+
+  /** Return the internal striping factor. */
+  public int internal_size() { return _stripes.length; }
+
+  /** Return count, min, median, 99th percentile and max as a string. */
+  public String toString() {
+    ConcurrentHistogram h = snapshot();
+    return "[count="+h.count()+" min="+h.min()+" p50="+h.percentile(50)+
+      " p99="+h.percentile(99)+" max="+h.max()+"]";
+  }
+}
@@ -17,6 +17,15 @@ package org.cliffc.high_scale_lib;
 
 public class Counter extends ConcurrentAutoTable {
 
+  /** Create a counter with the default cache-line padding. */
+  public Counter() { }
+
+  /**
+   * Create a counter whose stripes are padded to {@code line_bytes}.
+   * @see ConcurrentAutoTable#ConcurrentAutoTable(int)
+   */
+  public Counter( int line_bytes ) { super(line_bytes); }
+
   // Add the given value to current counter value.  Concurrent updates will
   // not be lost, but addAndGet or getAndAdd are not implemented because but
   // the total counter value is not atomically updated.
@@ -0,0 +1,80 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * How a {@link NonBlockingHashMap} hashes and compares its keys, in place of
+ * the keys' own {@code hashCode} and {@code equals}.  Lets a map key directly
+ * on arrays or on character sequences by content, with no wrapper object per
+ * key, or plug in a faster hash function.
+ *
+ * <p>The two methods must agree: equal keys must hash alike.  Both are called
+ * concurrently, with keys that may be mutated by other threads if the user
+ * lets them; keys must not change while mapped.  The map still spreads the
+ * returned hash, so poor low bits are harmless.  A strategy must be {@link
+ * Serializable} for its map to serialize.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ * @param <T> the type of keys hashed
+ */
+public interface HashingStrategy<T> extends Serializable {
+  /** @return a hash of the key, never called with null */
+  int hashCode( T key );
+  /** @return true if the keys are equal; called with the looked-up key
+   *  first, and never with null */
+  boolean equals( T key, T other );
+
+  /**
+   * Common strategies.  Each takes any {@code Object}, so fits a map of any
+   * key type; it is up to the user to put in keys of the right type.
+   */
+  enum Standard implements HashingStrategy<Object> {
+    /** Keys are {@code byte[]}, compared by content. */
+    BYTE_ARRAY {
+      public int hashCode( Object key ) { return Arrays.hashCode((byte[])key); }
+      public boolean equals( Object key, Object other ) {
+        return other instanceof byte[] && Arrays.equals((byte[])key,(byte[])other);
+      }
+    },
+    /** Keys are {@code char[]}, compared by content. */
+    CHAR_ARRAY {
+      public int hashCode( Object key ) { return Arrays.hashCode((char[])key); }
+      public boolean equals( Object key, Object other ) {
+        return other instanceof char[] && Arrays.equals((char[])key,(char[])other);
+      }
+    },
+    /** Keys are {@link CharSequence}s compared by content, whatever their
+     *  class: a {@code String} finds a {@code StringBuilder} or {@code
+     *  CharBuffer} slice holding the same characters.  Hashes as {@link
+     *  String#hashCode}. */
+    CHAR_SEQUENCE {
+      public int hashCode( Object key ) {
+        final CharSequence cs = (CharSequence)key;
+        int h = 0;
+        for( int i=0; i<cs.length(); i++ )
+          h = 31*h + cs.charAt(i);
+        return h;
+      }
+      public boolean equals( Object key, Object other ) {
+        if( !(other instanceof CharSequence) ) return false;
+        final CharSequence a = (CharSequence)key, b = (CharSequence)other;
+        final int len = a.length();
+        if( b.length() != len ) return false;
+        for( int i=0; i<len; i++ )
+          if( a.charAt(i) != b.charAt(i) ) return false;
+        return true;
+      }
+    },
+    /** Keys compared by identity, as in {@link NonBlockingIdentityHashMap}. */
+    IDENTITY {
+      public int hashCode( Object key ) { return System.identityHashCode(key); }
+      public boolean equals( Object key, Object other ) { return key == other; }
+    }
+  }
+}
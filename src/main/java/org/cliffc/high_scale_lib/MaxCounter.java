@@ -0,0 +1,66 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.Serializable;
+
+/**
+ * A high-performance high-water mark: the maximum of all values passed to
+ * {@link #update}.  Updates are striped across the same auto-growing table
+ * of cache-line padded {@code longs} as {@link Counter}, and {@link #get}
+ * reduces over the stripes, so recording a maximum scales like counting
+ * does instead of melting a single CAS'd word.  An update that does not
+ * raise its stripe costs only a load.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ * @see MinCounter
+ */
+public class MaxCounter implements Serializable {
+  private static final long serialVersionUID = 1234123412341234127L;
+  private final ConcurrentAutoTable _cat;
+
+  /** Create an empty high-water mark, with default cache-line padding. */
+  public MaxCounter() { this(ConcurrentAutoTable.DEFAULT_LINE_BYTES); }
+
+  /**
+   * Create an empty high-water mark whose stripes are padded to
+   * {@code line_bytes}.
+   * @see ConcurrentAutoTable#ConcurrentAutoTable(int)
+   */
+  public MaxCounter( int line_bytes ) { _cat = new ConcurrentAutoTable(line_bytes,ConcurrentAutoTable.MAX); }
+
+  /** Raise the maximum to {@code x}, if {@code x} is larger. */
+  public void update( long x ) { _cat.add(x); }
+
+  /**
+   * Current maximum, or {@link Long#MIN_VALUE} if nothing has been recorded
+   * since creation or the last reset.  Includes all updates made by the
+   * current thread.  Requires a pass over the internally striped values.
+   */
+  public long get() { return _cat.get(); }
+
+  /**
+   * A cheaper {@link #get}.  Updated only once/millisecond, but as fast as a
+   * simple load instruction when not updating.
+   */
+  public long estimate_get() { return _cat.estimate_get(); }
+
+  /**
+   * Return the current maximum and reset to empty.  Each stripe is reset
+   * atomically, so an update racing with the reset is seen either in the
+   * returned maximum or in the next one.
+   */
+  public long getThenReset() { return _cat.sumThenReset(); }
+
+  /** Reset to empty, as {@link #getThenReset}. */
+  public void reset() { _cat.sumThenReset(); }
+
+  /** Return the maximum converted to a string. */
+  public String toString() { return Long.toString(get()); }
+
+  /** Return the internal striping factor. */
+  public int internal_size() { return _cat.internal_size(); }
+}
@@ -0,0 +1,66 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.Serializable;
+
+/**
+ * A high-performance low-water mark: the minimum of all values passed to
+ * {@link #update}.  Updates are striped across the same auto-growing table
+ * of cache-line padded {@code longs} as {@link Counter}, and {@link #get}
+ * reduces over the stripes, so recording a minimum scales like counting
+ * does instead of melting a single CAS'd word.  An update that does not
+ * lower its stripe costs only a load.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ * @see MaxCounter
+ */
+public class MinCounter implements Serializable {
+  private static final long serialVersionUID = 1234123412341234127L;
+  private final ConcurrentAutoTable _cat;
+
+  /** Create an empty low-water mark, with default cache-line padding. */
+  public MinCounter() { this(ConcurrentAutoTable.DEFAULT_LINE_BYTES); }
+
+  /**
+   * Create an empty low-water mark whose stripes are padded to
+   * {@code line_bytes}.
+   * @see ConcurrentAutoTable#ConcurrentAutoTable(int)
+   */
+  public MinCounter( int line_bytes ) { _cat = new ConcurrentAutoTable(line_bytes,ConcurrentAutoTable.MIN); }
+
+  /** Lower the minimum to {@code x}, if {@code x} is smaller. */
+  public void update( long x ) { _cat.add(x); }
+
+  /**
+   * Current minimum, or {@link Long#MAX_VALUE} if nothing has been recorded
+   * since creation or the last reset.  Includes all updates made by the
+   * current thread.  Requires a pass over the internally striped values.
+   */
+  public long get() { return _cat.get(); }
+
+  /**
+   * A cheaper {@link #get}.  Updated only once/millisecond, but as fast as a
+   * simple load instruction when not updating.
+   */
+  public long estimate_get() { return _cat.estimate_get(); }
+
+  /**
+   * Return the current minimum and reset to empty.  Each stripe is reset
+   * atomically, so an update racing with the reset is seen either in the
+   * returned minimum or in the next one.
+   */
+  public long getThenReset() { return _cat.sumThenReset(); }
+
+  /** Reset to empty, as {@link #getThenReset}. */
+  public void reset() { _cat.sumThenReset(); }
+
+  /** Return the minimum converted to a string. */
+  public String toString() { return Long.toString(get()); }
+
+  /** Return the internal striping factor. */
+  public int internal_size() { return _cat.internal_size(); }
+}
@@ -0,0 +1,254 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * A bounded cache on a {@link NonBlockingHashMap}, evicting by CLOCK.  Each
+ * entry carries a reference bit that {@link #get} sets (only if clear, so
+ * hot entries cost readers no store to the entry); the evictor sweeps a
+ * hand around the table, clearing set bits and removing entries whose bit
+ * was already clear.  Entries read since the hand last passed thus get a
+ * second chance, which approximates LRU without any per-read reordering.
+ *
+ * <p>A read is a {@link NonBlockingHashMap#get} plus one increment of the
+ * hit or miss {@link Counter}.  The counters are striped, so reads still
+ * scale with threads, but unlike a bare {@code get} every read does a CAS
+ * on a counter stripe.  Each entry has a weight, by default 1; when a write
+ * pushes the total weight past the maximum, the writing thread evicts until
+ * it is back under.  Only one thread evicts at a time and other writers do
+ * not wait for it, but the evictor re-checks the weight before it stops, so
+ * the maximum is exceeded by at most the weight of the writes racing with
+ * it.
+ *
+ * <p>Hits, misses and evictions are counted in {@link Counter}s.  Null keys
+ * and values are not allowed.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ * @param <TypeK> the type of keys cached
+ * @param <TypeV> the type of cached values
+ */
+public class NonBlockingCache<TypeK, TypeV> {
+
+  // A cached value, its weight and its CLOCK reference bit.  Nodes compare
+  // by identity, so remove(key,node) only removes this very mapping.
+  private static final class Node<TypeV> {
+    final TypeV _val;
+    final long _weight;
+    volatile boolean _ref;      // Read since the hand last passed
+    Node( TypeV val, long weight ) { _val = val; _weight = weight; }
+  }
+
+  private final NonBlockingHashMap<TypeK,Node<TypeV>> _map;
+  private final long _max_weight;
+  private final ToLongBiFunction<? super TypeK,? super TypeV> _weigher;
+
+  private final Counter _weight    = new Counter();
+  private final Counter _hits      = new Counter();
+  private final Counter _misses    = new Counter();
+  private final Counter _evictions = new Counter();
+
+  // One evictor at a time; it alone moves the hand
+  private volatile int _evicting;
+  @SuppressWarnings("unchecked")
+  private static final AtomicIntegerFieldUpdater<NonBlockingCache<?,?>> _evictingUpdater =
+    AtomicIntegerFieldUpdater.newUpdater((Class<NonBlockingCache<?,?>>)(Class<?>)NonBlockingCache.class, "_evicting");
+  private Iterator<Map.Entry<TypeK,Node<TypeV>>> _hand;
+
+  /**
+   * Create a cache holding at most {@code max_entries} entries.
+   * @throws IllegalArgumentException if max_entries is negative
+   */
+  public NonBlockingCache( long max_entries ) { this(max_entries,null); }
+
+  /**
+   * Create a cache holding at most {@code max_weight} total weight, with
+   * each entry weighed once, when it is inserted, by {@code weigher}.
+   * @param weigher non-negative weight of a key/value pair, or null to
+   *        weigh every entry as 1
+   * @throws IllegalArgumentException if max_weight is negative
+   */
+  public NonBlockingCache( long max_weight, ToLongBiFunction<? super TypeK,? super TypeV> weigher ) {
+    if( max_weight < 0 ) throw new IllegalArgumentException(""+max_weight);
+    _max_weight = max_weight;
+    _weigher = weigher;
+    // A weight need not count entries (it may be bytes), so only an
+    // unweighted cache knows how big its table will get
+    _map = weigher == null
+      ? new NonBlockingHashMap<TypeK,Node<TypeV>>((int)Math.min(1<<20,Math.max(8,max_weight)))
+      : new NonBlockingHashMap<TypeK,Node<TypeV>>();
+  }
+
+  // --- Reads ---------------------------------------------------------------
+
+  /** Returns the value cached for the key, or null, and counts a hit or a
+   *  miss.  A hit marks the entry as recently used.
+   *  @throws NullPointerException if the key is null */
+  public TypeV get( Object key ) {
+    final Node<TypeV> n = _map.get(key);
+    if( n == null ) { _misses.increment(); return null; }
+    _hits.increment();
+    if( !n._ref ) n._ref = true; // Only store if needed; keeps hot lines shared
+    return n._val;
+  }
+
+  /** Returns the value cached for the key, or null, without counting a hit
+   *  or a miss and without marking the entry used. */
+  public TypeV peek( Object key ) {
+    final Node<TypeV> n = _map.get(key);
+    return n == null ? null : n._val;
+  }
+
+  /** @return true if the key is cached; counts nothing */
+  public boolean containsKey( Object key ) { return _map.containsKey(key); }
+
+  // --- Writes --------------------------------------------------------------
+
+  /** Caches the value for the key, evicting other entries if the cache is
+   *  over its maximum weight.
+   *  @return the value previously cached for the key, or null
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV put( TypeK key, TypeV val ) {
+    final Node<TypeV> n = node(key,val);
+    final Node<TypeV> old = _map.put(key,n);
+    _weight.add(old == null ? n._weight : n._weight-old._weight);
+    evict_if_needed();
+    return old == null ? null : old._val;
+  }
+
+  /** Caches the value for the key unless the key is already cached.
+   *  @return the value already cached for the key, or null if the new value
+   *          was cached
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV putIfAbsent( TypeK key, TypeV val ) {
+    final Node<TypeV> n = node(key,val);
+    final Node<TypeV> old = _map.putIfAbsent(key,n);
+    if( old != null ) return old._val;
+    _weight.add(n._weight);
+    evict_if_needed();
+    return null;
+  }
+
+  /**
+   * Returns the value cached for the key, loading and caching it on a miss.
+   * The loader runs outside of any lock, so racing misses on one key may
+   * each run it; all of them return the value that got cached first.  A
+   * loader returning null caches nothing.
+   * @return the cached or loaded value, or null if the loader returned null
+   * @throws NullPointerException if the key or loader is null
+   */
+  public TypeV computeIfAbsent( TypeK key, Function<? super TypeK,? extends TypeV> loader ) {
+    final TypeV V = get(key);
+    if( V != null ) return V;
+    final TypeV val = loader.apply(key);
+    if( val == null ) return null;
+    final TypeV old = putIfAbsent(key,val);
+    return old == null ? val : old;
+  }
+
+  /** Removes the key.
+   *  @return the value that was cached for the key, or null */
+  public TypeV remove( Object key ) {
+    final Node<TypeV> old = _map.remove(key);
+    if( old == null ) return null;
+    _weight.add(-old._weight);
+    return old._val;
+  }
+
+  /** Removes every entry.  Entries cached during the clear may survive it. */
+  public void clear() {
+    for( Map.Entry<TypeK,Node<TypeV>> e : _map.entrySet() )
+      unlink(e.getKey(),e.getValue());
+  }
+
+  private Node<TypeV> node( TypeK key, TypeV val ) {
+    if( val == null ) throw new NullPointerException();
+    final long w = _weigher == null ? 1 : _weigher.applyAsLong(key,val);
+    if( w < 0 ) throw new IllegalArgumentException("weight "+w);
+    return new Node<TypeV>(val,w);
+  }
+
+  // Remove this exact mapping; whoever removes or replaces a node is the one
+  // to take its weight off, so each weight leaves exactly once.
+  private boolean unlink( TypeK key, Node<TypeV> n ) {
+    if( !_map.remove(key,n) ) return false;
+    _weight.add(-n._weight);
+    return true;
+  }
+
+  // --- Eviction ------------------------------------------------------------
+
+  // Evict if over weight and nobody else is.  Loop, because a writer that
+  // found the evictor busy relies on the evictor to see its weight.  The
+  // put has just blown the weight's sum cache, so the trigger uses the
+  // cheap estimate; evict() itself reads the exact weight.
+  private void evict_if_needed() {
+    while( _weight.estimate_get() > _max_weight && _evictingUpdater.compareAndSet(this,0,1) ) {
+      try { evict(); }
+      finally { _evicting = 0; }
+    }
+  }
+
+  // Sweep the hand until back under weight.  Gives up after two full sweeps
+  // with nothing to remove (every entry raced away from the hand), since
+  // the first sweep clears every reference bit.
+  private void evict() {
+    int idle_sweeps = 0;
+    boolean removed = false;
+    while( _weight.get() > _max_weight ) {
+      if( _hand == null || !_hand.hasNext() ) {
+        if( _hand != null ) {
+          idle_sweeps = removed ? 0 : idle_sweeps+1;
+          if( idle_sweeps >= 2 ) return;
+        }
+        _hand = _map.entrySet().iterator();
+        removed = false;
+        continue;
+      }
+      final Map.Entry<TypeK,Node<TypeV>> e = _hand.next();
+      final Node<TypeV> n = e.getValue();
+      if( n._ref ) { n._ref = false; continue; } // Second chance
+      if( unlink(e.getKey(),n) ) {
+        _evictions.increment();
+        removed = true;
+      }
+    }
+  }
+
+  // --- Statistics ----------------------------------------------------------
+
+  /** @return the number of entries cached */
+  public int size() { return _map.size(); }
+  /** @return <tt>size() == 0</tt> */
+  public boolean isEmpty() { return _map.isEmpty(); }
+  /** @return the total weight of the entries cached; approximate while
+   *  writers race */
+  public long weight() { return _weight.get(); }
+  /** @return the maximum weight given at construction */
+  public long maxWeight() { return _max_weight; }
+  /** @return the number of {@link #get} calls that found a value */
+  public long hits() { return _hits.get(); }
+  /** @return the number of {@link #get} calls that found nothing */
+  public long misses() { return _misses.get(); }
+  /** @return the number of entries removed to stay under the maximum weight */
+  public long evictions() { return _evictions.get(); }
+  /** @return hits/(hits+misses), or 1 if nothing was looked up */
+  public double hitRatio() {
+    final long h = hits(), m = misses();
+    return h+m == 0 ? 1.0 : (double)h/(h+m);
+  }
+
+  /** Return the size, weight and counters as a string. */
+  public String toString() {
+    return "[size="+size()+" weight="+weight()+"/"+_max_weight+
+      " hits="+hits()+" misses="+misses()+" evictions="+evictions()+"]";
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A {@link NonBlockingHashMap} whose entries expire a fixed time after they
+ * are written.  Each value is stored with its deadline (a {@link
+ * System#nanoTime}); reads treat an entry past its deadline as absent,
+ * without allocating, and remove it on the spot.
+ *
+ * <p>Expired entries nobody reads are reclaimed incrementally: every write
+ * advances a reaping hand over the table by a few entries, removing those
+ * past their deadline, so no write pays for a full scan and a steady stream
+ * of writes sweeps the whole table.  Maps written rarely can be swept on a
+ * timer with {@link #purge}.  Until reclaimed, expired entries still count
+ * in {@link #size}.
+ *
+ * <p>Null keys and values are not allowed.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ * @param <TypeK> the type of keys maintained by this map
+ * @param <TypeV> the type of mapped values
+ */
+public class NonBlockingExpiringMap<TypeK, TypeV> {
+
+  // Entries examined by the reaping hand per write
+  private static final int REAP_PER_WRITE = 4;
+
+  // A value and its deadline.  Nodes compare by identity, so
+  // remove(key,node) only removes this very mapping.
+  private static final class Node<TypeV> {
+    final TypeV _val;
+    final long _deadline;       // System.nanoTime
+    Node( TypeV val, long deadline ) { _val = val; _deadline = deadline; }
+    boolean expired( long now ) { return now - _deadline >= 0; }
+  }
+
+  private final NonBlockingHashMap<TypeK,Node<TypeV>> _map = new NonBlockingHashMap<TypeK,Node<TypeV>>();
+  private final long _ttl;      // Default time to live, in nanos
+  private final Counter _expirations = new Counter();
+
+  // One reaper at a time; it alone moves the hand
+  private volatile int _reaping;
+  @SuppressWarnings("unchecked")
+  private static final AtomicIntegerFieldUpdater<NonBlockingExpiringMap<?,?>> _reapingUpdater =
+    AtomicIntegerFieldUpdater.newUpdater((Class<NonBlockingExpiringMap<?,?>>)(Class<?>)NonBlockingExpiringMap.class, "_reaping");
+  private Iterator<Map.Entry<TypeK,Node<TypeV>>> _hand;
+
+  /**
+   * Create a map whose entries live for the given time after each write.
+   * @throws IllegalArgumentException if the time is not positive
+   */
+  public NonBlockingExpiringMap( long ttl, TimeUnit unit ) {
+    if( ttl <= 0 ) throw new IllegalArgumentException(""+ttl);
+    _ttl = unit.toNanos(ttl);
+  }
+
+  // --- Reads ---------------------------------------------------------------
+
+  /** Returns the value mapped to the key, or null if none or expired.
+   *  @throws NullPointerException if the key is null */
+  public TypeV get( Object key ) {
+    final Node<TypeV> n = _map.get(key);
+    if( n == null ) return null;
+    if( !n.expired(System.nanoTime()) ) return n._val;
+    unlink(key,n);              // Expired: reclaim now
+    return null;
+  }
+
+  /** @return true if the key is mapped and not expired */
+  public boolean containsKey( Object key ) { return get(key) != null; }
+
+  /** Returns the nanoseconds until the key's entry expires.
+   *  @return the remaining time to live, or -1 if none or expired */
+  public long remainingNanos( Object key ) {
+    final Node<TypeV> n = _map.get(key);
+    if( n == null ) return -1;
+    final long left = n._deadline - System.nanoTime();
+    return left > 0 ? left : -1;
+  }
+
+  // --- Writes --------------------------------------------------------------
+
+  /** Maps the key to the value for the map's time to live.
+   *  @return the previous unexpired value, or null
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV put( TypeK key, TypeV val ) { return put(key,val,_ttl); }
+
+  /** Maps the key to the value for the given time to live.
+   *  @return the previous unexpired value, or null
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV put( TypeK key, TypeV val, long ttl, TimeUnit unit ) { return put(key,val,unit.toNanos(ttl)); }
+
+  private TypeV put( TypeK key, TypeV val, long ttl_nanos ) {
+    final long now = System.nanoTime();
+    final Node<TypeV> old = _map.put(key,node(val,now,ttl_nanos));
+    reap(REAP_PER_WRITE);
+    return old == null || old.expired(now) ? null : old._val;
+  }
+
+  /** Maps the key to the value unless it is mapped to an unexpired value;
+   *  an expired mapping is replaced.
+   *  @return the unexpired value already mapped, or null if the new value
+   *          was mapped
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV putIfAbsent( TypeK key, TypeV val ) {
+    final long now = System.nanoTime();
+    final Node<TypeV> n = node(val,now,_ttl);
+    try {
+      while( true ) {
+        final Node<TypeV> old = _map.putIfAbsent(key,n);
+        if( old == null ) return null;
+        if( !old.expired(now) ) return old._val;
+        if( _map.replace(key,old,n) ) { _expirations.increment(); return null; }
+      }                         // Raced with another write; try again
+    } finally {
+      reap(REAP_PER_WRITE);
+    }
+  }
+
+  /** Removes the key.
+   *  @return the unexpired value that was mapped, or null */
+  public TypeV remove( Object key ) {
+    final Node<TypeV> old = _map.remove(key);
+    return old == null || old.expired(System.nanoTime()) ? null : old._val;
+  }
+
+  /** Removes every entry. */
+  public void clear() { _map.clear(); }
+
+  private static <TypeV> Node<TypeV> node( TypeV val, long now, long ttl_nanos ) {
+    if( val == null ) throw new NullPointerException();
+    return new Node<TypeV>(val,now+ttl_nanos);
+  }
+
+  private boolean unlink( Object key, Node<TypeV> n ) {
+    if( !_map.remove(key,n) ) return false;
+    _expirations.increment();
+    return true;
+  }
+
+  // --- Reclaiming ----------------------------------------------------------
+
+  // Advance the hand by up to 'cnt' entries, removing the expired ones.
+  // Skipped if another thread is reaping: the hand never waits.  Returns
+  // the number removed.
+  private int reap( int cnt ) {
+    if( !_reapingUpdater.compareAndSet(this,0,1) ) return 0;
+    int removed = 0;
+    try {
+      final long now = System.nanoTime();
+      for( int i=0; i<cnt; i++ ) {
+        if( _hand == null || !_hand.hasNext() ) {
+          _hand = _map.entrySet().iterator();
+          if( !_hand.hasNext() ) break; // Empty map
+        }
+        final Map.Entry<TypeK,Node<TypeV>> e = _hand.next();
+        if( e.getValue().expired(now) && unlink(e.getKey(),e.getValue()) )
+          removed++;
+      }
+    } finally {
+      _reaping = 0;
+    }
+    return removed;
+  }
+
+  /**
+   * Remove every expired entry with one full sweep; for maps written too
+   * rarely for writes to keep them swept.  Intended to be called from a
+   * timer.
+   * @return the number of entries removed
+   */
+  public int purge() {
+    final long now = System.nanoTime();
+    int removed = 0;
+    for( Map.Entry<TypeK,Node<TypeV>> e : _map.entrySet() )
+      if( e.getValue().expired(now) && unlink(e.getKey(),e.getValue()) )
+        removed++;
+    return removed;
+  }
+
+  // --- Statistics ----------------------------------------------------------
+
+  /** @return the number of entries, including expired entries not yet
+   *  reclaimed */
+  public int size() { return _map.size(); }
+  /** @return <tt>size() == 0</tt> */
+  public boolean isEmpty() { return _map.isEmpty(); }
+  /** @return the default time to live, in nanoseconds */
+  public long ttlNanos() { return _ttl; }
+  /** @return the number of expired entries reclaimed or replaced */
+  public long expirations() { return _expirations.get(); }
+
+  /** Return the size and expiration count as a string. */
+  public String toString() {
+    return "[size="+size()+" ttl_nanos="+_ttl+" expirations="+expirations()+"]";
+  }
+}
@@ -9,7 +9,10 @@ import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.*;
+import java.util.function.*;
 import sun.misc.Unsafe;
 
 /**
@@ -78,6 +81,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
   private static final long serialVersionUID = 1234123412341234123L;
 
   private static final int REPROBE_LIMIT=10; // Too many reprobes then force a table-resize
+  private static final int SHRINK_MIN_SIZE=1024; // Smaller tables are never worth shrinking
 
   // --- Bits to allow Unsafe access to arrays
   private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
@@ -90,11 +94,15 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
   // --- Setup to use Unsafe
   private static final long _kvs_offset;
+  private static final long _stats_offset;
   static {                      // <clinit>
     Field f = null;
     try { f = NonBlockingHashMap.class.getDeclaredField("_kvs"); }
     catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
     _kvs_offset = _unsafe.objectFieldOffset(f);
+    try { f = NonBlockingHashMap.class.getDeclaredField("_stats"); }
+    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    _stats_offset = _unsafe.objectFieldOffset(f);
   }
   private final boolean CAS_kvs( final Object[] oldkvs, final Object[] newkvs ) {
     return _unsafe.compareAndSwapObject(this, _kvs_offset, oldkvs, newkvs );
@@ -109,8 +117,12 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
   // --- hash ----------------------------------------------------------------
   // Helper function to spread lousy hashCodes
-  private static final int hash(final Object key) {
-    int h = key.hashCode();     // The real hashCode call
+  private static final int hash(final NonBlockingHashMap<?,?> topmap, final Object key) {
+    final HashingStrategy<Object> s = topmap._strategy;
+    int h;
+    if( s == null ) h = key.hashCode(); // The real hashCode call
+    else if( key == null ) throw new NullPointerException();
+    else h = s.hashCode(key);   // Or the user's strategy
     // Spread bits to regularize both segment and index locations,
     // using variant of single-word Wang/Jenkins hash.
     h += (h <<  15) ^ 0xffffcd7d;
@@ -234,6 +246,28 @@ public class NonBlockingHashMap<TypeK, TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Resize statistics; null, and nearly free, until enableResizeStats is
+  // called.  A plain field: threads may miss a few records right after.
+  private transient ResizeStats _stats;
+  /** Turn on resize and table-copy statistics for this map; see {@link
+   *  ResizeStats}.  Until the first call, statistics cost one field test per
+   *  operation.  Later calls return the same statistics.
+   *  @return the statistics, live for the life of the map */
+  public ResizeStats enableResizeStats() {
+    ResizeStats s = _stats;
+    if( s == null && !_unsafe.compareAndSwapObject(this,_stats_offset,null,s = new ResizeStats()) )
+      s = _stats;
+    return s;
+  }
+  /** @return the resize statistics, or null if never enabled */
+  public ResizeStats resizeStats() { return _stats; }
+
+
+  // Key hashing and equality; null for the keys' own hashCode and equals.
+  // Serialized with the map.
+  private final HashingStrategy<Object> _strategy;
+  /** @return the key hashing strategy, or null if keys hash themselves */
+  public HashingStrategy<? super TypeK> hashingStrategy() { return _strategy; }
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
@@ -256,7 +290,26 @@ public class NonBlockingHashMap<TypeK, TypeV>
    *  appropriate size.  Large numbers here when used with a small count of
    *  elements will sacrifice space for a small amount of time gained.  The
    *  initial size will be rounded up internally to the next larger power of 2. */
-  public NonBlockingHashMap( final int initial_sz ) { initialize(initial_sz); }
+  public NonBlockingHashMap( final int initial_sz ) { this(initial_sz,null); }
+
+  /** Create a new NonBlockingHashMap with default minimum size, hashing and
+   *  comparing keys with the given strategy instead of their own {@code
+   *  hashCode} and {@code equals}.  Such a map can key directly on arrays;
+   *  note its own {@code equals} and {@code hashCode}, inherited from {@link
+   *  AbstractMap}, still use the keys' methods.
+   *  @param strategy the key hashing and equality, or null for the keys' own */
+  public NonBlockingHashMap( final HashingStrategy<? super TypeK> strategy ) { this(MIN_SIZE,strategy); }
+
+  /** Create a new NonBlockingHashMap with initial room for the given number of
+   *  elements, hashing and comparing keys with the given strategy.
+   *  @param strategy the key hashing and equality, or null for the keys' own */
+  @SuppressWarnings("unchecked")
+  public NonBlockingHashMap( final int initial_sz, final HashingStrategy<? super TypeK> strategy ) {
+    // Lookups pass in any Object, as Map.get does; the strategy sees keys of
+    // the wrong type only if the user asks for them, as with equals().
+    _strategy = (HashingStrategy<Object>)strategy;
+    initialize(initial_sz);
+  }
   private final void initialize( int initial_sz ) {
     if( initial_sz < 0 ) throw new IllegalArgumentException();
     int i;                      // Convert to next largest power-of-2
@@ -347,6 +400,80 @@ public class NonBlockingHashMap<TypeK, TypeV>
 	  return (oldValue == null) ? out == oldValue : oldValue.equals(out);
   }
 
+  // --- compute -------------------------------------------------------------
+  // The compute family runs directly against get_impl & putIfMatch, using the
+  // value observed by get_impl (or TOMBSTONE for a missing key) as the
+  // expected-value of the putIfMatch CAS.  If another thread slips in a
+  // different value between the read and the CAS, we simply re-read and
+  // re-apply the function.  A failed CAS never alters the table, so the
+  // functions may be re-applied under contention but only one result is ever
+  // installed per update.
+  //
+  // There is no computeIfAbsent here: running its function at most once per
+  // missing key means parking a reservation in the slot and making racing
+  // callers wait on it, which is a lock.  ConcurrentMap's default (get, then
+  // putIfAbsent) is already the best a non-blocking map can do.
+
+  // Did a putIfMatch against expected value 'expVal' (a real value or
+  // TOMBSTONE for no-value) succeed, given its returned old-value 'res'?
+  private static boolean matched( final Object expVal, final Object res ) {
+    return res == expVal || (res != TOMBSTONE && expVal != TOMBSTONE && expVal.equals(res));
+  }
+
+  /** If the key is mapped, atomically replace its value with the result of
+   *  the given function, or remove the mapping if the result is null.
+   *  @return the new value associated with the specified key, or null if none
+   *  @throws NullPointerException if the specified key or function is null */
+  @Override
+  public TypeV computeIfPresent( final TypeK key, final BiFunction<? super TypeK, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( remappingFunction == null ) throw new NullPointerException();
+    final int fullhash = hash(this,key); // throws NullPointerException if key is null
+    while( true ) {
+      final Object V = get_impl(this,_kvs,key,fullhash);
+      if( V == null ) return null; // Not mapped, nothing to do
+      final TypeV newV = remappingFunction.apply(key,(TypeV)V);
+      final Object res = putIfMatch(this,_kvs,key,newV == null ? TOMBSTONE : newV,V);
+      if( matched(V,res) ) return newV;
+    }                           // Lost the CAS race, retry
+  }
+
+  /** Atomically replace the value mapped to the key (or null if none) with
+   *  the result of the given function, or remove the mapping if the result
+   *  is null.
+   *  @return the new value associated with the specified key, or null if none
+   *  @throws NullPointerException if the specified key or function is null */
+  @Override
+  public TypeV compute( final TypeK key, final BiFunction<? super TypeK, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( remappingFunction == null ) throw new NullPointerException();
+    final int fullhash = hash(this,key); // throws NullPointerException if key is null
+    while( true ) {
+      final Object V = get_impl(this,_kvs,key,fullhash);
+      final TypeV newV = remappingFunction.apply(key,(TypeV)V);
+      if( V == null && newV == null ) return null; // Absent and stays absent
+      final Object expVal = V == null ? TOMBSTONE : V;
+      final Object res = putIfMatch(this,_kvs,key,newV == null ? TOMBSTONE : newV,expVal);
+      if( matched(expVal,res) ) return newV;
+    }                           // Lost the CAS race, retry
+  }
+
+  /** If the key is not mapped, atomically map it to the given value;
+   *  otherwise replace the value with the result of the given function, or
+   *  remove the mapping if the result is null.
+   *  @return the new value associated with the specified key, or null if none
+   *  @throws NullPointerException if the specified key, value or function is null */
+  @Override
+  public TypeV merge( final TypeK key, final TypeV value, final BiFunction<? super TypeV, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( value == null || remappingFunction == null ) throw new NullPointerException();
+    final int fullhash = hash(this,key); // throws NullPointerException if key is null
+    while( true ) {
+      final Object V = get_impl(this,_kvs,key,fullhash);
+      final TypeV newV = V == null ? value : remappingFunction.apply((TypeV)V,value);
+      final Object expVal = V == null ? TOMBSTONE : V;
+      final Object res = putIfMatch(this,_kvs,key,newV == null ? TOMBSTONE : newV,expVal);
+      if( matched(expVal,res) ) return newV;
+    }                           // Lost the CAS race, retry
+  }
+
   private final TypeV putIfMatch( Object key, Object newVal, Object oldVal ) {
     if (oldVal == null || newVal == null) throw new NullPointerException();
     final Object res = putIfMatch( this, _kvs, key, newVal, oldVal );
@@ -388,6 +515,25 @@ public class NonBlockingHashMap<TypeK, TypeV>
     return false;
   }
 
+  /** Copies the table into one sized to the current number of mappings,
+   *  but never larger than the current table, reclaiming the space held by
+   *  removed mappings.  A resize already in progress is finished instead,
+   *  whatever size it picked.  Deleted keys
+   *  hold on to their table slot until the next resize; a table mostly full
+   *  of removed keys will eventually shrink by itself as further removes are
+   *  done, but this method forces it now (e.g. right after a mass deletion).
+   *  Like any resize, the copy runs concurrently with other operations, and
+   *  the calling thread copies the whole table before returning. */
+  public void compact() {
+    final Object[] kvs = _kvs;
+    final CHM chm = chm(kvs);
+    chm.compact(this,kvs);
+    chm.help_copy_impl(this,kvs,true);
+  }
+
+  // Count of K,V pair slots in the top-level table, for testing
+  final int capacity() { return len(_kvs); }
+
   // This function is supposed to do something for Hashtable, and the JCK
   // tests hang until it gets called... by somebody ... for some reason,
   // any reason....
@@ -462,7 +608,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // Check for key equality.  Try direct pointer compare first, then see if
   // the hashes are unequal (fast negative test) and finally do the full-on
   // 'equals' v-call.
-  private static boolean keyeq( Object K, Object key, int[] hashes, int hash, int fullhash ) {
+  private static boolean keyeq( Object K, Object key, int[] hashes, int hash, int fullhash, HashingStrategy<Object> s ) {
     return
       K==key ||                 // Either keys match exactly OR
       // hash exists and matches?  hash can be zero during the install of a
@@ -477,7 +623,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
        // operands (since equals is commutative), but I'm making mega-morphic
        // v-calls in a reprobing loop and nailing down the 'this' argument
        // gives both the JIT and the hardware a chance to prefetch the call target.
-       key.equals(K));          // Finally do the hard match
+       (s == null ? key.equals(K) : s.equals(key,K))); // Finally do the hard match
   }
 
   // --- get -----------------------------------------------------------------
@@ -491,13 +637,13 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // Never returns a Prime nor a Tombstone.
   @Override
   public TypeV get( Object key ) {
-    final int fullhash= hash (key); // throws NullPointerException if key is null
+    final int fullhash= hash(this,key); // throws NullPointerException if key is null
     final Object V = get_impl(this,_kvs,key,fullhash);
     assert !(V instanceof Prime); // Never return a Prime
     return (TypeV)V;
   }
 
-  private static final Object get_impl( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final int fullhash ) {
+  private static final Object get_impl( final NonBlockingHashMap<?,?> topmap, final Object[] kvs, final Object key, final int fullhash ) {
     final int len     = len  (kvs); // Count of key/value pairs, reads kvs.length
     final CHM chm     = chm  (kvs); // The CHM, for a volatile read below; reads slot 0 of kvs
     final int[] hashes=hashes(kvs); // The memoized hashes; reads slot 1 of kvs
@@ -511,7 +657,10 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // table; hopefully the read of 'key' then hits in cache.
       final Object K = key(kvs,idx); // Get key   before volatile read, could be null
       final Object V = val(kvs,idx); // Get value before volatile read, could be null or Tombstone or Prime
-      if( K == null ) return null;   // A clear miss
+      if( K == null ) {              // A clear miss
+        if( topmap._stats != null ) topmap._stats.probed(reprobe_cnt);
+        return null;
+      }
 
       // We need a volatile-read here to preserve happens-before semantics on
       // newly inserted Keys.  If the Key body was written just before inserting
@@ -525,10 +674,12 @@ public class NonBlockingHashMap<TypeK, TypeV>
       final Object[] newkvs = chm._newkvs; // VOLATILE READ before key compare
 
       // Key-compare
-      if( keyeq(K,key,hashes,idx,fullhash) ) {
+      if( keyeq(K,key,hashes,idx,fullhash,topmap._strategy) ) {
         // Key hit!  Check for no table-copy-in-progress
-        if( !(V instanceof Prime) ) // No copy?
+        if( !(V instanceof Prime) ) { // No copy?
+          if( topmap._stats != null ) topmap._stats.probed(reprobe_cnt);
           return (V == TOMBSTONE) ? null : V; // Return the value
+        }
         // Key hit - but slot is (possibly partially) copied to the new table.
         // Finish the copy & retry in the new table.
         return get_impl(topmap,chm.copy_slot_and_check(topmap,kvs,idx,key),key,fullhash); // Retry in the new table
@@ -550,11 +701,11 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // assumed to work (although might have been immediately overwritten).  Only
   // the path through copy_slot passes in an expected value of null, and
   // putIfMatch only returns a null if passed in an expected null.
-  private static final Object putIfMatch( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final Object putval, final Object expVal ) {
+  private static final Object putIfMatch( final NonBlockingHashMap<?,?> topmap, final Object[] kvs, final Object key, final Object putval, final Object expVal ) {
     assert putval != null;
     assert !(putval instanceof Prime);
     assert !(expVal instanceof Prime);
-    final int fullhash = hash  (key); // throws NullPointerException if key null
+    final int fullhash = hash(topmap,key); // throws NullPointerException if key null
     final int len      = len   (kvs); // Count of key/value pairs, reads kvs.length
     final CHM chm      = chm   (kvs); // Reads kvs[0]
     final int[] hashes = hashes(kvs); // Reads kvs[1], read before kvs[0]
@@ -602,7 +753,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // Annoyingly this means we have to volatile-read before EACH key compare.
       newkvs = chm._newkvs;     // VOLATILE READ before key compare
 
-      if( keyeq(K,key,hashes,idx,fullhash) )
+      if( keyeq(K,key,hashes,idx,fullhash,topmap._strategy) )
         break;                  // Got it!
 
       // get and put must have the same key lookup logic!  Lest 'get' give
@@ -620,6 +771,8 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
       idx = (idx+1)&(len-1); // Reprobe!
     } // End of spinning till we get a Key slot
+    if( expVal != null && topmap._stats != null ) // Not a table-copy put?
+      topmap._stats.probed(reprobe_cnt);
 
     // ---
     // Found the proper Key slot, now update the matching Value slot.  We
@@ -675,7 +828,14 @@ public class NonBlockingHashMap<TypeK, TypeV>
         if( expVal != null ) {
           // Adjust sizes - a striped counter
           if(  (V == null || V == TOMBSTONE) && putval != TOMBSTONE ) chm._size.add( 1);
-          if( !(V == null || V == TOMBSTONE) && putval == TOMBSTONE ) chm._size.add(-1);
+          if( !(V == null || V == TOMBSTONE) && putval == TOMBSTONE ) {
+            chm._size.add(-1);
+            // After a mass deletion, copy into a smaller table to drop the
+            // dead key slots.  Like any resize, the copy is then helped
+            // along by other threads visiting the table.
+            if( chm.tableSparse(topmap,len) )
+              topmap.help_copy(chm.resize(topmap,kvs));
+          }
         }
         return (V==null && expVal!=null) ? TOMBSTONE : V;
       } 
@@ -783,6 +943,22 @@ public class NonBlockingHashMap<TypeK, TypeV>
         _slots.estimate_get() >= reprobe_limit(len);
     }
 
+    // --- tableSparse --------------------------------------------------------
+    // Heuristic to decide if this table is mostly dead key slots (deleted
+    // keys still claim their slot until the next resize), and we should shrink
+    // into a new smaller table.  Called on every remove, so do the cheap
+    // length check first.  Must agree with the shrink rule in 'resize', lest
+    // every remove starts a copy that does not shrink.
+    private final boolean tableSparse( NonBlockingHashMap topmap, int len ) {
+      return
+        len >= SHRINK_MIN_SIZE &&
+        // At least 1/4 of the slots claimed, but less than 1/8 still live
+        _slots.estimate_get() >= (len>>2) &&
+        _size.estimate_get() < (len>>3) &&
+        // Not right after a resize
+        System.currentTimeMillis() > topmap._last_resize_milli+10000;
+    }
+
     // --- resize ------------------------------------------------------------
     // Resizing after too many probes.  "How Big???" heuristics are here.
     // Callers will (not this routine) will 'help_copy' any in-progress copy.
@@ -823,8 +999,14 @@ public class NonBlockingHashMap<TypeK, TypeV>
           (q=_slots.estimate_get()) >= (sz<<1) ) // 1/2 of keys are dead?
         newsz = oldlen<<1;      // Double the existing size
 
-      // Do not shrink, ever
-      if( newsz < oldlen ) newsz = oldlen;
+      // Shrink only a mostly-dead table, and not right after a resize, lest
+      // a high key-churn table flip-flop between shrinking and growing.
+      if( newsz < oldlen ) {
+        if( oldlen >= SHRINK_MIN_SIZE && sz < (oldlen>>3) && tm > topmap._last_resize_milli+10000 )
+          newsz = sz<<2;        // Shrink to a 1/4 full table
+        else
+          newsz = oldlen;       // Else do not shrink
+      }
 
       // Convert to power-of-2
       int log2;
@@ -868,7 +1050,12 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
       // The new table must be CAS'd in so only 1 winner amongst duplicate
       // racing resizing threads.  Extra CHM's will be GC'd.
+      final ResizeStats stats = topmap._stats;
       if( CAS_newkvs( newkvs ) ) { // NOW a resize-is-in-progress!
+        if( stats != null ) {
+          _copy_start = System.nanoTime();
+          stats.started(oldlen,1<<log2,_slots.estimate_get(),sz);
+        }
         //notifyAll();            // Wake up any sleepers
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
@@ -880,6 +1067,40 @@ public class NonBlockingHashMap<TypeK, TypeV>
     }
 
 
+    // --- compact -----------------------------------------------------------
+    // Start a copy into a new table sized to the live keys only (1/4 full, as
+    // 'initialize' sizes tables) but no bigger than this one, dropping all
+    // dead key slots.  No heuristics and no throttling of allocating threads:
+    // this is only called on user request.  A copy already in progress is
+    // returned instead, since it drops the dead key slots as well.
+    private final Object[] compact( NonBlockingHashMap topmap, Object[] kvs ) {
+      assert chm(kvs) == this;
+      Object[] newkvs = _newkvs; // VOLATILE READ
+      if( newkvs != null )       // See if resize is already in progress
+        return newkvs;           // Use the new table already
+      int log2;
+      for( log2=MIN_SIZE_LOG; (1<<log2) < (size()<<2); log2++ ) ; // Compute log2 of size
+      final int oldlog2 = Integer.numberOfTrailingZeros(len(kvs));
+      if( log2 > oldlog2 ) log2 = oldlog2; // Compacting never grows the table
+      newkvs = new Object[((1<<log2)<<1)+2];
+      newkvs[0] = new CHM(_size); // CHM in slot 0
+      newkvs[1] = new int[1<<log2]; // hashes in slot 1
+      final ResizeStats stats = topmap._stats;
+      if( CAS_newkvs( newkvs ) ) { // NOW a resize-is-in-progress!
+        if( stats != null ) {
+          _copy_start = System.nanoTime();
+          stats.started(len(kvs),1<<log2,_slots.estimate_get(),size());
+        }
+        topmap.rehash();        // Call for Hashtable's benefit
+      } else                    // CAS failed?
+        newkvs = _newkvs;       // Reread new table
+      return newkvs;
+    }
+
+    // When the copy out of this table began; set only with stats enabled,
+    // and only by the thread whose new table won the CAS
+    long _copy_start;
+
     // The next part of the table to copy.  It monotonically transits from zero
     // to _kvs.length.  Visitors to the table can claim 'work chunks' by
     // CAS'ing this field up, then copying the indicated indices from the old
@@ -910,6 +1131,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
       // ---
       int panic_start = -1;
+      int copied = 0;               // Slots copied by this call, for stats
       int copyidx=-9999;            // Fool javac to think it's initialized
       while( _copyDone < oldlen ) { // Still needing to copy?
         // Carve out a chunk of work.  The counter wraps around so every
@@ -943,11 +1165,15 @@ public class NonBlockingHashMap<TypeK, TypeV>
         //    copy_check_and_promote( topmap, oldkvs, 1 );// See if we can promote
 
         copyidx += MIN_COPY_WORK;
+        copied += workdone;
         // Uncomment these next 2 lines to turn on incremental table-copy.
         // Otherwise this thread continues to copy until it is all done.
-        if( !copy_all && panic_start == -1 ) // No panic?
+        if( !copy_all && panic_start == -1 ) { // No panic?
+          if( copied > 0 && topmap._stats != null ) topmap._stats.helped(copied);
           return;       // Then done copying after doing MIN_COPY_WORK
+        }
       }
+      if( copied > 0 && topmap._stats != null ) topmap._stats.helped(copied);
       // Extra promotion check, in case another thread finished all copying
       // then got stalled before promoting.
       copy_check_and_promote( topmap, oldkvs, 0 );// See if we can promote
@@ -1001,6 +1227,8 @@ public class NonBlockingHashMap<TypeK, TypeV>
           // Attempt to promote
           topmap.CAS_kvs(oldkvs,_newkvs) ) {
         topmap._last_resize_milli = System.currentTimeMillis(); // Record resize time for next check
+        if( topmap._stats != null && _copy_start != 0 ) // Stats on when the copy began?
+          topmap._stats.promoted(System.nanoTime()-_copy_start);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Promote table to "+len(_newkvs));
         //if( System.out != null ) System.out.print("]");
@@ -1077,25 +1305,29 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
 
   // --- Snapshot ------------------------------------------------------------
+  // Get a clean view of the K/V array: a top-level table with no
+  // table-copy-in-progress, shared by the iterators and spliterators.
+  private final Object[] snapshot_kvs() {
+    while( true ) {             // Verify no table-copy-in-progress
+      Object[] topkvs = _kvs;
+      CHM topchm = chm(topkvs);
+      if( topchm._newkvs == null ) // No table-copy-in-progress
+        // The "linearization point" for the iteration.  Every key in this
+        // table will be visited, but keys added later might be skipped or
+        // even be added to a following table (also not iterated over).
+        return topkvs;
+      // Table copy in-progress - so we cannot get a clean iteration.  We
+      // must help finish the table copy before we can start iterating.
+      topchm.help_copy_impl(this,topkvs,true);
+    }
+  }
+
   // The main class for iterating over the NBHM.  It "snapshots" a clean
   // view of the K/V array.
   private class SnapshotV implements Iterator<TypeV>, Enumeration<TypeV> {
     final Object[] _sskvs;
     public SnapshotV() {
-      while( true ) {           // Verify no table-copy-in-progress
-        Object[] topkvs = _kvs;
-        CHM topchm = chm(topkvs);
-        if( topchm._newkvs == null ) { // No table-copy-in-progress
-          // The "linearization point" for the iteration.  Every key in this
-          // table will be visited, but keys added later might be skipped or
-          // even be added to a following table (also not iterated over).
-          _sskvs = topkvs;
-          break;
-        }
-        // Table copy in-progress - so we cannot get a clean iteration.  We
-        // must help finish the table copy before we can start iterating.
-        topchm.help_copy_impl(NonBlockingHashMap.this,topkvs,true);
-      }
+      _sskvs = snapshot_kvs();
       // Warm-up the iterator
       next();
     }
@@ -1162,6 +1394,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
       @Override public int     size    (          ) { return NonBlockingHashMap.this.size         ( ); }
       @Override public boolean contains( Object v ) { return NonBlockingHashMap.this.containsValue(v); }
       @Override public Iterator<TypeV> iterator()   { return new SnapshotV(); }
+      @Override public Spliterator<TypeV> spliterator() { return new SplitV(snapshot_kvs()); }
     };
   }
 
@@ -1202,6 +1435,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
       @Override public boolean contains( Object k ) { return NonBlockingHashMap.this.containsKey(k); }
       @Override public boolean remove  ( Object k ) { return NonBlockingHashMap.this.remove  (k) != null; }
       @Override public Iterator<TypeK> iterator()   { return new SnapshotK(); }
+      @Override public Spliterator<TypeK> spliterator() { return new SplitK(snapshot_kvs()); }
     };
   }
 
@@ -1263,9 +1497,243 @@ public class NonBlockingHashMap<TypeK, TypeV>
         return v.equals(e.getValue());
       }
       @Override public Iterator<Map.Entry<TypeK,TypeV>> iterator() { return new SnapshotE(); }
+      @Override public Spliterator<Map.Entry<TypeK,TypeV>> spliterator() { return new SplitE(snapshot_kvs()); }
     };
   }
 
+  // --- snapval -------------------------------------------------------------
+  // Live value for slot 'idx' of a snapshot K/V array, or null if the slot
+  // holds no live K/V pair.  Reading the slot directly avoids a full 'get'
+  // per key; a slot boxed by a later table-copy is looked up through 'get',
+  // which follows _newkvs to the current value.
+  private final Object snapval( final Object[] kvs, final int idx ) {
+    final Object K = key(kvs,idx);
+    if( K == null || K == TOMBSTONE ) return null;
+    final Object V = val(kvs,idx);
+    // VOLATILE READ before using K or V, same as in get_impl
+    final Object[] newkvs = chm(kvs)._newkvs;
+    // Any Prime means a copy has (or is about to have) the real value; a
+    // stale read of _newkvs can miss the copy, so test the Prime alone.
+    if( V instanceof Prime )
+      return get(K);
+    return V == TOMBSTONE ? null : V;
+  }
+
+  // --- Spliterators --------------------------------------------------------
+  // Splittable traversal over a snapshot K/V array.  Splitting hands out
+  // halves of the remaining slot-index range, so a parallel stream over a big
+  // table keeps every core busy scanning its own part of the array.  Same
+  // weakly-consistent guarantees as the Snapshot iterators.
+  private abstract class SplitS<T> implements Spliterator<T> {
+    final Object[] _sskvs;
+    int _idx;                   // Next slot to scan
+    final int _fence;           // One past the last slot to scan
+    SplitS( Object[] kvs, int idx, int fence ) { _sskvs = kvs; _idx = idx; _fence = fence; }
+    abstract SplitS<T> make( int idx, int fence );
+    abstract T elem( Object K, Object V );
+    public Spliterator<T> trySplit() {
+      final int lo = _idx, mid = (lo+_fence)>>>1;
+      if( mid <= lo ) return null;
+      _idx = mid;               // Keep the upper half, hand out the lower half
+      return make(lo,mid);
+    }
+    public boolean tryAdvance( Consumer<? super T> action ) {
+      if( action == null ) throw new NullPointerException();
+      while( _idx < _fence ) {
+        final int idx = _idx++;
+        final Object V = snapval(_sskvs,idx);
+        if( V != null ) {
+          action.accept(elem(NonBlockingHashMap.key(_sskvs,idx),V));
+          return true;
+        }
+      }
+      return false;
+    }
+    public void forEachRemaining( Consumer<? super T> action ) {
+      if( action == null ) throw new NullPointerException();
+      final int fence = _fence;
+      for( int idx = _idx; idx < fence; idx++ ) {
+        final Object V = snapval(_sskvs,idx);
+        if( V != null ) action.accept(elem(NonBlockingHashMap.key(_sskvs,idx),V));
+      }
+      _idx = fence;
+    }
+    // Assume live keys are evenly spread over the table
+    public long estimateSize() { return (long)(_fence-_idx)*chm(_sskvs).size()/len(_sskvs); }
+    public int characteristics() { return CONCURRENT | NONNULL | DISTINCT; }
+  }
+  private final class SplitK extends SplitS<TypeK> {
+    SplitK( Object[] kvs ) { this(kvs,0,len(kvs)); }
+    SplitK( Object[] kvs, int idx, int fence ) { super(kvs,idx,fence); }
+    SplitS<TypeK> make( int idx, int fence ) { return new SplitK(_sskvs,idx,fence); }
+    TypeK elem( Object K, Object V ) { return (TypeK)K; }
+  }
+  private final class SplitV extends SplitS<TypeV> {
+    SplitV( Object[] kvs ) { this(kvs,0,len(kvs)); }
+    SplitV( Object[] kvs, int idx, int fence ) { super(kvs,idx,fence); }
+    SplitS<TypeV> make( int idx, int fence ) { return new SplitV(_sskvs,idx,fence); }
+    TypeV elem( Object K, Object V ) { return (TypeV)V; }
+    @Override public int characteristics() { return CONCURRENT | NONNULL; }
+  }
+  private final class SplitE extends SplitS<Map.Entry<TypeK,TypeV>> {
+    SplitE( Object[] kvs ) { this(kvs,0,len(kvs)); }
+    SplitE( Object[] kvs, int idx, int fence ) { super(kvs,idx,fence); }
+    SplitS<Map.Entry<TypeK,TypeV>> make( int idx, int fence ) { return new SplitE(_sskvs,idx,fence); }
+    Map.Entry<TypeK,TypeV> elem( Object K, Object V ) { return new NBHMEntry((TypeK)K,(TypeV)V); }
+  }
+
+  // --- Bulk operations -----------------------------------------------------
+  // Parallel forEach, reduce and search in the style of ConcurrentHashMap's
+  // bulk operations.  Each runs over a snapshot K/V array, with ForkJoin
+  // tasks splitting the slot-index range until a range is no bigger than the
+  // 'grain'.  Like the iterators they are weakly consistent, and they never
+  // create Map.Entry objects.
+
+  // Slot-range size of a single sequential task.  The whole table if the map
+  // holds fewer than 'threshold' elements (so Long.MAX_VALUE means run in the
+  // calling thread), else enough ranges to keep the common pool busy.
+  private static int grain( final Object[] kvs, final long threshold ) {
+    final int len = len(kvs);
+    final long sz = chm(kvs).size();
+    final long t = Math.max(threshold,1);
+    if( sz < t ) return len;
+    final long tasks = Math.min(sz/t, ForkJoinPool.getCommonPoolParallelism()<<2);
+    return tasks <= 1 ? len : (int)Math.max(len/tasks,1);
+  }
+
+  // Split a slot range until it is no bigger than the grain, then run the
+  // range in a plain loop.  Results are combined on the way back up.
+  private abstract class BulkTask<U> extends RecursiveTask<U> {
+    private static final long serialVersionUID = 1234123412341234123L;
+    final Object[] _bkvs;
+    final int _lo, _hi, _grain;
+    BulkTask( Object[] kvs, int lo, int hi, int grain ) { _bkvs = kvs; _lo = lo; _hi = hi; _grain = grain; }
+    abstract BulkTask<U> make( int lo, int hi );
+    abstract U leaf();
+    abstract U combine( U a, U b );
+    protected final U compute() {
+      if( _hi-_lo <= _grain ) return leaf();
+      final int mid = (_lo+_hi)>>>1;
+      final BulkTask<U> lo = make(_lo,mid);
+      lo.fork();
+      final U hi = make(mid,_hi).compute();
+      return combine(lo.join(),hi);
+    }
+    // Run in the calling thread if the task is a single grain
+    final U invoke_bulk() {
+      return _hi-_lo <= _grain ? leaf() : ForkJoinPool.commonPool().invoke(this);
+    }
+  }
+
+  private final class ForEachTask extends BulkTask<Void> {
+    private static final long serialVersionUID = 1234123412341234123L;
+    final BiConsumer<? super TypeK,? super TypeV> _action;
+    ForEachTask( Object[] kvs, int lo, int hi, int grain, BiConsumer<? super TypeK,? super TypeV> action ) { super(kvs,lo,hi,grain); _action = action; }
+    BulkTask<Void> make( int lo, int hi ) { return new ForEachTask(_bkvs,lo,hi,_grain,_action); }
+    Void combine( Void a, Void b ) { return null; }
+    Void leaf() {
+      for( int idx = _lo; idx < _hi; idx++ ) {
+        final Object V = snapval(_bkvs,idx);
+        if( V != null ) _action.accept((TypeK)key(_bkvs,idx),(TypeV)V);
+      }
+      return null;
+    }
+  }
+
+  private final class ReduceTask<U> extends BulkTask<U> {
+    private static final long serialVersionUID = 1234123412341234123L;
+    final BiFunction<? super TypeK,? super TypeV,? extends U> _transformer;
+    final BiFunction<? super U,? super U,? extends U> _reducer;
+    ReduceTask( Object[] kvs, int lo, int hi, int grain, BiFunction<? super TypeK,? super TypeV,? extends U> transformer, BiFunction<? super U,? super U,? extends U> reducer ) {
+      super(kvs,lo,hi,grain); _transformer = transformer; _reducer = reducer;
+    }
+    BulkTask<U> make( int lo, int hi ) { return new ReduceTask<U>(_bkvs,lo,hi,_grain,_transformer,_reducer); }
+    U combine( U a, U b ) { return a == null ? b : (b == null ? a : _reducer.apply(a,b)); }
+    U leaf() {
+      U r = null;
+      for( int idx = _lo; idx < _hi; idx++ ) {
+        final Object V = snapval(_bkvs,idx);
+        if( V != null ) r = combine(r,_transformer.apply((TypeK)key(_bkvs,idx),(TypeV)V));
+      }
+      return r;
+    }
+  }
+
+  private final class SearchTask<U> extends BulkTask<U> {
+    private static final long serialVersionUID = 1234123412341234123L;
+    final BiFunction<? super TypeK,? super TypeV,? extends U> _search;
+    final AtomicReference<U> _found; // Shared by all tasks, so they can quit early
+    SearchTask( Object[] kvs, int lo, int hi, int grain, BiFunction<? super TypeK,? super TypeV,? extends U> search, AtomicReference<U> found ) {
+      super(kvs,lo,hi,grain); _search = search; _found = found;
+    }
+    BulkTask<U> make( int lo, int hi ) { return new SearchTask<U>(_bkvs,lo,hi,_grain,_search,_found); }
+    U combine( U a, U b ) { return _found.get(); }
+    U leaf() {
+      for( int idx = _lo; idx < _hi && _found.get() == null; idx++ ) {
+        final Object V = snapval(_bkvs,idx);
+        if( V == null ) continue;
+        final U u = _search.apply((TypeK)key(_bkvs,idx),(TypeV)V);
+        if( u != null ) { _found.compareAndSet(null,u); break; }
+      }
+      return _found.get();
+    }
+  }
+
+  /** Performs the given action for each (key, value), in parallel if the
+   *  map holds at least <tt>parallelismThreshold</tt> elements.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *         for this operation to be executed in parallel
+   *  @param action the action
+   *  @throws NullPointerException if the action is null */
+  public void forEach( long parallelismThreshold, BiConsumer<? super TypeK,? super TypeV> action ) {
+    if( action == null ) throw new NullPointerException();
+    final Object[] kvs = snapshot_kvs();
+    new ForEachTask(kvs,0,len(kvs),grain(kvs,parallelismThreshold),action).invoke_bulk();
+  }
+
+  /** Performs the given action for each (key, value), without creating
+   *  any Map.Entry objects.
+   *  @throws NullPointerException if the action is null */
+  @Override
+  public void forEach( BiConsumer<? super TypeK,? super TypeV> action ) { forEach(Long.MAX_VALUE,action); }
+
+  /** Returns the result of accumulating the given transformation of all
+   *  (key, value) pairs using the given reducer to combine values, or null
+   *  if none.  Runs in parallel if the map holds at least
+   *  <tt>parallelismThreshold</tt> elements.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *         for this operation to be executed in parallel
+   *  @param transformer a function returning the transformation for an
+   *         element, or null if there is no transformation (in which case it
+   *         is not combined)
+   *  @param reducer a commutative associative combining function
+   *  @return the result of accumulating the given transformation of all
+   *          (key, value) pairs
+   *  @throws NullPointerException if the transformer or reducer is null */
+  public <U> U reduce( long parallelismThreshold, BiFunction<? super TypeK,? super TypeV,? extends U> transformer, BiFunction<? super U,? super U,? extends U> reducer ) {
+    if( transformer == null || reducer == null ) throw new NullPointerException();
+    final Object[] kvs = snapshot_kvs();
+    return new ReduceTask<U>(kvs,0,len(kvs),grain(kvs,parallelismThreshold),transformer,reducer).invoke_bulk();
+  }
+
+  /** Returns a non-null result from applying the given search function on
+   *  each (key, value), or null if none.  Upon success, further element
+   *  processing is suppressed and the results of any other parallel
+   *  invocations of the search function are ignored.  Runs in parallel if
+   *  the map holds at least <tt>parallelismThreshold</tt> elements.
+   *  @param parallelismThreshold the (estimated) number of elements needed
+   *         for this operation to be executed in parallel
+   *  @param searchFunction a function returning a non-null result on
+   *         success, else null
+   *  @return a non-null result from applying the given search function on
+   *          each (key, value), or null if none
+   *  @throws NullPointerException if the search function is null */
+  public <U> U search( long parallelismThreshold, BiFunction<? super TypeK,? super TypeV,? extends U> searchFunction ) {
+    if( searchFunction == null ) throw new NullPointerException();
+    final Object[] kvs = snapshot_kvs();
+    return new SearchTask<U>(kvs,0,len(kvs),grain(kvs,parallelismThreshold),searchFunction,new AtomicReference<U>()).invoke_bulk();
+  }
+
   // --- writeObject -------------------------------------------------------
   // Write a NBHM to a stream
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
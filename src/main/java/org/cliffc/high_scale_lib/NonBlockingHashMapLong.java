@@ -100,6 +100,7 @@ public class NonBlockingHashMapLong<TypeV>
   // --- Bits to allow Unsafe CAS'ing of the CHM field
   private static final long _chm_offset;
   private static final long _val_1_offset;
+  private static final long _stats_offset;
   static {                      // <clinit>
     Field f = null;
     try { f = NonBlockingHashMapLong.class.getDeclaredField("_chm"); }
@@ -109,6 +110,10 @@ public class NonBlockingHashMapLong<TypeV>
     try { f = NonBlockingHashMapLong.class.getDeclaredField("_val_1"); }
     catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); } 
     _val_1_offset = _unsafe.objectFieldOffset(f);
+
+    try { f = NonBlockingHashMapLong.class.getDeclaredField("_stats"); }
+    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    _stats_offset = _unsafe.objectFieldOffset(f);
   }
   private final boolean CAS( final long offset, final Object old, final Object nnn ) {
     return _unsafe.compareAndSwapObject(this, offset, old, nnn );
@@ -125,6 +130,7 @@ public class NonBlockingHashMapLong<TypeV>
   private transient CHM _chm;
   // This next field holds the value for Key 0 - the special key value which
   // is the initial array value, and also means: no-key-inserted-yet.
+  // Once the map is made immutable this holds a Prime'd value.
   private transient Object _val_1; // Value for Key: NO_KEY
 
   // Time since last resize
@@ -195,6 +201,22 @@ public class NonBlockingHashMapLong<TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Resize statistics; null, and nearly free, until enableResizeStats is
+  // called.  A plain field: threads may miss a few records right after.
+  private transient ResizeStats _stats;
+  /** Turn on resize and table-copy statistics for this map; see {@link
+   *  ResizeStats}.  Until the first call, statistics cost one field test per
+   *  operation.  Later calls return the same statistics.
+   *  @return the statistics, live for the life of the map */
+  public ResizeStats enableResizeStats() {
+    ResizeStats s = _stats;
+    if( s == null && !CAS(_stats_offset,null,s = new ResizeStats()) )
+      s = _stats;
+    return s;
+  }
+  /** @return the resize statistics, or null if never enabled */
+  public ResizeStats resizeStats() { return _stats; }
+
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
@@ -245,7 +267,7 @@ public class NonBlockingHashMapLong<TypeV>
 
   /** Returns the number of key-value mappings in this map.
    *  @return the number of key-value mappings in this map */
-  public int     size       ( )                     { return (_val_1==TOMBSTONE?0:1) + (int)_chm.size(); }
+  public int     size       ( )                     { return (Prime.unbox(_val_1)==TOMBSTONE?0:1) + (int)_chm.size(); }
   /** Tests if the key in the table.
    * @return <tt>true</tt> if the key is in the table */
   public boolean containsKey( long key )            { return get(key) != null; }
@@ -304,13 +326,18 @@ public class NonBlockingHashMapLong<TypeV>
   private final TypeV putIfMatch( long key, Object newVal, Object oldVal ) {
     if (oldVal == null || newVal == null)  throw new NullPointerException();
     if( key == NO_KEY ) {
-      final Object curVal = _val_1;
-      if( oldVal == NO_MATCH_OLD || // Do we care about expected-Value at all?
-          curVal == oldVal ||       // No instant match already?
-          (oldVal == MATCH_ANY && curVal != TOMBSTONE) ||
-          oldVal.equals(curVal) )   // Expensive equals check
-        CAS(_val_1_offset,curVal,newVal); // One shot CAS update attempt
-      return curVal == TOMBSTONE ? null : (TypeV)curVal; // Return the last value present
+      while( true ) {
+        final Object curVal = _val_1;
+        if( curVal instanceof Prime ) throw new IllegalStateException("map is immutable");
+        if( !(oldVal == NO_MATCH_OLD || // Do we care about expected-Value at all?
+              curVal == oldVal ||       // No instant match already?
+              (oldVal == MATCH_ANY && curVal != TOMBSTONE) ||
+              oldVal.equals(curVal)) || // Expensive equals check
+            // A lost CAS may have lost to immutable(), which Primes _val_1;
+            // so retry until the update lands or the Prime is seen.
+            CAS(_val_1_offset,curVal,newVal) )
+          return curVal == TOMBSTONE ? null : (TypeV)curVal; // Return the last value present
+      }
     }
     final Object res = _chm.putIfMatch( key, newVal, oldVal );
     assert !(res instanceof Prime);
@@ -321,9 +348,50 @@ public class NonBlockingHashMapLong<TypeV>
   /** Removes all of the mappings from this map. */
   public void clear() {         // Smack a new empty table down
     CHM newchm = new CHM(this,new Counter(),MIN_SIZE_LOG);
-    while( !CAS(_chm_offset,_chm,newchm) ) // Spin until the clear works
-      ;
-    CAS(_val_1_offset,_val_1,TOMBSTONE);
+    while( true ) {             // Spin until the clear works
+      final CHM topchm = _chm;
+      if( topchm.frozen() ) throw new IllegalStateException("map is immutable");
+      if( CAS(_chm_offset,topchm,newchm) ) break;
+    }
+    while( true ) {             // Spin until key 0 is cleared, or frozen
+      final Object curVal = _val_1;
+      if( curVal instanceof Prime ) throw new IllegalStateException("map is immutable");
+      if( CAS(_val_1_offset,curVal,TOMBSTONE) ) break;
+    }
+  }
+
+  /** Atomically make the map immutable.  Future calls to mutate will throw
+   *  an IllegalStateException.  Existing mutator calls in other threads
+   *  racing with this thread will either throw IllegalStateException or
+   *  their update will be visible to this thread.  Reads continue to work
+   *  as before.  This call can be called concurrently and is idempotent.
+   *
+   *  <p>The freeze is a table copy into a new table which refuses all but
+   *  copy writes.  Copying Primes each old slot before exposing it in the
+   *  frozen table, so a racing update either lands in the old slot before it
+   *  is Prime'd (and is copied) or finds the Prime and retries in the frozen
+   *  table - and throws. */
+  public void immutable() {
+    // Key 0 lives outside the table; Prime it so no update can land.
+    Object V = _val_1;
+    while( !(V instanceof Prime) ) {
+      if( CAS(_val_1_offset,V,new Prime(V)) ) break;
+      V = _val_1;
+    }
+    while( true ) {
+      final CHM topchm = _chm;
+      if( topchm._frozen ) return; // Already frozen & promoted
+      final CHM newchm = topchm._newchm;
+      if( newchm == null ) {
+        // Install a same-sized frozen table as the copy target
+        topchm.CAS_newchm(new CHM(this,topchm._size,Integer.numberOfTrailingZeros(topchm._keys.length),true));
+        continue;               // Re-read, and copy into whoever won
+      }
+      // Finish whatever copy is in progress, frozen or not, and retry.  If
+      // a racing clear() swapped the top table out, the frozen copy never
+      // promotes and we simply freeze the cleared table instead.
+      topchm.help_copy_impl(true);
+    }
   }
 
   /** Returns <tt>true</tt> if this Map maps one or more keys to the specified
@@ -334,7 +402,7 @@ public class NonBlockingHashMapLong<TypeV>
    *  @throws NullPointerException if the specified value is null */
   public boolean containsValue( Object val ) { 
     if( val == null ) return false;
-    if( val == _val_1 ) return true; // Key 0
+    if( val == Prime.unbox(_val_1) ) return true; // Key 0
     for( TypeV V : values() )
       if( V == val || V.equals(val) )
         return true;
@@ -352,7 +420,7 @@ public class NonBlockingHashMapLong<TypeV>
   // Never returns a Prime nor a Tombstone.
   public final TypeV get( long key ) {
     if( key == NO_KEY ) {
-      final Object V = _val_1;
+      final Object V = Prime.unbox(_val_1);
       return V == TOMBSTONE ? null : (TypeV)V;
     }
     final Object V = _chm.get_impl(key);
@@ -401,6 +469,12 @@ public class NonBlockingHashMapLong<TypeV>
     // Back-pointer to top-level structure
     final NonBlockingHashMapLong _nbhml;
 
+    // A frozen table accepts only copy writes from an older table; any
+    // other update throws.  See NonBlockingHashMapLong.immutable().
+    final boolean _frozen;
+    // True if this table or the copy in progress out of it is frozen
+    boolean frozen() { final CHM newchm = _newchm; return _frozen || (newchm != null && newchm._frozen); }
+
     // Size in active K,V pairs
     private final Counter _size;
     public int size () { return (int)_size.get(); }
@@ -462,7 +536,11 @@ public class NonBlockingHashMapLong<TypeV>
    
     // Simple constructor
     CHM( final NonBlockingHashMapLong nbhml, Counter size, final int logsize ) {
+      this(nbhml,size,logsize,false);
+    }
+    CHM( final NonBlockingHashMapLong nbhml, Counter size, final int logsize, final boolean frozen ) {
       _nbhml = nbhml;
+      _frozen = frozen;
       _size = size;
       _slots= new Counter();
       _keys = new long  [1<<logsize];
@@ -508,12 +586,16 @@ public class NonBlockingHashMapLong<TypeV>
       while( true ) {
         final long   K = _keys[idx]; // Get key   before volatile read, could be NO_KEY
         final Object V = _vals[idx]; // Get value before volatile read, could be null or Tombstone or Prime
-        if( K == NO_KEY ) return null; // A clear miss
+        if( K == NO_KEY ) {     // A clear miss
+          if( _nbhml._stats != null ) _nbhml._stats.probed(reprobe_cnt);
+          return null;
+        }
 
         // Key-compare
         if( key == K ) {
           // Key hit!  Check for no table-copy-in-progress
           if( !(V instanceof Prime) ) { // No copy?
+            if( _nbhml._stats != null ) _nbhml._stats.probed(reprobe_cnt);
             if( V == TOMBSTONE) return null;
             // We need a volatile-read between reading a newly inserted Value
             // and returning the Value (so the user might end up reading the
@@ -547,6 +629,8 @@ public class NonBlockingHashMapLong<TypeV>
       assert putval != null;
       assert !(putval instanceof Prime);
       assert !(expVal instanceof Prime);
+      // Only copies out of an older table may write a frozen table
+      if( _frozen && expVal != null ) throw new IllegalStateException("map is immutable");
       final int len      = _keys.length;
       int idx = (int)(key & (len-1)); // The first key
 
@@ -601,6 +685,8 @@ public class NonBlockingHashMapLong<TypeV>
         
         idx = (idx+1)&(len-1); // Reprobe!
       } // End of spinning till we get a Key slot
+      if( expVal != null && _nbhml._stats != null ) // Not a table-copy put?
+        _nbhml._stats.probed(reprobe_cnt);
       
       // ---
       // Found the proper Key slot, now update the matching Value slot.  We
@@ -753,7 +839,7 @@ public class NonBlockingHashMapLong<TypeV>
         return newchm;          // Use the new table already
 
       // New CHM - actually allocate the big arrays
-      newchm = new CHM(_nbhml,_size,log2);
+      newchm = new CHM(_nbhml,_size,log2,_frozen); // Frozen tables stay frozen
       
       // Another check after the slow allocation
       if( _newchm != null )     // See if resize is already in progress
@@ -761,7 +847,12 @@ public class NonBlockingHashMapLong<TypeV>
 
       // The new table must be CAS'd in so only 1 winner amongst duplicate
       // racing resizing threads.  Extra CHM's will be GC'd.
+      final ResizeStats stats = _nbhml._stats;
       if( CAS_newchm( newchm ) ) { // NOW a resize-is-in-progress!
+        if( stats != null ) {
+          _copy_start = System.nanoTime();
+          stats.started(oldlen,1<<log2,_slots.estimate_get(),sz);
+        }
         //notifyAll();            // Wake up any sleepers
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
@@ -772,6 +863,10 @@ public class NonBlockingHashMapLong<TypeV>
     }
 
 
+    // When the copy out of this table began; set only with stats enabled,
+    // and only by the thread whose new table won the CAS
+    long _copy_start;
+
     // The next part of the table to copy.  It monotonically transits from zero
     // to _keys.length.  Visitors to the table can claim 'work chunks' by
     // CAS'ing this field up, then copying the indicated indices from the old
@@ -801,6 +896,7 @@ public class NonBlockingHashMapLong<TypeV>
 
       // ---
       int panic_start = -1;
+      int copied = 0;               // Slots copied by this call, for stats
       int copyidx=-9999;            // Fool javac to think it's initialized
       while( _copyDone < oldlen ) { // Still needing to copy?
         // Carve out a chunk of work.  The counter wraps around so every
@@ -834,11 +930,15 @@ public class NonBlockingHashMapLong<TypeV>
         //    copy_check_and_promote( 1 );// See if we can promote
 
         copyidx += MIN_COPY_WORK;
+        copied += workdone;
         // Uncomment these next 2 lines to turn on incremental table-copy.
         // Otherwise this thread continues to copy until it is all done.
-        if( !copy_all && panic_start == -1 ) // No panic?
+        if( !copy_all && panic_start == -1 ) { // No panic?
+          if( copied > 0 && _nbhml._stats != null ) _nbhml._stats.helped(copied);
           return;               // Then done copying after doing MIN_COPY_WORK
+        }
       }
+      if( copied > 0 && _nbhml._stats != null ) _nbhml._stats.helped(copied);
       // Extra promotion check, in case another thread finished all copying
       // then got stalled before promoting.
       copy_check_and_promote( 0 ); // See if we can promote
@@ -892,6 +992,8 @@ public class NonBlockingHashMapLong<TypeV>
           // Attempt to promote
           _nbhml.CAS(_chm_offset,this,_newchm) ) {
         _nbhml._last_resize_milli = System.currentTimeMillis();  // Record resize time for next check
+        if( _nbhml._stats != null && _copy_start != 0 ) // Stats on when the copy began?
+          _nbhml._stats.promoted(System.nanoTime()-_copy_start);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Promote table "+oldlen+" to "+_newchm._keys.length);
         //System.out.print("_"+oldlen+"]");
@@ -0,0 +1,991 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import sun.misc.Unsafe;
+import java.lang.reflect.*;
+
+/**
+ * A lock-free hash table mapping <strong>primitive long keys</strong> to
+ * <strong>primitive long values</strong>.  It is the same algorithm as
+ * {@link NonBlockingHashMapLong}, but with the value array also held as a
+ * {@code long[]}: there are no Value objects, no auto-boxing and no 'Prime'
+ * wrappers, so {@link #get}, {@link #put}, {@link #putIfAbsent} and {@link
+ * #addAndGet} allocate nothing at all outside of a table resize.  This makes
+ * it a good fit for id-to-offset indices and for large tables of counters.
+ *
+ * <p>All operations are non-blocking and multi-thread safe, including all
+ * update operations and the incremental table resize.  Retrievals reflect the
+ * results of the most recently <em>completed</em> update operations holding
+ * upon their onset.  Iterators return keys reflecting the state of the table
+ * at some point at or since the creation of the iterator.  They do
+ * <em>not</em> throw {@link ConcurrentModificationException}.  However,
+ * iterators are designed to be used by only one thread at a time.
+ *
+ * <p><strong>Value range:</strong> the object version of this algorithm marks
+ * a Value as 'copied to the new table' by wrapping it in a Prime object, and
+ * marks deleted Values with a TOMBSTONE object.  Here the same information is
+ * packed into the value word itself, which costs one bit: values must lie
+ * strictly between {@link #MIN_VALUE} and {@link #MAX_VALUE}, i.e.  roughly
+ * +/- 2^62.  Attempting to store a value out of this range throws {@link
+ * IllegalArgumentException}.  Absent keys are reported with the {@link
+ * #NO_VALUE} sentinel, which is never a legal value.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+
+public class NonBlockingHashMapLongLong implements Serializable {
+
+  private static final long serialVersionUID = 1234123412341234125L;
+
+  private static final int REPROBE_LIMIT=10; // Too many reprobes then force a table-resize
+
+  // --- Bits to allow Unsafe access to arrays
+  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
+  private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
+  private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
+  private static long rawIndex(final long[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Lbase + idx * _Lscale;
+  }
+
+  // --- Bits to allow Unsafe CAS'ing of the CHM field
+  private static final long _chm_offset;
+  private static final long _val_1_offset;
+  static {                      // <clinit>
+    Field f = null;
+    try { f = NonBlockingHashMapLongLong.class.getDeclaredField("_chm"); }
+    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    _chm_offset = _unsafe.objectFieldOffset(f);
+
+    try { f = NonBlockingHashMapLongLong.class.getDeclaredField("_val_1"); }
+    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    _val_1_offset = _unsafe.objectFieldOffset(f);
+  }
+  private final boolean CAS( final long offset, final Object old, final Object nnn ) {
+    return _unsafe.compareAndSwapObject(this, offset, old, nnn );
+  }
+  private final boolean CAS_val_1( final long old, final long nnn ) {
+    return _unsafe.compareAndSwapLong(this, _val_1_offset, old, nnn );
+  }
+
+  // --- Value words ---------------------------------------------------------
+  // The Value arrays hold encoded 'words' and not raw user values.  A legal
+  // user value V is stored as (V<<1)^Long.MIN_VALUE, which is always even and
+  // never 0 or -2 for V in the legal range.  That frees up the low bit to be
+  // the 'prime' bit (the job the Prime wrapper class does for Object values),
+  // and leaves the words 0 and -2 for the null and TOMBSTONE sentinels.
+
+  /** Sentinel returned by {@link #get} and the update calls for an absent key.  */
+  public static final long NO_VALUE = Long.MIN_VALUE;
+  /** Exclusive lower bound on storable values.  */
+  public static final long MIN_VALUE = Long.MIN_VALUE>>1;
+  /** Exclusive upper bound on storable values.  */
+  public static final long MAX_VALUE = Long.MAX_VALUE>>1;
+
+  // The initial array value: no value has ever been inserted here.  Plays the
+  // part of 'null' in the Object version of this algorithm.
+  private static final long EMPTY = 0L;
+  // This K/V pair has been deleted (but the Key slot is forever claimed).
+  // The same Key can be reinserted with a new value later.
+  private static final long TOMBSTONE = -2L;
+  // Prime'd version of TOMBSTONE.  This K/V pair was deleted, then a table
+  // resize started.  The K/V pair has been marked so that no new updates can
+  // happen to the old table (and since the K/V pair was deleted nothing was
+  // copied to the new table).
+  private static final long TOMBPRIME = TOMBSTONE|1;
+  // No-Match-Old - putIfMatch does updates only if it matches the old value,
+  // and NO_MATCH_OLD basically counts as a wildcard match.  Prime'd words are
+  // never passed in as an expected value, so odd words are free to use here.
+  private static final long NO_MATCH_OLD = 1L;
+  // Match-Any-not-null - putIfMatch does updates only if it find a real old
+  // value.
+  private static final long MATCH_ANY = 3L;
+
+  private static boolean is_prime( final long w ) { return (w&1) != 0; }
+  private static long prime  ( final long w ) { return w |  1; }
+  private static long unprime( final long w ) { return w & ~1L; }
+
+  // Encode a user value as a word, throwing for values out of range.
+  private static long word( final long val ) {
+    if( val <= MIN_VALUE || val >= MAX_VALUE )
+      throw new IllegalArgumentException("value out of range: "+val);
+    return (val<<1)^Long.MIN_VALUE;
+  }
+  // Decode a word back to a user value; absent words decode as NO_VALUE.
+  private static long value( final long w ) {
+    assert !is_prime(w);
+    return (w == EMPTY || w == TOMBSTONE) ? NO_VALUE : (w^Long.MIN_VALUE)>>1;
+  }
+
+  // I exclude 1 long from the 2^64 possibilities, and test for it before
+  // entering the main array.  The NO_KEY value must be zero, the initial
+  // value set by Java before it hands me the array.
+  private static final long NO_KEY = 0L;
+
+  // --- The Hash Table --------------------
+  private transient CHM _chm;
+  // This next field holds the value word for Key 0 - the special key value
+  // which is the initial array value, and also means: no-key-inserted-yet.
+  // Volatile so the long is never torn on a 32-bit JVM.
+  private transient volatile long _val_1; // Value for Key: NO_KEY
+
+  // Time since last resize
+  private transient long _last_resize_milli;
+
+  // Optimize for space: use a 1/2-sized table and allow more re-probes
+  private final boolean _opt_for_space;
+
+  // --- Minimum table size ----------------
+  // Pick size 16 K/V pairs, which turns into (16*2)*8+12 = 268 bytes.
+  private static final int MIN_SIZE_LOG=4;             //
+  private static final int MIN_SIZE=(1<<MIN_SIZE_LOG); // Must be power of 2
+
+  // --- dump ----------------------------------------------------------------
+  /** Verbose printout of table internals, useful for debugging.  */
+  public final void print() {
+    System.out.println("=========");
+    print_impl(-99,NO_KEY,_val_1);
+    _chm.print();
+    System.out.println("=========");
+  }
+  private static final void print_impl(final int i, final long K, final long V) {
+    String p = is_prime(V) ? "prime_" : "";
+    long V2 = unprime(V);
+    String VS = (V2 == TOMBSTONE) ? "tombstone" : (V2 == EMPTY ? "null" : Long.toString(value(V2)));
+    System.out.println("["+i+"]=("+K+","+p+VS+")");
+  }
+
+  // Count of reprobes
+  private transient Counter _reprobes;
+  /** Get and clear the current count of reprobes.  Reprobes happen on key
+   *  collisions, and a high reprobe rate may indicate a poor hash function or
+   *  weaknesses in the table resizing function.
+   *  @return the count of reprobes since the last call to {@link #reprobes}
+   *  or since the table was created.   */
+  public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
+
+  // --- reprobe_limit -----------------------------------------------------
+  // Heuristic to decide if we have reprobed toooo many times.  Running over
+  // the reprobe limit on a 'get' call acts as a 'miss'; on a 'put' call it
+  // can trigger a table resize.  Several places must have exact agreement on
+  // what the reprobe_limit is, so we share it here.
+  private static final int reprobe_limit( int len ) {
+    return REPROBE_LIMIT + (len>>2);
+  }
+
+  // --- NonBlockingHashMapLongLong ------------------------------------------
+  // Constructors
+  /** Create a new NonBlockingHashMapLongLong with default minimum size
+   *  (currently set to 16 K/V pairs). */
+  public NonBlockingHashMapLongLong( ) { this(MIN_SIZE,true); }
+
+  /** Create a new NonBlockingHashMapLongLong with initial room for the given
+   *  number of elements, thus avoiding internal resizing operations to reach
+   *  an appropriate size.  The initial size will be rounded up internally to
+   *  the next larger power of 2. */
+  public NonBlockingHashMapLongLong( final int initial_sz ) { this(initial_sz,true); }
+
+  /** Create a new NonBlockingHashMapLongLong, setting both the initial size
+   *  and the space-for-speed tradeoff.  {@code true} optimizes for space and
+   *  is the default.  {@code false} optimizes for speed and doubles space
+   *  costs for roughly a 10% speed improvement.  */
+  public NonBlockingHashMapLongLong( final int initial_sz, final boolean opt_for_space ) {
+    _opt_for_space = opt_for_space;
+    initialize(initial_sz);
+  }
+  private final void initialize( final int initial_sz ) {
+    if( initial_sz < 0 ) throw new IllegalArgumentException();
+    int i;                      // Convert to next largest power-of-2
+    for( i=MIN_SIZE_LOG; (1<<i) < initial_sz; i++ ) ;
+    _chm = new CHM(this,new Counter(),i);
+    _val_1 = TOMBSTONE;         // Always as-if deleted
+    _reprobes = new Counter();
+    _last_resize_milli = System.currentTimeMillis();
+  }
+
+  // --- wrappers ------------------------------------------------------------
+
+  /** Returns the number of key-value mappings in this map.
+   *  @return the number of key-value mappings in this map */
+  public int     size       ( )                     { return (_val_1==TOMBSTONE?0:1) + _chm.size(); }
+  /** Returns <tt>size() == 0</tt>.
+   *  @return <tt>size() == 0</tt> */
+  public boolean isEmpty    ( )                     { return size() == 0; }
+  /** Tests if the key in the table.
+   * @return <tt>true</tt> if the key is in the table */
+  public boolean containsKey( long key )            { return get(key) != NO_VALUE; }
+
+  /** Maps the specified key to the specified value in the table.
+   *  @param key key with which the specified value is to be associated
+   *  @param val value to be associated with the specified key
+   *  @return the previous value associated with <tt>key</tt>, or
+   *          {@link #NO_VALUE} if there was no mapping for <tt>key</tt>
+   *  @throws IllegalArgumentException if the value is out of range */
+  public long    put        ( long key, long val ) { return value(putIfMatch( key, word(val),NO_MATCH_OLD));}
+
+  /** Atomically, do a {@link #put} if-and-only-if the key is not mapped.
+   *  Useful to ensure that only a single mapping for the key exists, even if
+   *  many threads are trying to create the mapping in parallel.
+   *  @return the previous value associated with the specified key,
+   *         or {@link #NO_VALUE} if there was no mapping for the key
+   *  @throws IllegalArgumentException if the value is out of range */
+  public long    putIfAbsent( long key, long val ) { return value(putIfMatch( key, word(val),TOMBSTONE   ));}
+
+  /** Removes the key (and its corresponding value) from this map.
+    * This method does nothing if the key is not in the map.
+    * @return the previous value associated with <tt>key</tt>, or
+    *         {@link #NO_VALUE} if there was no mapping for <tt>key</tt>*/
+  public long    remove     ( long key )            { return value(putIfMatch( key, TOMBSTONE,NO_MATCH_OLD));}
+
+  /** Atomically do a {@link #remove(long)} if-and-only-if the key is mapped
+   *  to the given value.
+   *  @throws IllegalArgumentException if the value is out of range */
+  public boolean remove     ( long key, long val ) {
+    final long w = word(val);
+    return putIfMatch( key, TOMBSTONE, w ) == w;
+  }
+
+  /** Atomically do a <code>put(key,val)</code> if-and-only-if the key is
+   *  mapped to some value already.
+   *  @return the previous value associated with the specified key,
+   *         or {@link #NO_VALUE} if there was no mapping for the key
+   *  @throws IllegalArgumentException if the value is out of range */
+  public long    replace    ( long key, long val ) { return value(putIfMatch( key, word(val),MATCH_ANY   ));}
+
+  /** Atomically do a <code>put(key,newValue)</code> if-and-only-if the key is
+   *  mapped to <code>oldValue</code>.
+   *  @throws IllegalArgumentException if either value is out of range */
+  public boolean replace    ( long key, long oldValue, long newValue ) {
+    final long w = word(oldValue);
+    return putIfMatch( key, word(newValue), w ) == w;
+  }
+
+  /** Atomically add {@code delta} to the value mapped by {@code key}.  An
+   *  absent key counts as 0, so the first call inserts {@code delta}.  No
+   *  allocation is done (short of a table resize), making this suitable for
+   *  large tables of counters.
+   *  @return the updated value
+   *  @throws IllegalArgumentException if the sum is out of range; the map is
+   *          left unchanged */
+  public long addAndGet( long key, long delta ) {
+    while( true ) {
+      final long oldw = getw(key);
+      final long oldv = value(oldw);
+      final long newv = (oldv == NO_VALUE ? 0 : oldv) + delta;
+      if( putIfMatch( key, word(newv), oldw ) == oldw )
+        return newv;
+    }
+  }
+
+  // Returns the old value word, always TOMBSTONE for an absent key.  If the
+  // returned word is equal to oldVal (or oldVal is NO_MATCH_OLD) then the
+  // put worked.
+  private final long putIfMatch( long key, long newVal, long oldVal ) {
+    assert !is_prime(newVal) && newVal != EMPTY;
+    if( key == NO_KEY ) {
+      while( true ) {
+        final long curVal = _val_1;
+        if( oldVal != NO_MATCH_OLD && // Do we care about expected-Value at all?
+            curVal != oldVal &&       // No instant match already?
+            (oldVal != MATCH_ANY || curVal == TOMBSTONE) )
+          return curVal;              // Do not update!
+        // Unlike the Object version, retry a failed CAS: numeric updates like
+        // addAndGet must not lose a race silently.
+        if( curVal == newVal || CAS_val_1(curVal,newVal) )
+          return curVal;
+      }
+    }
+    final long res = _chm.putIfMatch( key, newVal, oldVal );
+    assert !is_prime(res);
+    assert res != EMPTY;
+    return res;
+  }
+
+  /** Removes all of the mappings from this map. */
+  public void clear() {         // Smack a new empty table down
+    CHM newchm = new CHM(this,new Counter(),MIN_SIZE_LOG);
+    while( !CAS(_chm_offset,_chm,newchm) ) // Spin until the clear works
+      ;
+    _val_1 = TOMBSTONE;
+  }
+
+  /** Returns <tt>true</tt> if this Map maps one or more keys to the specified
+   *  value.  <em>Note</em>: This method requires a full internal traversal of the
+   *  hash table and is much slower than {@link #containsKey}.
+   *  @param val value whose presence in this map is to be tested
+   *  @return <tt>true</tt> if this Map maps one or more keys to the specified value */
+  public boolean containsValue( long val ) {
+    if( val <= MIN_VALUE || val >= MAX_VALUE ) return false;
+    for( IteratorLong it = keys(); it.hasNext(); ) {
+      it.nextLong();
+      if( it.value() == val ) return true;
+    }
+    return false;
+  }
+
+  // --- get -----------------------------------------------------------------
+  /** Returns the value to which the specified key is mapped, or {@link
+   *  #NO_VALUE} if this map contains no mapping for the key.
+   *  <p>No allocation is done. */
+  public final long get( long key ) { return value(getw(key)); }
+
+  /** Returns the value to which the specified key is mapped, or {@code
+   *  defaultValue} if this map contains no mapping for the key. */
+  public final long getOrDefault( long key, long defaultValue ) {
+    final long V = get(key);
+    return V == NO_VALUE ? defaultValue : V;
+  }
+
+  // Never returns a Prime nor EMPTY; absent keys are TOMBSTONE.
+  private final long getw( long key ) {
+    final long V = key == NO_KEY ? _val_1 : _chm.get_impl(key);
+    assert !is_prime(V);
+    return V == EMPTY ? TOMBSTONE : V;
+  }
+
+  // --- help_copy -----------------------------------------------------------
+  // Help along an existing resize operation.  This is just a fast cut-out
+  // wrapper, to encourage inlining for the fast no-copy-in-progress case.  We
+  // always help the top-most table copy, even if there are nested table
+  // copies in progress.
+  private final void help_copy( ) {
+    // Read the top-level CHM only once.  We'll try to help this copy along,
+    // even if it gets promoted out from under us (i.e., the copy completes
+    // and another KVS becomes the top-level copy).
+    CHM topchm = _chm;
+    if( topchm._newchm == null ) return; // No copy in-progress
+    topchm.help_copy_impl(false);
+  }
+
+  // --- CHM -----------------------------------------------------------------
+  // The control structure for the NonBlockingHashMapLongLong
+  private static final class CHM implements Serializable {
+    private static final long serialVersionUID = 1234123412341234125L;
+    // Back-pointer to top-level structure
+    final NonBlockingHashMapLongLong _nbhmll;
+
+    // Size in active K,V pairs
+    private final Counter _size;
+    public int size () { return (int)_size.get(); }
+
+    // ---
+    // These next 2 fields are used in the resizing heuristics, to judge when
+    // it is time to resize or copy the table.  Slots is a count of used-up
+    // key slots, and when it nears a large fraction of the table we probably
+    // end up reprobing too much.  Last-resize-milli is the time since the
+    // last resize; if we are running back-to-back resizes without growing
+    // (because there are only a few live keys but many slots full of dead
+    // keys) then we need a larger table to cut down on the churn.
+
+    // Count of used slots, to tell when table is full of dead unusable slots
+    private final Counter _slots;
+    public int slots() { return (int)_slots.get(); }
+
+    // ---
+    // New mappings, used during resizing.
+    // The 'next' CHM - created during a resize operation.  This represents
+    // the new table being copied from the old one.  It's the volatile
+    // variable that is read as we cross from one table to the next, to get
+    // the required memory orderings.  It monotonically transits from null to
+    // set (once).
+    volatile CHM _newchm;
+    private static final AtomicReferenceFieldUpdater<CHM,CHM> _newchmUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(CHM.class,CHM.class, "_newchm");
+    // Set the _newchm field if we can.  AtomicUpdaters do not fail spuriously.
+    boolean CAS_newchm( CHM newchm ) {
+      return _newchmUpdater.compareAndSet(this,null,newchm);
+    }
+    // Sometimes many threads race to create a new very large table.  Only 1
+    // wins the race, but the losers all allocate a junk large table with
+    // hefty allocation costs.  Attempt to control the overkill here by
+    // throttling attempts to create a new table.  See NonBlockingHashMapLong.
+    volatile long _resizers;    // count of threads attempting an initial resize
+    private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
+
+    // --- key,val -------------------------------------------------------------
+    // Access K,V for a given idx
+    private final boolean CAS_key( int idx, long old, long key ) {
+      return _unsafe.compareAndSwapLong( _keys, rawIndex(_keys, idx), old, key );
+    }
+    private final boolean CAS_val( int idx, long old, long val ) {
+      return _unsafe.compareAndSwapLong( _vals, rawIndex(_vals, idx), old, val );
+    }
+
+    final long [] _keys;
+    final long [] _vals;        // Value words, not user values
+
+    // Simple constructor
+    CHM( final NonBlockingHashMapLongLong nbhmll, Counter size, final int logsize ) {
+      _nbhmll = nbhmll;
+      _size = size;
+      _slots= new Counter();
+      _keys = new long[1<<logsize];
+      _vals = new long[1<<logsize];
+    }
+
+    // --- print innards
+    private final void print() {
+      for( int i=0; i<_keys.length; i++ ) {
+        long K = _keys[i];
+        if( K != NO_KEY )
+          print_impl(i,K,_vals[i]);
+      }
+      CHM newchm = _newchm;     // New table, if any
+      if( newchm != null ) {
+        System.out.println("----");
+        newchm.print();
+      }
+    }
+
+    // --- get_impl ----------------------------------------------------------
+    // Never returns a Prime nor a Tombstone; a miss is EMPTY.
+    private final long get_impl ( final long key ) {
+      final int len     = _keys.length;
+      int idx = (int)(key & (len-1)); // First key hash
+
+      // Main spin/reprobe loop, looking for a Key hit
+      int reprobe_cnt=0;
+      while( true ) {
+        final long K = _keys[idx]; // Get key   before volatile read, could be NO_KEY
+        final long V = _vals[idx]; // Get value before volatile read, could be EMPTY or Tombstone or Prime
+        if( K == NO_KEY ) return EMPTY; // A clear miss
+
+        // Key-compare
+        if( key == K ) {
+          // Key hit!  Check for no table-copy-in-progress.  There is no
+          // Value object whose contents need publishing, so no volatile read
+          // is required before returning the word.
+          if( !is_prime(V) )    // No copy?
+            return V == TOMBSTONE ? EMPTY : V;
+          // Key hit - but slot is (possibly partially) copied to the new table.
+          // Finish the copy & retry in the new table.
+          return copy_slot_and_check(idx,key).get_impl(key); // Retry in the new table
+        }
+        // get and put must have the same key lookup logic!  But only 'put'
+        // needs to force a table-resize for a too-long key-reprobe sequence.
+        // Check for too-many-reprobes on get.
+        if( ++reprobe_cnt >= reprobe_limit(len) ) // too many probes
+          return _newchm == null // Table copy in progress?
+            ? EMPTY              // Nope!  A clear miss
+            : copy_slot_and_check(idx,key).get_impl(key); // Retry in the new table
+
+        idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
+      }
+    }
+
+    // --- putIfMatch ---------------------------------------------------------
+    // Put, Remove, PutIfAbsent, etc.  Return the old value word.  If the
+    // returned word is equal to expVal (or expVal is NO_MATCH_OLD) then the
+    // put can be assumed to work (although might have been immediately
+    // overwritten).  Only the path through copy_slot passes in an expected
+    // value of EMPTY, and putIfMatch only returns EMPTY if passed in an
+    // expected EMPTY.
+    private final long putIfMatch( final long key, final long putval, final long expVal ) {
+      assert putval != EMPTY;
+      assert !is_prime(putval);
+      final int len      = _keys.length;
+      int idx = (int)(key & (len-1)); // The first key
+
+      // ---
+      // Key-Claim stanza: spin till we can claim a Key (or force a resizing).
+      int reprobe_cnt=0;
+      long K = NO_KEY;
+      long V = EMPTY;
+      while( true ) {           // Spin till we get a Key slot
+        V = _vals[idx];         // Get old value
+        K = _keys[idx];         // Get current key
+        if( K == NO_KEY ) {     // Slot is free?
+          // Found an empty Key slot - which means this Key has never been in
+          // this table.  No need to put a Tombstone - the Key is not here!
+          if( putval == TOMBSTONE ) return putval; // Not-now & never-been in this table
+          // Claim the zero key-slot
+          if( CAS_key(idx, NO_KEY, key) ) { // Claim slot for Key
+            _slots.add(1);      // Raise key-slots-used count
+            break;              // Got it!
+          }
+          // CAS to claim the key-slot failed.  Keys never change once set,
+          // so the re-read gives us the witness the CAS did not report.
+          K = _keys[idx];       // CAS failed, get updated value
+          assert K != NO_KEY ;  // If keys[idx] is NO_KEY, CAS shoulda worked
+        }
+        // Key slot was not null, there exists a Key here
+        if( K == key )
+          break;                // Got it!
+
+        // get and put must have the same key lookup logic!  Lest 'get' give
+        // up looking too soon.
+        if( ++reprobe_cnt >= reprobe_limit(len) ) {
+          // We simply must have a new table to do a 'put'.  At this point a
+          // 'get' will also go to the new table (if any).  We do not need
+          // to claim a key slot (indeed, we cannot find a free one to claim!).
+          final CHM newchm = resize();
+          if( expVal != EMPTY ) _nbhmll.help_copy(); // help along an existing copy
+          return newchm.putIfMatch(key,putval,expVal);
+        }
+
+        idx = (idx+1)&(len-1); // Reprobe!
+      } // End of spinning till we get a Key slot
+
+      // ---
+      // Found the proper Key slot, now update the matching Value slot.  We
+      // never put an EMPTY, so Value slots monotonically move from EMPTY to
+      // not-EMPTY (deleted Values use Tombstone).  Thus if 'V' is EMPTY we
+      // fail this fast cutout and fall into the check for table-full.
+      if( putval == V ) return V; // Fast cutout for no-change
+
+      // See if we want to move to a new table (to avoid high average re-probe
+      // counts).  We only check on the initial set of a Value from EMPTY to
+      // not-EMPTY (i.e., once per key-insert).
+      if( (V == EMPTY && tableFull(reprobe_cnt,len)) ||
+          // Or we found a Prime: resize is already in progress.  The resize
+          // call below will do a CAS on _newchm forcing the read.
+          is_prime(V) ) {
+        resize();               // Force the new table copy to start
+        return copy_slot_and_check(idx,expVal).putIfMatch(key,putval,expVal);
+      }
+
+      // ---
+      // We are finally prepared to update the existing table
+      while( true ) {
+        assert !is_prime(V);
+
+        // Must match old, and we do not?  Then bail out now.  Note that either
+        // V or expVal might be TOMBSTONE.  Also V can be EMPTY, if we've never
+        // inserted a value before.  expVal can be EMPTY if we are called from
+        // copy_slot.  Words compare exactly, so there is no 'equals' check.
+        if( expVal != NO_MATCH_OLD && // Do we care about expected-Value at all?
+            V != expVal &&            // No instant match already?
+            (expVal != MATCH_ANY || V == TOMBSTONE || V == EMPTY) &&
+            !(V==EMPTY && expVal == TOMBSTONE) ) // Match on EMPTY/TOMBSTONE combo
+          // Do not update!  A replace of a never-inserted key lands here
+          // with V still EMPTY, which callers must see as absent.
+          return V == EMPTY ? TOMBSTONE : V;
+
+        // Actually change the Value in the Key,Value pair
+        if( CAS_val(idx, V, putval ) ) {
+          // CAS succeeded - we did the update!
+          // Both normal put's and table-copy calls putIfMatch, but table-copy
+          // does not (effectively) increase the number of live k/v pairs.
+          if( expVal != EMPTY ) {
+            // Adjust sizes - a striped counter
+            if(  (V == EMPTY || V == TOMBSTONE) && putval != TOMBSTONE ) _size.add( 1);
+            if( !(V == EMPTY || V == TOMBSTONE) && putval == TOMBSTONE ) _size.add(-1);
+          }
+          return (V==EMPTY && expVal!=EMPTY) ? TOMBSTONE : V;
+        }
+        // Else CAS failed
+        V = _vals[idx];         // Get new value
+        // If a Prime'd value got installed, we need to re-run the put on the
+        // new table.  Otherwise we lost the CAS to another racing put.
+        // Simply retry from the start.
+        if( is_prime(V) )
+          return copy_slot_and_check(idx,expVal).putIfMatch(key,putval,expVal);
+      }
+    }
+
+    // --- tableFull ---------------------------------------------------------
+    // Heuristic to decide if this table is too full, and we should start a
+    // new table.  Note that if a 'get' call has reprobed too many times and
+    // decided the table must be full, then always the estimate_sum must be
+    // high and we must report the table is full.  If we do not, then we might
+    // end up deciding that the table is not full and inserting into the
+    // current table, while a 'get' has decided the same key cannot be in this
+    // table because of too many reprobes.  The invariant is:
+    //   slots.estimate_sum >= max_reprobe_cnt >= reprobe_limit(len)
+    private final boolean tableFull( int reprobe_cnt, int len ) {
+      return
+        // Do the cheap check first: we allow some number of reprobes always
+        reprobe_cnt >= REPROBE_LIMIT &&
+        // More expensive check: see if the table is > 1/4 full.
+        _slots.estimate_get() >= reprobe_limit(len);
+    }
+
+    // --- resize ------------------------------------------------------------
+    // Resizing after too many probes.  "How Big???" heuristics are here.
+    // Callers will (not this routine) will 'help_copy' any in-progress copy.
+    // Since this routine has a fast cutout for copy-already-started, callers
+    // MUST 'help_copy' lest we have a path which forever runs through
+    // 'resize' only to discover a copy-in-progress which never progresses.
+    private final CHM resize() {
+      // Check for resize already in progress, probably triggered by another thread
+      CHM newchm = _newchm;     // VOLATILE READ
+      if( newchm != null )      // See if resize is already in progress
+        return newchm;          // Use the new table already
+
+      // No copy in-progress, so start one.  First up: compute new table size.
+      int oldlen = _keys.length; // Old count of K,V pairs allowed
+      int sz = size();          // Get current table count of active K,V pairs
+      int newsz = sz;           // First size estimate
+
+      // Heuristic to determine new size.  We expect plenty of dead-slots-with-keys
+      // and we need some decent padding to avoid endless reprobing.
+      if( _nbhmll._opt_for_space ) {
+        // This heuristic leads to a much denser table with a higher reprobe rate
+        if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
+          newsz = oldlen<<1;    // Double size
+      } else {
+        if( sz >= (oldlen>>2) ) { // If we are >25% full of keys then...
+          newsz = oldlen<<1;      // Double size
+          if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
+            newsz = oldlen<<2;    // Double double size
+        }
+      }
+
+      // Last (re)size operation was very recent?  Then double again; slows
+      // down resize operations for tables subject to a high key churn rate.
+      long tm = System.currentTimeMillis();
+      if( newsz <= oldlen &&    // New table would shrink or hold steady?
+          tm <= _nbhmll._last_resize_milli+10000 ) // Recent resize (less than 10 sec ago)
+        newsz = oldlen<<1;      // Double the existing size
+
+      // Do not shrink, ever
+      if( newsz < oldlen ) newsz = oldlen;
+
+      // Convert to power-of-2
+      int log2;
+      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz; log2++ ) ; // Compute log2 of size
+
+      // Now limit the number of threads actually allocating memory to a
+      // handful - lest we have 750 threads all trying to allocate a giant
+      // resized array.
+      long r = _resizers;
+      while( !_resizerUpdater.compareAndSet(this,r,r+1) )
+        r = _resizers;
+      // Size calculation: 2 longs (K+V) per table entry, plus a handful.
+      int megs = ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
+      if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
+        newchm = _newchm;        // Between dorking around, another thread did it
+        if( newchm != null )     // See if resize is already in progress
+          return newchm;         // Use the new table already
+        // Sleep a tad and see if the 2 guys already trying to make the table
+        // actually get around to making it happen.
+        try { Thread.sleep(8*megs); } catch( Exception e ) { }
+      }
+      // Last check, since the 'new' below is expensive and there is a chance
+      // that another thread slipped in a new thread while we ran the heuristic.
+      newchm = _newchm;
+      if( newchm != null )      // See if resize is already in progress
+        return newchm;          // Use the new table already
+
+      // New CHM - actually allocate the big arrays
+      newchm = new CHM(_nbhmll,_size,log2);
+
+      // Another check after the slow allocation
+      if( _newchm != null )     // See if resize is already in progress
+        return _newchm;         // Use the new table already
+
+      // The new table must be CAS'd in so only 1 winner amongst duplicate
+      // racing resizing threads.  Extra CHM's will be GC'd.
+      if( !CAS_newchm( newchm ) ) // NOW a resize-is-in-progress!
+        newchm = _newchm;       // CAS failed?  Reread new table
+      return newchm;
+    }
+
+
+    // The next part of the table to copy.  It monotonically transits from zero
+    // to _keys.length.  Visitors to the table can claim 'work chunks' by
+    // CAS'ing this field up, then copying the indicated indices from the old
+    // table to the new table.  Workers are not required to finish any chunk;
+    // the counter simply wraps and work is copied duplicately until somebody
+    // somewhere completes the count.
+    volatile long _copyIdx = 0;
+    static private final AtomicLongFieldUpdater<CHM> _copyIdxUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyIdx");
+
+    // Work-done reporting.  Used to efficiently signal when we can move to
+    // the new table.  From 0 to len(oldkvs) refers to copying from the old
+    // table to the new.
+    volatile long _copyDone= 0;
+    static private final AtomicLongFieldUpdater<CHM> _copyDoneUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyDone");
+
+    // --- help_copy_impl ----------------------------------------------------
+    // Help along an existing resize operation.  We hope its the top-level
+    // copy (it was when we started) but this CHM might have been promoted out
+    // of the top position.
+    private final void help_copy_impl( final boolean copy_all ) {
+      final CHM newchm = _newchm;
+      assert newchm != null;    // Already checked by caller
+      int oldlen = _keys.length; // Total amount to copy
+      final int MIN_COPY_WORK = Math.min(oldlen,1024); // Limit per-thread work
+
+      // ---
+      int panic_start = -1;
+      int copyidx=-9999;            // Fool javac to think it's initialized
+      while( _copyDone < oldlen ) { // Still needing to copy?
+        // Carve out a chunk of work.  The counter wraps around so every
+        // thread eventually tries to copy every slot repeatedly.
+
+        // We "panic" if we have tried TWICE to copy every slot - and it still
+        // has not happened.  Then we do the copy work ourselves rather than
+        // wait for the work-claimers to finish.
+        if( panic_start == -1 ) { // No panic?
+          copyidx = (int)_copyIdx;
+          while( copyidx < (oldlen<<1) && // 'panic' check
+                 !_copyIdxUpdater.compareAndSet(this,copyidx,copyidx+MIN_COPY_WORK) )
+            copyidx = (int)_copyIdx;     // Re-read
+          if( !(copyidx < (oldlen<<1)) ) // Panic!
+            panic_start = copyidx;       // Record where we started to panic-copy
+        }
+
+        // We now know what to copy.  Try to copy.
+        int workdone = 0;
+        for( int i=0; i<MIN_COPY_WORK; i++ )
+          if( copy_slot((copyidx+i)&(oldlen-1)) ) // Made an oldtable slot go dead?
+            workdone++;         // Yes!
+        if( workdone > 0 )      // Report work-done occasionally
+          copy_check_and_promote( workdone );// See if we can promote
+
+        copyidx += MIN_COPY_WORK;
+        if( !copy_all && panic_start == -1 ) // No panic?
+          return;               // Then done copying after doing MIN_COPY_WORK
+      }
+      // Extra promotion check, in case another thread finished all copying
+      // then got stalled before promoting.
+      copy_check_and_promote( 0 ); // See if we can promote
+    }
+
+
+    // --- copy_slot_and_check -----------------------------------------------
+    // Copy slot 'idx' from the old table to the new table.  If this thread
+    // confirmed the copy, update the counters and check for promotion.
+    //
+    // Returns the result of reading the volatile _newchm, mostly as a
+    // convenience to callers.  We come here with 1-shot copy requests
+    // typically because the caller has found a Prime, and has not yet read
+    // the _newchm volatile - which must have changed from null-to-not-null
+    // before any Prime appears.
+    private final CHM copy_slot_and_check( int idx, long should_help ) {
+      // We're only here because the caller saw a Prime, which implies a
+      // table-copy is in progress.
+      assert _newchm != null;
+      if( copy_slot(idx) )      // Copy the desired slot
+        copy_check_and_promote(1); // Record the slot copied
+      // Generically help along any copy (except if called recursively from a helper)
+      if( should_help != EMPTY ) _nbhmll.help_copy();
+      return _newchm;
+    }
+
+    // --- copy_check_and_promote --------------------------------------------
+    private final void copy_check_and_promote( int workdone ) {
+      int oldlen = _keys.length;
+      // We made a slot unusable and so did some of the needed copy work
+      long copyDone = _copyDone;
+      long nowDone = copyDone+workdone;
+      assert nowDone <= oldlen;
+      if( workdone > 0 ) {
+        while( !_copyDoneUpdater.compareAndSet(this,copyDone,nowDone) ) {
+          copyDone = _copyDone;   // Reload, retry
+          nowDone = copyDone+workdone;
+          assert nowDone <= oldlen;
+        }
+      }
+
+      // Check for copy being ALL done, and promote.  Note that we might have
+      // nested in-progress copies and manage to finish a nested copy before
+      // finishing the top-level copy.  We only promote top-level copies.
+      if( nowDone == oldlen &&   // Ready to promote this table?
+          _nbhmll._chm == this && // Looking at the top-level table?
+          // Attempt to promote
+          _nbhmll.CAS(_chm_offset,this,_newchm) ) {
+        _nbhmll._last_resize_milli = System.currentTimeMillis();  // Record resize time for next check
+      }
+    }
+
+    // --- copy_slot ---------------------------------------------------------
+    // Copy one K/V pair from oldkvs[i] to newkvs.  Returns true if we can
+    // confirm that the new table guaranteed has a value for this old-table
+    // slot.  We need an accurate confirmed-copy count so that we know when we
+    // can promote (if we promote the new table too soon, other threads may
+    // 'miss' on values not-yet-copied from the old table).  We don't allow
+    // any direct updates on the new table, unless they first happened to the
+    // old table - so that any transition in the new table from EMPTY to
+    // not-EMPTY must have been from a copy_slot (or other old-table overwrite)
+    // and not from a thread directly writing in the new table.  Thus we can
+    // count EMPTY-to-not-EMPTY transitions in the new table.
+    private boolean copy_slot( int idx ) {
+      // Blindly set the key slot from NO_KEY to some key which hashes here,
+      // to eagerly stop fresh put's from inserting new values in the old
+      // table when the old table is mid-resize.  We don't need to act on the
+      // results here, because our correctness stems from prime'ing the Value
+      // word.  Slamming the Key field is a minor speed optimization.
+      long key;
+      while( (key=_keys[idx]) == NO_KEY )
+        CAS_key(idx, NO_KEY, (idx+_keys.length)/*a non-zero key which hashes here*/);
+
+      // ---
+      // Prevent new values from appearing in the old table.
+      // Prime what we see in the old table, to prevent further updates.
+      long oldval = _vals[idx]; // Read OLD table
+      while( !is_prime(oldval) ) {
+        final long box = (oldval == EMPTY || oldval == TOMBSTONE) ? TOMBPRIME : prime(oldval);
+        if( CAS_val(idx,oldval,box) ) { // CAS down a prime'd version of oldval
+          // If we made the Value slot hold a TOMBPRIME, then we both
+          // prevented further updates here but also the (absent) oldval is
+          // vaccuously available in the new table.  We return with true here:
+          // any thread looking for a value for this key can correctly go
+          // straight to the new table and skip looking in the old table.
+          if( box == TOMBPRIME )
+            return true;
+          // Otherwise we prime'd something, but it still needs to be
+          // copied into the new table.
+          oldval = box;         // Record updated oldval
+          break;                // Break loop; oldval is now prime'd by us
+        }
+        oldval = _vals[idx];    // Else try, try again
+      }
+      if( oldval == TOMBPRIME ) return false; // Copy already complete here!
+
+      // ---
+      // Copy the value into the new table, but only if we overwrite an EMPTY.
+      // If another value is already in the new table, then somebody else
+      // wrote something there and that write is happens-after any value that
+      // appears in the old table.  If putIfMatch does not find an EMPTY in the
+      // new table - somebody else should have recorded the EMPTY-not_EMPTY
+      // transition in this copy.
+      long old_unboxed = unprime(oldval);
+      assert old_unboxed != TOMBSTONE;
+      boolean copied_into_new = (_newchm.putIfMatch(key, old_unboxed, EMPTY) == EMPTY);
+
+      // ---
+      // Finally, now that any old value is exposed in the new table, we can
+      // forever hide the old-table value by slapping a TOMBPRIME down.  This
+      // will stop other threads from uselessly attempting to copy this slot
+      // (i.e., it's a speed optimization not a correctness issue).
+      while( !CAS_val(idx,oldval,TOMBPRIME) )
+        oldval = _vals[idx];
+
+      return copied_into_new;
+    } // end copy_slot
+  } // End of CHM
+
+
+  // --- Snapshot ------------------------------------------------------------
+  /** An iterator over the keys of the table, supporting a
+   *  <strong>non-auto-boxing</strong> {@link #nextLong} function and the
+   *  matching {@link #value} of the key most recently returned.  */
+  public class IteratorLong implements LongIterator {
+    private final CHM _sschm;
+    private int _idx;             // -1 for NO_KEY, 0-keys.length
+    private long _nextK, _prevK;  // Last 2 keys found
+    private long _nextV, _prevV;  // Last 2 values found; NO_VALUE for none
+    /** A new IteratorLong */
+    public IteratorLong() {
+      CHM topchm;
+      while( true ) {           // Verify no table-copy-in-progress
+        topchm = _chm;
+        if( topchm._newchm == null ) // No table-copy-in-progress
+          break;
+        // Table copy in-progress - so we cannot get a clean iteration.  We
+        // must help finish the table copy before we can start iterating.
+        topchm.help_copy_impl(true);
+      }
+      // The "linearization point" for the iteration.  Every key in this table
+      // will be visited, but keys added later might be skipped or even be
+      // added to a following table (also not iterated over).
+      _sschm = topchm;
+      // Warm-up the iterator
+      _idx = -1;
+      _nextV = NO_VALUE;
+      advance();
+    }
+    // 'advance' actually knows what the next value will be - it had to
+    // figure that out last go 'round lest 'hasNext' report true and some
+    // other thread deleted the last value.  Instead, 'advance' spends all its
+    // effort finding the key that comes after the 'next' key.
+    private void advance() {
+      if( _idx != -1 && _nextV == NO_VALUE ) throw new NoSuchElementException();
+      _prevK = _nextK;          // This will become the previous key
+      _prevV = _nextV;          // This will become the previous value
+      _nextV = NO_VALUE;        // We have no more next-key
+      if( _idx == -1 ) {        // Check for NO_KEY
+        _idx = 0;               // Setup for next phase of search
+        _nextK = NO_KEY;
+        if( (_nextV=get(_nextK)) != NO_VALUE ) return;
+      }
+      final long[] keys = _sschm._keys;
+      while( _idx<keys.length ) { // Scan array
+        _nextK = keys[_idx++];  // Get a key that definitely is in the set (for the moment!)
+        if( _nextK != NO_KEY && // Found something?
+            (_nextV=get(_nextK)) != NO_VALUE )
+          break;                // Got it!  _nextK is a valid Key
+      }                         // Else keep scanning
+    }
+    /** True if there are more keys to iterate over. */
+    public boolean hasNext() { return _nextV != NO_VALUE; }
+    /** Return the next key as a primitive {@code long}. */
+    public long nextLong() { advance(); return _prevK; }
+    /** <strong>Auto-box</strong> and return the next key. */
+    public Long next    () { return nextLong(); }
+    /** The value mapped by the key last returned by {@link #nextLong},
+     *  as seen when the iteration reached that key. */
+    public long value() {
+      if( _prevV == NO_VALUE ) throw new IllegalStateException();
+      return _prevV;
+    }
+    /** Remove last key returned by {@link #next} or {@link #nextLong}, if
+     *  it is still mapped to the value it was returned with. */
+    public void remove() {
+      if( _prevV == NO_VALUE ) throw new IllegalStateException();
+      NonBlockingHashMapLongLong.this.putIfMatch( _prevK, TOMBSTONE, word(_prevV) );
+      _prevV = NO_VALUE;
+    }
+  }
+
+  /** Returns an iterator over the keys in this table; keys may be iterated
+   *  over <strong>without auto-boxing</strong> via {@link
+   *  IteratorLong#nextLong}.  The iterator is "weakly consistent": it
+   *  will never throw {@link ConcurrentModificationException}, and guarantees
+   *  to traverse keys as they existed upon construction of the iterator, and
+   *  may (but is not guaranteed to) reflect any modifications subsequent to
+   *  construction.  */
+  public IteratorLong keys() { return new IteratorLong(); }
+
+  /** Returns a string of the form <tt>{k1=v1, k2=v2}</tt>.  */
+  @Override
+  public String toString() {
+    final IteratorLong it = keys();
+    if( !it.hasNext() ) return "{}";
+    final StringBuilder sb = new StringBuilder().append('{');
+    for (;;) {
+      sb.append(it.nextLong()).append('=').append(it.value());
+      if( !it.hasNext() ) return sb.append('}').toString();
+      sb.append(", ");
+    }
+  }
+
+  // --- writeObject -------------------------------------------------------
+  // Write a NBHMLL to a stream
+  private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
+    s.defaultWriteObject();     // Write nothing
+    for( IteratorLong it = keys(); it.hasNext(); ) {
+      final long K = it.nextLong();
+      s.writeBoolean(true);     // Every <long,long> pair is a legal pair
+      s.writeLong(K);           // so flag each one instead of a sentinel
+      s.writeLong(it.value());
+    }
+    s.writeBoolean(false);      // End-of-data
+  }
+
+  // --- readObject --------------------------------------------------------
+  // Read a CHM from a stream
+  private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException  {
+    s.defaultReadObject();      // Read nothing
+    initialize(MIN_SIZE);
+    while( s.readBoolean() ) {
+      final long K = s.readLong();
+      final long V = s.readLong();
+      put(K,V);                 // Insert with an offical put
+    }
+  }
+
+}  // End NonBlockingHashMapLongLong class
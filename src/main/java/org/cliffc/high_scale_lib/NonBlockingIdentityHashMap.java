@@ -91,11 +91,15 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
   // --- Setup to use Unsafe
   private static final long _kvs_offset;
+  private static final long _stats_offset;
   static {                      // <clinit>
     Field f = null;
     try { f = NonBlockingHashMap.class.getDeclaredField("_kvs"); }
     catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
     _kvs_offset = _unsafe.objectFieldOffset(f);
+    try { f = NonBlockingIdentityHashMap.class.getDeclaredField("_stats"); }
+    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    _stats_offset = _unsafe.objectFieldOffset(f);
   }
   private final boolean CAS_kvs( final Object[] oldkvs, final Object[] newkvs ) {
     return _unsafe.compareAndSwapObject(this, _kvs_offset, oldkvs, newkvs );
@@ -230,6 +234,22 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Resize statistics; null, and nearly free, until enableResizeStats is
+  // called.  A plain field: threads may miss a few records right after.
+  private transient ResizeStats _stats;
+  /** Turn on resize and table-copy statistics for this map; see {@link
+   *  ResizeStats}.  Until the first call, statistics cost one field test per
+   *  operation.  Later calls return the same statistics.
+   *  @return the statistics, live for the life of the map */
+  public ResizeStats enableResizeStats() {
+    ResizeStats s = _stats;
+    if( s == null && !_unsafe.compareAndSwapObject(this,_stats_offset,null,s = new ResizeStats()) )
+      s = _stats;
+    return s;
+  }
+  /** @return the resize statistics, or null if never enabled */
+  public ResizeStats resizeStats() { return _stats; }
+
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
@@ -480,7 +500,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       // table; hopefully the read of 'key' then hits in cache.
       final Object K = key(kvs,idx); // Get key   before volatile read, could be null
       final Object V = val(kvs,idx); // Get value before volatile read, could be null or Tombstone or Prime
-      if( K == null ) return null;   // A clear miss
+      if( K == null ) {              // A clear miss
+        if( topmap._stats != null ) topmap._stats.probed(reprobe_cnt);
+        return null;
+      }
 
       // We need a volatile-read here to preserve happens-before semantics on
       // newly inserted Keys.  If the Key body was written just before inserting
@@ -496,8 +519,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       // Key-compare
       if( K == key ) {
         // Key hit!  Check for no table-copy-in-progress
-        if( !(V instanceof Prime) ) // No copy?
+        if( !(V instanceof Prime) ) { // No copy?
+          if( topmap._stats != null ) topmap._stats.probed(reprobe_cnt);
           return (V == TOMBSTONE) ? null : V; // Return the value
+        }
         // Key hit - but slot is (possibly partially) copied to the new table.
         // Finish the copy & retry in the new table.
         return get_impl(topmap,chm.copy_slot_and_check(topmap,kvs,idx,key),key,fullhash); // Retry in the new table
@@ -587,6 +612,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
       idx = (idx+1)&(len-1); // Reprobe!
     } // End of spinning till we get a Key slot
+    if( expVal != null && topmap._stats != null ) // Not a table-copy put?
+      topmap._stats.probed(reprobe_cnt);
 
     // ---
     // Found the proper Key slot, now update the matching Value slot.  We
@@ -835,7 +862,12 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
       // The new table must be CAS'd in so only 1 winner amongst duplicate
       // racing resizing threads.  Extra CHM's will be GC'd.
+      final ResizeStats stats = topmap._stats;
       if( CAS_newkvs( newkvs ) ) { // NOW a resize-is-in-progress!
+        if( stats != null ) {
+          _copy_start = System.nanoTime();
+          stats.started(oldlen,1<<log2,_slots.estimate_get(),sz);
+        }
         //notifyAll();            // Wake up any sleepers
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
@@ -847,6 +879,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     }
 
 
+    // When the copy out of this table began; set only with stats enabled,
+    // and only by the thread whose new table won the CAS
+    long _copy_start;
+
     // The next part of the table to copy.  It monotonically transits from zero
     // to _kvs.length.  Visitors to the table can claim 'work chunks' by
     // CAS'ing this field up, then copying the indicated indices from the old
@@ -877,6 +913,7 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
       // ---
       int panic_start = -1;
+      int copied = 0;               // Slots copied by this call, for stats
       int copyidx=-9999;            // Fool javac to think it's initialized
       while( _copyDone < oldlen ) { // Still needing to copy?
         // Carve out a chunk of work.  The counter wraps around so every
@@ -910,11 +947,15 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         //    copy_check_and_promote( topmap, oldkvs, 1 );// See if we can promote
 
         copyidx += MIN_COPY_WORK;
+        copied += workdone;
         // Uncomment these next 2 lines to turn on incremental table-copy.
         // Otherwise this thread continues to copy until it is all done.
-        if( !copy_all && panic_start == -1 ) // No panic?
+        if( !copy_all && panic_start == -1 ) { // No panic?
+          if( copied > 0 && topmap._stats != null ) topmap._stats.helped(copied);
           return;       // Then done copying after doing MIN_COPY_WORK
+        }
       }
+      if( copied > 0 && topmap._stats != null ) topmap._stats.helped(copied);
       // Extra promotion check, in case another thread finished all copying
       // then got stalled before promoting.
       copy_check_and_promote( topmap, oldkvs, 0 );// See if we can promote
@@ -968,6 +1009,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
           // Attempt to promote
           topmap.CAS_kvs(oldkvs,_newkvs) ) {
         topmap._last_resize_milli = System.currentTimeMillis(); // Record resize time for next check
+        if( topmap._stats != null && _copy_start != 0 ) // Stats on when the copy began?
+          topmap._stats.promoted(System.nanoTime()-_copy_start);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Promote table to "+len(_newkvs));
         //if( System.out != null ) System.out.print("]");
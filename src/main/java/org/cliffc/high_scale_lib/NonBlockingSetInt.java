@@ -63,10 +63,6 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
     _nbsi = new NBSI(63, new Counter(), this); // The initial 1-word set
   }
 
-  private NonBlockingSetInt(NonBlockingSetInt a, NonBlockingSetInt b) {
-    _nbsi = new NBSI(a._nbsi,b._nbsi,new Counter(),this);
-  }
-
   /**
    * Overridden to avoid auto-boxing for NonBlockingSetInt.
    *
@@ -238,23 +234,131 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
    *
    * bitwise comparisons optimised for NBSI
    *
+   * All operations work a 64-bit word of members at a time.  The
+   * operations returning a new set build its bit-vector directly, without
+   * a CAS per word; the in-place variants CAS each changed word of this
+   * set, so they are safe against concurrent updates but are not atomic
+   * as a whole.
+   *
    *****************************************************************/
 
-  public NonBlockingSetInt intersect(final NonBlockingSetInt op) {
-    NonBlockingSetInt res = new NonBlockingSetInt(this,op);
-    res._nbsi.intersect(res._nbsi, this._nbsi, op._nbsi);
+  private static final int AND = 0, OR = 1, XOR = 2, ANDNOT = 3;
+  private static long op( final int op, final long a, final long b ) {
+    switch( op ) {
+    case AND:    return a &  b;
+    case OR:     return a |  b;
+    case XOR:    return a ^  b;
+    case ANDNOT: return a & ~b;
+    default: throw new IllegalArgumentException(""+op);
+    }
+  }
+
+  /** @return a new set holding the members in both this set and {@code op} */
+  public NonBlockingSetInt intersect(final NonBlockingSetInt op) { return bitwise(op,AND); }
+  /** @return a new set holding the members in either this set or {@code op} */
+  public NonBlockingSetInt union    (final NonBlockingSetInt op) { return bitwise(op,OR ); }
+  /** @return a new set holding the members in exactly one of this set and {@code op} */
+  public NonBlockingSetInt xor      (final NonBlockingSetInt op) { return bitwise(op,XOR); }
+  /** @return a new set holding the members of this set not in {@code op} */
+  public NonBlockingSetInt andNot   (final NonBlockingSetInt op) { return bitwise(op,ANDNOT); }
+
+  /**
+   * Complement within a range.
+   * @return a new set holding the elements in [from,to) not in this set
+   * @throws IllegalArgumentException if from is negative or larger than to
+   */
+  public NonBlockingSetInt complement( final int from, final int to ) {
+    check_range(from,to);
+    final int nwords = (int)(((long)to+63)>>>6);
+    final NonBlockingSetInt res = new NonBlockingSetInt();
+    final NBSI nbsi = NBSI.sized(nwords,res);
+    long cnt = 0;
+    for( int w=0; w<nwords; w++ )
+      cnt += nbsi.store_word(w,op(ANDNOT,range_word(w,from,to),word(w)));
+    nbsi._size.add(cnt);
+    res._nbsi = nbsi;
     return res;
   }
 
-  public NonBlockingSetInt union(final NonBlockingSetInt op) {
-    NonBlockingSetInt res = new NonBlockingSetInt(this,op);
-    res._nbsi.union(res._nbsi, this._nbsi, op._nbsi);
+  /** Remove from this set all members not in {@code op}. */
+  public void intersectWith( final NonBlockingSetInt op ) { in_place(op,0,0,AND); }
+  /** Add to this set all members of {@code op}. */
+  public void unionWith    ( final NonBlockingSetInt op ) { in_place(op,0,0,OR ); }
+  /** Flip in this set all members of {@code op}. */
+  public void xorWith      ( final NonBlockingSetInt op ) { in_place(op,0,0,XOR); }
+  /** Remove from this set all members of {@code op}. */
+  public void andNotWith   ( final NonBlockingSetInt op ) { in_place(op,0,0,ANDNOT); }
+  /**
+   * Flip every element in [from,to): members are removed and non-members
+   * added.  Elements outside the range are untouched.
+   * @throws IllegalArgumentException if from is negative or larger than to
+   */
+  public void flip( final int from, final int to ) {
+    check_range(from,to);
+    in_place(null,from,to,XOR);
+  }
+
+  private static void check_range( final int from, final int to ) {
+    if( from < 0 || from > to ) throw new IllegalArgumentException("["+from+","+to+")");
+  }
+
+  // The elements of [from,to) that fall in word w
+  private static long range_word( final int w, final int from, final int to ) {
+    final long lo = (long)w<<6;
+    if( from >= lo+64 || to <= lo ) return 0;
+    final int start = (int)Math.max(from-lo,0);
+    final int end   = (int)Math.min(to  -lo,64);
+    return (end == 64 ? -1L : (1L<<end)-1) & (-1L<<start);
+  }
+
+  // Words spanned by the newest table
+  private int nwords() {
+    NBSI nbsi = _nbsi;
+    while( nbsi._new != null ) nbsi = nbsi._new;
+    return nbsi._bits.length;
+  }
+
+  // Members [w<<6,(w<<6)+63] as one word; zero past the end of the set
+  private long word( final int w ) {
+    NBSI nbsi = _nbsi;
+    while( w >= nbsi._bits.length ) { // Word out of range?
+      if( nbsi._new == null ) return 0; // No new table, so no members
+      nbsi = nbsi._new;         // Carry on, in the new table
+    }
+    return nbsi.word(w);
+  }
+
+  private NonBlockingSetInt bitwise( final NonBlockingSetInt b, final int op ) {
+    final int nwords = Math.max(nwords(), b.nwords());
+    final NonBlockingSetInt res = new NonBlockingSetInt();
+    final NBSI nbsi = NBSI.sized(nwords,res);
+    long cnt = 0;
+    for( int w=0; w<nwords; w++ )
+      cnt += nbsi.store_word(w,op(op,word(w),b.word(w)));
+    nbsi._size.add(cnt);
+    res._nbsi = nbsi;
     return res;
   }
 
-//  public NonBlockingSetInt not(final NonBlockingSetInt op) {
-//
-//  }
+  // Apply 'op' into this set, word by word.  The right operand is set 'b',
+  // or the range [from,to) if 'b' is null.  Bits 0-62 of a word are CAS'd in
+  // one go; the every-64th element lives elsewhere and is added or removed
+  // on its own.
+  private void in_place( final NonBlockingSetInt b, final int from, final int to, final int op ) {
+    final int nwords = b == null
+      ? (int)(((long)to+63)>>>6)
+      : ((op == OR || op == XOR) ? Math.max(nwords(), b.nwords()) : nwords());
+    for( int w=0; w<nwords; w++ ) {
+      final long rhs = b == null ? range_word(w,from,to) : b.word(w);
+      if( (op == AND ? ~rhs : rhs) == 0 ) continue; // Word is unchanged
+      _nbsi.apply(w,rhs,op);
+      final int e = (w<<6)+63;  // The every-64th element of this word
+      final boolean has = contains(e);
+      final boolean want = op(op, has ? -1L : 0L, rhs) < 0;
+      if( want && !has ) add(e);
+      if( !want && has ) remove(e);
+    }
+  }
 
   /** Verbose printout of internal structure for debugging. */
   public void print() { _nbsi.print(0); }
@@ -268,29 +372,55 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
 
   public IntIterator intIterator() { return new NBSIIntIterator(); }
 
+  /**
+   * Visit every member of the set in ascending order, without auto-boxing.
+   * Members are found a 64-bit word at a time, so runs of absent elements
+   * cost one load per 64 elements instead of one {@link #contains(int)} per
+   * element.  Like the iterators, the visit is only weakly consistent with
+   * concurrent updates.
+   * @param action called once with each member of the set
+   */
+  public void forEachInt( final java.util.function.IntConsumer action ) {
+    NBSI nbsi = _nbsi;
+    for( int w=0; ; w++ ) {
+      while( w >= nbsi._bits.length ) { // Word out of range?
+        if( nbsi._new == null ) return; // No new table, so all done
+        nbsi = nbsi._new;       // Carry on, in the new table
+      }
+      for( long bits = nbsi.word(w); bits != 0; bits &= bits-1 )
+        action.accept((w<<6)+Long.numberOfTrailingZeros(bits));
+    }
+  }
+
   private class NBSIIntIterator implements IntIterator {
 
     NBSI nbsi;
     int index = -1;
     int prev  = -1;
+    int widx  = -1;             // Index of the word being scanned
+    long bits;                  // Members of word 'widx' not yet returned
 
     NBSIIntIterator() {
       nbsi = _nbsi;
       advance();
     }
 
+    // Scan a word at a time, skipping empty words with a single test and
+    // pulling members out of a non-empty word with numberOfTrailingZeros.
     private void advance() {
-      while( true ) {
-        index++;                 // Next index
-        while( (index>>6) >= nbsi._bits.length ) { // Index out of range?
+      while( bits == 0 ) {
+        widx++;                 // Next word
+        while( widx >= nbsi._bits.length ) { // Word out of range?
           if( nbsi._new == null ) { // New table?
-            index = -2;          // No, so must be all done
+            index = -2;         // No, so must be all done
             return;             //
           }
-          nbsi = nbsi._new; // Carry on, in the new table
+          nbsi = nbsi._new;     // Carry on, in the new table
         }
-        if( nbsi.contains(index) ) return;
+        bits = nbsi.word(widx);
       }
+      index = (widx<<6)+Long.numberOfTrailingZeros(bits);
+      bits &= bits-1;           // Clear the lowest set bit
     }
     @Override
     public int next() {
@@ -325,25 +455,65 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
   }
 
   // --- writeObject -------------------------------------------------------
-  // Write a NBSI to a stream
+  // Write a NBSI to a stream.  The format is word-level and run-length
+  // encoded: a -1 marker (a legacy stream starts with a non-negative element
+  // count), then runs of non-zero words as {start word, word count, words},
+  // and a final -1.  Empty words are never written.
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
     s.defaultWriteObject();     // Nothing to write
-    final NBSI nbsi = _nbsi;    // The One Field is transient
-    final int len = _nbsi._bits.length<<6;
-    s.writeInt(len);            // Write max element
-    for( int i=0; i<len; i++ ) 
-      s.writeBoolean( _nbsi.contains(i) );
+    s.writeInt(-1);             // Word-level format marker
+    final long[] run = new long[256];
+    int start = 0, n = 0;       // Pending run of non-zero words
+    NBSI nbsi = _nbsi;          // The One Field is transient
+    for( int w=0; ; w++ ) {
+      while( w >= nbsi._bits.length && nbsi._new != null )
+        nbsi = nbsi._new;       // Carry on, in the new table
+      if( w >= nbsi._bits.length ) break;
+      final long bits = nbsi.word(w);
+      if( bits == 0 ) continue;
+      if( n > 0 && (start+n != w || n == run.length) ) {
+        write_run(s,start,run,n);
+        n = 0;
+      }
+      if( n == 0 ) start = w;
+      run[n++] = bits;
+    }
+    if( n > 0 ) write_run(s,start,run,n);
+    s.writeInt(-1);             // End of runs
   }
-  
+
+  private static void write_run(java.io.ObjectOutputStream s, int start, long[] run, int n) throws IOException {
+    s.writeInt(start);
+    s.writeInt(n);
+    for( int i=0; i<n; i++ )
+      s.writeLong(run[i]);
+  }
+
   // --- readObject --------------------------------------------------------
-  // Read a CHM from a stream
+  // Read a NBSI from a stream.  The words are gathered first and the NBSI is
+  // then built directly from them, without a CAS per element.
   private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException  {
     s.defaultReadObject();      // Read nothing
-    final int len = s.readInt(); // Read max element
-    _nbsi = new NBSI(len, new Counter(), this);
-    for( int i=0; i<len; i++ )  // Read all bits
-      if( s.readBoolean() )
-        _nbsi.add(i);
+    final int len = s.readInt(); // Read max element, or the format marker
+    if( len >= 0 ) {            // Legacy format: one boolean per element
+      _nbsi = new NBSI(len, new Counter(), this);
+      for( int i=0; i<len; i++ ) // Read all bits
+        if( s.readBoolean() )
+          _nbsi.add(i);
+      return;
+    }
+    long[] words = new long[1];
+    int nwords = 0;
+    int start;
+    while( (start = s.readInt()) >= 0 ) {
+      final int n = s.readInt();
+      if( start+n > words.length )
+        words = Arrays.copyOf(words, Math.max(start+n, words.length<<1));
+      for( int i=0; i<n; i++ )
+        words[start+i] = s.readLong();
+      nwords = start+n;
+    }
+    _nbsi = NBSI.load(words, nwords, this);
   }
 
   // --- NBSI ----------------------------------------------------------------
@@ -413,41 +583,6 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
       _sum_bits_length = _bits.length + (_nbsi64==null ? 0 : _nbsi64._sum_bits_length);
     }
 
-    /** built a new NBSI with buffers large enough to hold bitwise operations on the operands **/
-    private NBSI(NBSI a, NBSI b, Counter ctr, NonBlockingSetInt nonb) {
-      super();
-      _non_blocking_set_int = nonb;
-      _size = ctr;
-      _copyIdx  = ctr == null ? null : new AtomicInteger();
-      _copyDone = ctr == null ? null : new AtomicInteger();
-
-      if(!has_bits(a) && !has_bits(b)) {
-        _bits = null;
-        _nbsi64 = null;
-        _sum_bits_length = 0;
-        return;
-      }
-
-      // todo - clean this nastiness up
-      // essentially just safely creates new empty buffers for each of the recursive bitsets
-      if(!has_bits(a)) {
-        _bits = new long[b._bits.length];
-        _nbsi64 = new NBSI(null,b._nbsi64,null,null);
-      } else if(!has_bits(b)) {
-        _bits = new long[a._bits.length];
-        _nbsi64 = new NBSI(null,a._nbsi64,null,null);
-      } else {
-        int bit_length = a._bits.length > b._bits.length ? a._bits.length : b._bits.length;
-        _bits = new long[bit_length];
-        _nbsi64 = new NBSI(a._nbsi64,b._nbsi64,null,null);
-      }
-      _sum_bits_length = _bits.length + _nbsi64._sum_bits_length;
-    }
-
-    private static boolean has_bits(NBSI n) {
-      return n != null && n._bits != null;
-    }
-
     // Lower-case 'int' versions - no autoboxing, very fast.
     // 'i' is known positive.
     public boolean add( final int i ) {
@@ -524,58 +659,90 @@ public class NonBlockingSetInt extends AbstractSet<Integer> implements Serializa
       return (old & mask) != 0; 
     }
 
-    /**
-     * Bitwise operations which store the result in this instance.
-     * Assumes that this instance contains ample buffer space to store the largest
-     * buffer from each NBSI in the recursive bitmap.
-     *
-     * Also assumes that this method is called during the construction process of
-     * the bitset before the instance could be leaked to multiple threads.
-     ***/
-    public boolean intersect(NBSI dest, NBSI a, NBSI b) {
-      // terminate recursion if one bitset is missing data
-      // since that word should be left as 0L anyway
-      if(!has_bits(a) || !has_bits(b))
-        return true;
-      for(int i = 0; i < dest._bits.length; i++) {
-        long left   = a.safe_read_word(i,0L);
-        long right  = b.safe_read_word(i,0L);
-        dest._bits[i] = (left & right) & Long.MAX_VALUE; // mask sign bit
+    // CAS 'op' of word w and 'rhs' into bits 0-62 of word w, growing the
+    // bit vector as needed.  Bit 63 of 'rhs' is ignored; the caller handles
+    // the every-64th element.
+    private void apply( final int w, final long rhs, final int op ) {
+      if( w >= _bits.length ) { // Out of range for the current size?
+        if( (NonBlockingSetInt.op(op,0,rhs) & ~mask(63)) != 0 )
+          install_larger_new_bits(w<<6).help_copy().apply(w,rhs,op);
+        else if( _new != null ) // Nothing to set, but may be in a new table
+          help_copy().apply(w,rhs,op);
+        return;
       }
-      // todo - recompute size
-      return intersect(dest._nbsi64, a._nbsi64, b._nbsi64);
-    }
-
-    public boolean union(NBSI dest, NBSI a, NBSI b) {
-      // terminate recursion if neiter bitset has data
-      if(!has_bits(a) && !has_bits(b))
-        return true;
-      if(has_bits(a) || has_bits(b)) {
-        for(int i = 0; i < dest._bits.length; i++) {
-          long left   = a == null ? 0L : a.safe_read_word(i,0);
-          long right  = b == null ? 0L : b.safe_read_word(i,0);
-          dest._bits[i] = (left | right) & Long.MAX_VALUE;
+      long old;
+      long nnn;
+      do {
+        old = _bits[w];         // Read old bits
+        if( old < 0 ) {         // Not mutable?
+          // Not mutable: finish copy of word, and retry on copied word
+          help_copy_impl(w<<6).help_copy().apply(w,rhs,op);
+          return;
         }
+        nnn = NonBlockingSetInt.op(op,old,rhs) & ~mask(63);
+        if( nnn == old ) return; // No change
+      } while( !CAS( w, old, nnn ) );
+      _size.add(Long.bitCount(nnn)-Long.bitCount(old));
+    }
+
+    // All members in [w<<6, (w<<6)+63] as one word: bits 0-62 come from
+    // _bits[w] and bit 63 from the every-64th-bit nested set(s).  If any word
+    // read is immutable a resize is under way; force those words to copy and
+    // read the answer from the new table, as contains() would.
+    private long word( final int w ) {
+      long bits = _bits[w];
+      boolean frozen = bits < 0;
+      long res = bits & ~mask(63);
+      NBSI nbsi = _nbsi64;      // Element (w<<6)+63 is element w of _nbsi64
+      int j = w;
+      while( nbsi != null ) {
+        long b = nbsi._bits[j>>6];
+        if( b < 0 ) frozen = true;
+        if( (j&63) != 63 ) {    // Not another every-64th bit?
+          if( (b & mask(j)) != 0 ) res |= mask(63);
+          break;
+        }
+        nbsi = nbsi._nbsi64;    // Recurse
+        j = j>>6;               // Strip off low 6 bits (all set)
       }
-      return union(dest._nbsi64, a == null ? null : a._nbsi64, b == null ? null : b._nbsi64);
-    }
-
-    /**************************************************************************/
-
-    private long safe_read_word(int i, long default_word) {
-      if(i >= _bits.length) {
-        // allow reading past the end of the buffer filling in a default word
-        return default_word;
-      }
-      long word = _bits[i];
-      if(word < 0) {
-        NBSI nb = help_copy_impl(i);
-        if(nb._non_blocking_set_int == null) {
-          return default_word;
+      if( !frozen ) return res;
+      help_copy_impl(w<<6).help_copy_impl((w<<6)+63);
+      return help_copy().word(w);
+    }
+
+    // A new empty top-level NBSI spanning at least 'nwords' words, sized to
+    // a power of 2 as resizing would, so the by-64-bit trick works.
+    private static NBSI sized( final int nwords, final NonBlockingSetInt nonb ) {
+      final int sz = nwords <= 1 ? 1 : Integer.highestOneBit(nwords-1)<<1;
+      return new NBSI(sz == 1 ? 63 : (sz >= (1<<25) ? Integer.MAX_VALUE : sz<<6), new Counter(), nonb);
+    }
+
+    // Store a word of members, as returned by word(), into word w.  Only
+    // for a NBSI that is not yet visible to other threads; the size is left
+    // to the caller.  Returns the number of members stored.
+    private int store_word( final int w, final long bits ) {
+      if( bits == 0 ) return 0;
+      _bits[w] = bits & ~mask(63);
+      if( bits < 0 ) {          // Element (w<<6)+63 lives in the nested set
+        NBSI nbsi = _nbsi64;
+        int j = w;
+        while( (j&63) == 63 ) { // Bit 64? (low 6 bits are all set)
+          nbsi = nbsi._nbsi64;  // Recurse
+          j = j>>6;             // Strip off low 6 bits (all set)
         }
-        word = nb.help_copy()._bits[i];
+        nbsi._bits[j>>6] |= mask(j);
       }
-      return word;
+      return Long.bitCount(bits);
+    }
+
+    // Build a NBSI directly from words of members, as returned by word().
+    private static NBSI load( final long[] words, final int nwords, final NonBlockingSetInt nonb ) {
+      final NBSI nbsi = sized(nwords,nonb);
+      long cnt = 0;
+      for( int w=0; w<nwords; w++ )
+        cnt += nbsi.store_word(w,words[w]);
+      nbsi._size.add(cnt);
+      return nbsi;
     }
 
     public int sizeInBytes() { return (int)_bits.length; }
@@ -0,0 +1,227 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link NonBlockingHashMap} holding its keys weakly, and optionally its
+ * values softly.  An entry whose key is no longer strongly reachable
+ * elsewhere, or whose soft value the collector cleared, reads as absent and
+ * is removed soon after.
+ *
+ * <p>Keys are wrapped in {@link WeakReference}s that remember the key's hash
+ * and compare by the key's {@code equals}.  Reads look a key up through a
+ * plain, strongly held probe, so {@link #get} stays exactly as lock-free as
+ * {@link NonBlockingHashMap#get}.  Cleared references are queued by the
+ * collector; every write drains a batch of them from the {@link
+ * ReferenceQueue}, removing their entries.  Removal leaves the usual
+ * tombstone, and a table copy does not carry tombstones over, so dead slots
+ * are reclaimed by the next resize like any other removed key.  Until then,
+ * dead entries still count in {@link #size} unless {@link #expunge} is
+ * called first.
+ *
+ * <p>Null keys and values are not allowed.  See {@link
+ * NonBlockingWeakIdentityHashMap} for keys compared by identity.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ * @param <TypeK> the type of keys maintained by this map
+ * @param <TypeV> the type of mapped values
+ */
+public class NonBlockingWeakHashMap<TypeK, TypeV> {
+
+  // Cleared references drained per write
+  private static final int EXPUNGE_PER_WRITE = 16;
+
+  private final NonBlockingHashMap<Object,Object> _map = new NonBlockingHashMap<Object,Object>();
+  private final ReferenceQueue<Object> _queue = new ReferenceQueue<Object>();
+  private final boolean _identity;    // Compare keys by == instead of equals
+  private final boolean _soft_values; // Values wrapped in SoftValues
+
+  // --- Keys and values -----------------------------------------------------
+  // A key as stored in the map.  Two stored keys are equal while their
+  // referents are; a cleared key equals only itself.
+  private static final class WeakKey extends WeakReference<Object> {
+    final int _hash;
+    final boolean _identity;
+    WeakKey( Object key, boolean identity, ReferenceQueue<Object> q ) {
+      super(nonnull(key),q);
+      _identity = identity;
+      _hash = identity ? System.identityHashCode(key) : key.hashCode();
+    }
+    public int hashCode() { return _hash; }
+    public boolean equals( Object o ) {
+      if( o == this ) return true;
+      if( !(o instanceof WeakKey) ) return false;
+      final Object k = get();
+      return k != null && same(_identity,k,((WeakKey)o).get());
+    }
+  }
+
+  // A strongly held key, for lookups only; never stored
+  private static final class Probe {
+    final Object _key;
+    final int _hash;
+    final boolean _identity;
+    Probe( Object key, boolean identity ) {
+      _key = nonnull(key);
+      _identity = identity;
+      _hash = identity ? System.identityHashCode(key) : key.hashCode();
+    }
+    public int hashCode() { return _hash; }
+    public boolean equals( Object o ) {
+      return o instanceof WeakKey && same(_identity,_key,((WeakKey)o).get());
+    }
+  }
+
+  // System.identityHashCode(null) is 0 rather than a throw, and a WeakKey
+  // of null could never be matched nor collected; so reject null keys here,
+  // for every put, putIfAbsent, get and remove.
+  private static Object nonnull( Object key ) {
+    if( key == null ) throw new NullPointerException();
+    return key;
+  }
+
+  private static boolean same( boolean identity, Object k, Object r ) {
+    return r != null && (identity ? k == r : k.equals(r));
+  }
+
+  // A softly held value; remembers its key so a cleared value can remove
+  // its own entry.
+  private static final class SoftValue extends SoftReference<Object> {
+    final WeakKey _key;
+    SoftValue( Object val, WeakKey key, ReferenceQueue<Object> q ) { super(val,q); _key = key; }
+  }
+
+  /** Create a map with weak keys, compared by {@code equals}, and strong values. */
+  public NonBlockingWeakHashMap( ) { this(false,false); }
+
+  /** Create a map with weak keys, compared by {@code equals}, and values
+   *  held softly if {@code soft_values}. */
+  public NonBlockingWeakHashMap( boolean soft_values ) { this(false,soft_values); }
+
+  NonBlockingWeakHashMap( boolean identity, boolean soft_values ) {
+    _identity = identity;
+    _soft_values = soft_values;
+  }
+
+  private Object wrap( Object val, WeakKey key ) {
+    if( val == null ) throw new NullPointerException();
+    return _soft_values ? new SoftValue(val,key,_queue) : val;
+  }
+  // Unwrapped value, or null for a cleared soft value
+  @SuppressWarnings("unchecked")
+  private TypeV unwrap( Object V ) {
+    return (TypeV)(V instanceof SoftValue ? ((SoftValue)V).get() : V);
+  }
+
+  // --- Reads ---------------------------------------------------------------
+
+  /** Returns the value mapped to the key, or null if none or collected.
+   *  @throws NullPointerException if the key is null */
+  public TypeV get( Object key ) {
+    final Object V = _map.get(new Probe(key,_identity));
+    return V == null ? null : unwrap(V);
+  }
+
+  /** @return true if the key is mapped to a value not yet collected */
+  public boolean containsKey( Object key ) { return get(key) != null; }
+
+  /** Calls the action for each entry whose key and value are both still
+   *  reachable.  Weakly consistent, as {@link NonBlockingHashMap#entrySet}. */
+  @SuppressWarnings("unchecked")
+  public void forEach( BiConsumer<? super TypeK,? super TypeV> action ) {
+    for( Map.Entry<Object,Object> e : _map.entrySet() ) {
+      final TypeK K = (TypeK)((WeakKey)e.getKey()).get();
+      final TypeV V = unwrap(e.getValue());
+      if( K != null && V != null ) action.accept(K,V);
+    }
+  }
+
+  // --- Writes --------------------------------------------------------------
+
+  /** Maps the key to the value.
+   *  @return the previous value, or null if none or collected
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV put( TypeK key, TypeV val ) {
+    final WeakKey wk = new WeakKey(key,_identity,_queue);
+    final Object old = _map.put(wk,wrap(val,wk));
+    expunge(EXPUNGE_PER_WRITE);
+    return old == null ? null : unwrap(old);
+  }
+
+  /** Maps the key to the value unless it is mapped to a value not yet
+   *  collected.
+   *  @return the value already mapped, or null if the new value was mapped
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV putIfAbsent( TypeK key, TypeV val ) {
+    final WeakKey wk = new WeakKey(key,_identity,_queue);
+    final Object nv = wrap(val,wk);
+    try {
+      while( true ) {
+        final Object old = _map.putIfAbsent(wk,nv);
+        if( old == null ) return null;
+        final TypeV V = unwrap(old);
+        if( V != null ) return V;
+        if( _map.replace(wk,old,nv) ) return null;
+      }                         // Raced with another write; try again
+    } finally {
+      expunge(EXPUNGE_PER_WRITE);
+    }
+  }
+
+  /** Removes the key.
+   *  @return the value that was mapped, or null if none or collected */
+  public TypeV remove( Object key ) {
+    final Object old = _map.remove(new Probe(key,_identity));
+    expunge(EXPUNGE_PER_WRITE);
+    return old == null ? null : unwrap(old);
+  }
+
+  /** Removes every entry. */
+  public void clear() {
+    _map.clear();
+    expunge(Integer.MAX_VALUE); // Drop the now-stale queued references
+  }
+
+  // --- Reclaiming ----------------------------------------------------------
+
+  // Remove the entries of up to 'cnt' queued references.  A cleared key
+  // equals only itself, so removing by it removes exactly its own slot.
+  private int expunge( int cnt ) {
+    int removed = 0;
+    Reference<?> ref;
+    while( cnt-- > 0 && (ref = _queue.poll()) != null ) {
+      final boolean gone = ref instanceof SoftValue
+        ? _map.remove(((SoftValue)ref)._key,ref)
+        : _map.remove(ref) != null;
+      if( gone ) removed++;
+    }
+    return removed;
+  }
+
+  /**
+   * Remove the entries of every key and value collected so far.  Writes do
+   * this a batch at a time; call it before {@link #size} for an exact
+   * count, or from a timer if the map is rarely written.
+   * @return the number of entries removed
+   */
+  public int expunge() { return expunge(Integer.MAX_VALUE); }
+
+  /** @return the number of entries, including collected entries not yet
+   *  expunged */
+  public int size() { return _map.size(); }
+  /** @return <tt>size() == 0</tt> */
+  public boolean isEmpty() { return _map.isEmpty(); }
+
+  /** Return the size as a string. */
+  public String toString() { return "[size="+size()+(_soft_values ? " soft values]" : "]"); }
+}
@@ -0,0 +1,27 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+
+/**
+ * A {@link NonBlockingWeakHashMap} comparing keys by identity ({@code ==})
+ * and {@link System#identityHashCode}, as {@link NonBlockingIdentityHashMap}
+ * does.  Suits side tables keyed by live objects: an entry goes away soon
+ * after its key object dies.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ * @param <TypeK> the type of keys maintained by this map
+ * @param <TypeV> the type of mapped values
+ */
+public class NonBlockingWeakIdentityHashMap<TypeK, TypeV> extends NonBlockingWeakHashMap<TypeK,TypeV> {
+
+  /** Create a map with weak keys, compared by identity, and strong values. */
+  public NonBlockingWeakIdentityHashMap( ) { super(true,false); }
+
+  /** Create a map with weak keys, compared by identity, and values held
+   *  softly if {@code soft_values}. */
+  public NonBlockingWeakIdentityHashMap( boolean soft_values ) { super(true,soft_values); }
+}
@@ -0,0 +1,92 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+
+/**
+ * Resize and table-copy statistics for one {@link NonBlockingHashMap},
+ * {@link NonBlockingHashMapLong} or {@link NonBlockingIdentityHashMap}.
+ * Statistics are off by default and cost one field test per operation; call
+ * the map's {@code enableResizeStats()} to turn them on.  Once on, every
+ * resize, every thread drafted into a table copy and every key lookup is
+ * recorded in striped {@link Counter}s and {@link ConcurrentHistogram}s, so
+ * recording does not itself serialize the threads it is watching.
+ *
+ * <p>All readings are approximate while the map is in use.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public final class ResizeStats {
+  private final Counter _resizes  = new Counter(); // New tables installed
+  private final Counter _promotes = new Counter(); // Copies finished and promoted
+  private final Counter _helpers  = new Counter(); // help_copy calls that copied slots
+  private final ConcurrentHistogram _copy_nanos   = new ConcurrentHistogram();
+  private final ConcurrentHistogram _helper_slots = new ConcurrentHistogram();
+  private final ConcurrentHistogram _reprobes     = new ConcurrentHistogram();
+  // The latest resize; racing resizes of one map may mix their fields
+  private volatile int _old_len, _new_len;
+  private volatile long _old_slots, _old_live;
+
+  ResizeStats() { }
+
+  // --- Recording, from the maps --------------------------------------------
+  // A new table of 'new_len' slots was installed over one of 'old_len' slots
+  // with 'slots' claimed key slots, 'live' of them holding live keys.
+  void started( int old_len, int new_len, long slots, long live ) {
+    _resizes.increment();
+    _old_len = old_len;
+    _new_len = new_len;
+    _old_slots = slots;
+    _old_live = live;
+  }
+  // A copy begun 'nanos' ago was promoted
+  void promoted( long nanos ) {
+    _promotes.increment();
+    _copy_nanos.record(Math.max(0,nanos));
+  }
+  // One helper call copied 'slots' slots
+  void helped( int slots ) {
+    _helpers.increment();
+    _helper_slots.record(slots);
+  }
+  // A lookup found its key (or a clear miss) after 'reprobes' reprobes
+  void probed( int reprobes ) { _reprobes.record(reprobes); }
+
+  // --- Reading -------------------------------------------------------------
+  /** @return the number of new tables installed, growing or shrinking */
+  public long resizes() { return _resizes.get(); }
+  /** @return the number of table copies completed and promoted */
+  public long promotions() { return _promotes.get(); }
+  /** @return the number of times a thread was drafted into copying, and copied something */
+  public long helpers() { return _helpers.get(); }
+  /** @return the size in slots of the table replaced by the latest resize */
+  public int lastOldSize() { return _old_len; }
+  /** @return the size in slots of the table installed by the latest resize */
+  public int lastNewSize() { return _new_len; }
+  /** @return the fraction of claimed key slots holding dead (removed) keys
+   *  in the table replaced by the latest resize; 0 before any resize */
+  public double lastTombstoneRatio() {
+    final long slots = _old_slots, live = _old_live;
+    return slots <= 0 ? 0 : Math.max(0,(double)(slots-live)/slots);
+  }
+  /** @return nanoseconds from installing each new table to promoting it,
+   *  i.e. how long each table copy took */
+  public ConcurrentHistogram copyNanos() { return _copy_nanos; }
+  /** @return slots copied per helper call; many small entries mean many
+   *  threads were drafted into the copy */
+  public ConcurrentHistogram helperSlots() { return _helper_slots; }
+  /** @return reprobes per key lookup, by gets and by updates */
+  public ConcurrentHistogram reprobes() { return _reprobes; }
+
+  /** Return the counts and the main percentiles as a string. */
+  public String toString() {
+    return "[resizes="+resizes()+" promotions="+promotions()+
+      " last="+lastOldSize()+"->"+lastNewSize()+
+      String.format(" tombstones=%.2f",lastTombstoneRatio())+
+      " copy_nanos="+_copy_nanos+" helpers="+helpers()+" helper_slots="+_helper_slots+
+      " reprobes="+_reprobes+"]";
+  }
+}
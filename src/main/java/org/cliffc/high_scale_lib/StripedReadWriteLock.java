@@ -0,0 +1,228 @@
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+package org.cliffc.high_scale_lib;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * A read-mostly reader-writer lock whose readers do not contend with each
+ * other.  The reader count is striped across a {@link ConcurrentAutoTable}:
+ * a reader increments one stripe (picked by its per-thread probe) with a
+ * single CAS that succeeds only if the stripe's writer bit is clear.  A
+ * writer sets the writer bit in every stripe, then waits for the striped
+ * reader count to drain to zero.  Read locking thus costs about what a
+ * {@link Counter#increment} costs, at the price of writes that touch every
+ * stripe.
+ *
+ * <p>Three policies decide who goes first when readers and writers race:
+ * <ul>
+ * <li>{@link #WRITER_PREFERRED}: a waiting writer blocks new readers.
+ *     Writers cannot starve, but a stream of writers can starve readers.
+ * <li>{@link #READER_PREFERRED}: a writer backs off while any reader holds
+ *     the lock.  Readers cannot starve, but writers can.
+ * <li>{@link #FAIR}: as writer-preferred, but a writer also waits for the
+ *     readers blocked by the previous writer to get in first, so readers
+ *     and writers alternate under contention and neither starves.
+ * </ul>
+ *
+ * <p>Waiting is by spinning, then yielding, then short timed parks; there
+ * is no queue of waiters.  The lock is not reentrant: a thread holding
+ * either lock that asks for the write lock, or holding the write lock that
+ * asks for the read lock, deadlocks.  Conditions are not supported.
+ *
+ * @since 1.5
+ * @author Cliff Click
+ */
+public class StripedReadWriteLock implements ReadWriteLock {
+
+  /** A waiting writer blocks new readers. */
+  public static final int WRITER_PREFERRED = 0;
+  /** A writer waits until no reader holds the lock. */
+  public static final int READER_PREFERRED = 1;
+  /** Readers and writers alternate under contention. */
+  public static final int FAIR = 2;
+
+  // Stripe layout: bit 0 is the writer bit, the rest counts readers in
+  // units of 2.  A reader may unlock in another stripe than it locked in,
+  // so stripes can go negative; adding +/-2 never carries into bit 0.
+  private static final long WRITER = 1L;
+  private static final long READER = 2L;
+
+  private final ConcurrentAutoTable _readers;
+  private final int _policy;
+
+  // Writers exclude each other with this word before touching the stripes
+  private volatile int _writer;
+  private static final AtomicIntegerFieldUpdater<StripedReadWriteLock> _writerUpdater =
+    AtomicIntegerFieldUpdater.newUpdater(StripedReadWriteLock.class, "_writer");
+
+  // FAIR only: readers currently blocked by a writer
+  private volatile long _waiting_readers;
+  private static final AtomicLongFieldUpdater<StripedReadWriteLock> _waitingUpdater =
+    AtomicLongFieldUpdater.newUpdater(StripedReadWriteLock.class, "_waiting_readers");
+
+  private final Lock _read_lock  = new ReadLock();
+  private final Lock _write_lock = new WriteLock();
+
+  /** Create a {@link #WRITER_PREFERRED} lock. */
+  public StripedReadWriteLock() { this(WRITER_PREFERRED); }
+
+  /**
+   * Create a lock with the given policy and a stripe per two CPUs' worth of
+   * readers.
+   * @param policy one of WRITER_PREFERRED, READER_PREFERRED or FAIR
+   * @throws IllegalArgumentException if the policy is unknown
+   */
+  public StripedReadWriteLock( int policy ) {
+    this(policy,Integer.highestOneBit(Runtime.getRuntime().availableProcessors()*2-1)<<1);
+  }
+
+  /**
+   * Create a lock with the given policy and number of reader stripes.  The
+   * stripes never grow: a writer must be able to mark every one of them.
+   * @param policy one of WRITER_PREFERRED, READER_PREFERRED or FAIR
+   * @param stripes number of reader stripes, a power of 2
+   * @throws IllegalArgumentException if the policy is unknown or stripes is
+   *         not a power of 2
+   */
+  public StripedReadWriteLock( int policy, int stripes ) {
+    if( policy < WRITER_PREFERRED || policy > FAIR )
+      throw new IllegalArgumentException(""+policy);
+    if( stripes <= 0 || Integer.bitCount(stripes) != 1 )
+      throw new IllegalArgumentException(""+stripes);
+    _policy = policy;
+    _readers = new ConcurrentAutoTable(ConcurrentAutoTable.DEFAULT_LINE_BYTES,ConcurrentAutoTable.SUM,stripes);
+  }
+
+  public Lock readLock () { return _read_lock;  }
+  public Lock writeLock() { return _write_lock; }
+
+  /** @return the number of read holds; approximate while readers race */
+  public int getReadLockCount() { return (int)(_readers.fresh_sum(WRITER)/READER); }
+  /** @return true if a writer holds, or is acquiring, the write lock */
+  public boolean isWriteLocked() { return _writer != 0; }
+  /** @return the policy given at construction */
+  public int policy() { return _policy; }
+
+  public String toString() {
+    return super.toString()+"[readers="+getReadLockCount()+(isWriteLocked() ? ", write locked]" : "]");
+  }
+
+  // --- Readers -------------------------------------------------------------
+  private boolean try_read() {
+    return (_readers.add_if_mask(READER,WRITER) & WRITER) == 0;
+  }
+
+  // How long an acquire may wait: without limit, until 'deadline' (a
+  // System.nanoTime, any value of which is legal), or not at all
+  private static final int UNTIMED = 0, TIMED = 1, ONCE = 2;
+
+  // Acquire a read hold.  'deadline' is used only when 'mode' is TIMED.
+  // Returns false on timeout.
+  private boolean acquire_read( boolean interruptible, int mode, long deadline ) throws InterruptedException {
+    if( try_read() ) return true; // Fast path
+    final boolean fair = _policy == FAIR;
+    if( fair ) _waitingUpdater.incrementAndGet(this);
+    try {
+      for( int spins=0; ; spins++ ) {
+        if( !pause(spins,interruptible,mode,deadline) ) return false;
+        if( try_read() ) return true;
+      }
+    } finally {
+      if( fair ) _waitingUpdater.decrementAndGet(this);
+    }
+  }
+
+  private void release_read() { _readers.add(-READER); }
+
+  // --- Writers -------------------------------------------------------------
+  private boolean drained() { return _readers.fresh_sum(WRITER) == 0; }
+
+  // Acquire the write lock.  'deadline' is used only when 'mode' is TIMED.
+  // Returns false on timeout, or at once on contention when 'mode' is ONCE.
+  private boolean acquire_write( boolean interruptible, int mode, long deadline ) throws InterruptedException {
+    // First exclude other writers
+    int spins = 0;
+    while( !_writerUpdater.compareAndSet(this,0,1) )
+      if( !pause(spins++,interruptible,mode,deadline) ) return false;
+    boolean ok = false;
+    try {
+      if( _policy == FAIR )     // Let readers the last writer blocked go first
+        while( _waiting_readers > 0 )
+          if( !pause(spins++,interruptible,mode,deadline) ) return false;
+      while( true ) {
+        if( _policy == READER_PREFERRED ) // Only mark the stripes once readers are out
+          while( !drained() )
+            if( !pause(spins++,interruptible,mode,deadline) ) return false;
+        _readers.all_or(WRITER); // New readers now fail
+        // Wait for the readers already in to leave
+        while( !drained() ) {
+          if( _policy == READER_PREFERRED ) break; // A reader got in; back off
+          if( !pause(spins++,interruptible,mode,deadline) ) return false;
+        }
+        if( drained() ) return ok = true;
+        _readers.all_and(~WRITER); // READER_PREFERRED: let the readers run
+        if( !pause(spins++,interruptible,mode,deadline) ) return false;
+      }
+    } finally {
+      if( !ok ) release_write(); // Timed out or interrupted: undo
+    }
+  }
+
+  private void release_write() {
+    _readers.all_and(~WRITER);
+    _writer = 0;
+  }
+
+  // Back off a little more each time round a wait loop: spin, then yield,
+  // then park for up to a millisecond.  Returns false if no waiting is
+  // allowed or the deadline passed; throws if interruptible and interrupted.
+  private static boolean pause( int spins, boolean interruptible, int mode, long deadline ) throws InterruptedException {
+    if( interruptible && Thread.interrupted() ) throw new InterruptedException();
+    if( mode == ONCE ) return false;
+    if( mode == TIMED && System.nanoTime() - deadline >= 0 ) return false;
+    if( spins < 64 ) return true;
+    if( spins < 128 ) { Thread.yield(); return true; }
+    LockSupport.parkNanos(1000L << Math.min(10,(spins-128)>>4));
+    return true;
+  }
+
+  // Timeouts are capped at 2^62 nanos (~146 years), so the wrapping
+  // compare in pause stays correct even when the sum overflows
+  private static long deadline( long time, TimeUnit unit ) {
+    return System.nanoTime() + Math.min(unit.toNanos(time),Long.MAX_VALUE>>1);
+  }
+
+  // --- Lock views ----------------------------------------------------------
+  private final class ReadLock implements Lock {
+    public void lock() {
+      try { acquire_read(false,UNTIMED,0); } catch( InterruptedException e ) { throw new Error(e); }
+    }
+    public void lockInterruptibly() throws InterruptedException { acquire_read(true,UNTIMED,0); }
+    public boolean tryLock() { return try_read(); }
+    public boolean tryLock( long time, TimeUnit unit ) throws InterruptedException {
+      return acquire_read(true,TIMED,deadline(time,unit));
+    }
+    public void unlock() { release_read(); }
+    public Condition newCondition() { throw new UnsupportedOperationException(); }
+  }
+
+  private final class WriteLock implements Lock {
+    public void lock() {
+      try { acquire_write(false,UNTIMED,0); } catch( InterruptedException e ) { throw new Error(e); }
+    }
+    public void lockInterruptibly() throws InterruptedException { acquire_write(true,UNTIMED,0); }
+    public boolean tryLock() {
+      try { return acquire_write(false,ONCE,0); } catch( InterruptedException e ) { throw new Error(e); }
+    }
+    public boolean tryLock( long time, TimeUnit unit ) throws InterruptedException {
+      return acquire_write(true,TIMED,deadline(time,unit));
+    }
+    public void unlock() { release_write(); }
+    public Condition newCondition() { throw new UnsupportedOperationException(); }
+  }
+}
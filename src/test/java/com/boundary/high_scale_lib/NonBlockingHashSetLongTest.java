@@ -0,0 +1,160 @@
+package com.boundary.high_scale_lib;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import org.cliffc.high_scale_lib.LongIterator;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingHashSetLong via JUnit
+public class NonBlockingHashSetLongTest extends TestCase {
+
+  public void testReadOnly() {
+    final NonBlockingHashSetLong set = new NonBlockingHashSetLong();
+    final int CNT = 10000;
+    for( long i=0; i<CNT; i++ )
+      assertTrue( set.add(i*1024) ); // Keys the masking hash would cluster
+    assertTrue( set.remove(1024L) );
+    assertTrue( set.add(-7L) );
+    set.readOnly();
+    set.readOnly();             // Idempotent
+
+    assertThat( set.size(), is(CNT) );
+    assertTrue ( set.contains(0L) );
+    assertTrue ( set.contains(-7L) );
+    assertTrue ( set.contains(2048L) );
+    assertFalse( set.contains(1024L) );
+    assertFalse( set.contains(1L) );
+    long sum = 0;
+    int cnt = 0;
+    for( LongIterator it = set.longIterator(); it.hasNext(); ) {
+      sum += it.nextLong();
+      cnt++;
+    }
+    assertThat( cnt, is(CNT) );
+    assertThat( sum, is(1024L*CNT*(CNT-1)/2 - 1024 - 7) );
+
+    try { set.add(5L);     fail(); } catch( IllegalStateException e ) { }
+    try { set.remove(0L);  fail(); } catch( IllegalStateException e ) { }
+    try { set.clear();     fail(); } catch( IllegalStateException e ) { }
+    try { set.iterator().remove(); fail(); } catch( IllegalStateException e ) { }
+    assertThat( set.size(), is(CNT) );
+  }
+
+  public void testReadOnlySmall() throws IOException, ClassNotFoundException {
+    final NonBlockingHashSetLong set = new NonBlockingHashSetLong();
+    set.readOnly();
+    assertThat( set.size(), is(0) );
+    assertFalse( set.contains(0L) );
+    assertThat( set.toString(), is("[]") );
+
+    final NonBlockingHashSetLong set2 = new NonBlockingHashSetLong();
+    set2.add(3L);
+    set2.readOnly();
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(set2);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    NonBlockingHashSetLong set3 = (NonBlockingHashSetLong)in.readObject();
+    in.close();
+    assertTrue( set3.contains(3L) );
+    assertThat( set3.toString(), is("[3]") );
+  }
+
+  // A live set round-trips, and a set written before readOnly() added the
+  // _ro field still reads back
+  public void testSerial() throws IOException, ClassNotFoundException {
+    final NonBlockingHashSetLong set = new NonBlockingHashSetLong();
+    set.add(0L);
+    set.add(5L);
+    set.add(-3L);
+    NonBlockingHashSetLong set2 = roundTrip(set);
+    assertThat( set2.size(), is(3) );
+    assertTrue ( set2.contains(0L) );
+    assertTrue ( set2.contains(-3L) );
+    assertTrue ( set2.add(7L) );
+
+    NonBlockingHashSetLong old = read(hex(OLD_SET));
+    assertThat( old.size(), is(3) );
+    assertTrue ( old.contains(0L) );
+    assertTrue ( old.contains(5L) );
+    assertTrue ( old.contains(-3L) );
+    assertTrue ( old.add(7L) );
+    old.readOnly();
+    assertTrue ( old.contains(7L) );
+  }
+
+  // The set {0, 5, -3} as serialized by the class before readOnly() was
+  // implemented
+  private static final String OLD_SET =
+    "aced000573720032636f6d2e626f756e646172792e686967685f7363616c655f" +
+    "6c69622e4e6f6e426c6f636b696e67486173685365744c6f6e6760a2987e6b70" +
+    "09c50200014c00045f6d61707400324c6f72672f636c696666632f686967685f" +
+    "7363616c655f6c69622f4e6f6e426c6f636b696e67486173684d61704c6f6e67" +
+    "3b7870737200306f72672e636c696666632e686967685f7363616c655f6c6962" +
+    "2e4e6f6e426c6f636b696e67486173684d61704c6f6e6711207cb4719799cc03" +
+    "00015a000e5f6f70745f666f725f737061636578700177080000000000000000" +
+    "7400007708000000000000000571007e00057708fffffffffffffffd71007e00" +
+    "05770800000000000000007078";
+
+  private static NonBlockingHashSetLong roundTrip( NonBlockingHashSetLong set ) throws IOException, ClassNotFoundException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(set);
+    out.close();
+    return read(bos.toByteArray());
+  }
+  private static NonBlockingHashSetLong read( byte[] bytes ) throws IOException, ClassNotFoundException {
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+    NonBlockingHashSetLong set = (NonBlockingHashSetLong)in.readObject();
+    in.close();
+    return set;
+  }
+  private static byte[] hex( String s ) {
+    byte[] b = new byte[s.length()>>1];
+    for( int i=0; i<b.length; i++ )
+      b[i] = (byte)Integer.parseInt(s.substring(2*i,2*i+2),16);
+    return b;
+  }
+
+  // Racing adders either get their key in, or see IllegalStateException.
+  // Key 0 lives outside the table, so one thread flips it in and out.
+  public void testReadOnlyRace() throws InterruptedException {
+    final NonBlockingHashSetLong set = new NonBlockingHashSetLong();
+    final int THRDS = 4;
+    final long added[] = new long[THRDS];
+    final boolean zero[] = new boolean[1];
+    Thread ts[] = new Thread[THRDS+1];
+    for( int t=0; t<THRDS; t++ ) {
+      final int x = t;
+      ts[t] = new Thread() { public void run() {
+        try {
+          for( long i=x+1; ; i+=THRDS ) {
+            set.add(i);
+            added[x] = i+1;     // Count of keys this thread knows went in
+          }
+        } catch( IllegalStateException e ) { }
+      } };
+    }
+    ts[THRDS] = new Thread() { public void run() {
+      try {
+        while( true ) {
+          set.add(0L);
+          zero[0] = true;       // Key 0 known to be in
+          set.remove(0L);
+          zero[0] = false;      // Key 0 known to be out
+        }
+      } catch( IllegalStateException e ) { }
+    } };
+    for( Thread t : ts ) t.start();
+    Thread.sleep(20);
+    set.readOnly();
+    for( Thread t : ts ) t.join();
+    for( int t=0; t<THRDS; t++ )
+      for( long i=t+1; i<added[t]; i+=THRDS )
+        assertTrue( "key "+i, set.contains(i) );
+    assertThat( set.contains(0L), is(zero[0]) );
+  }
+}
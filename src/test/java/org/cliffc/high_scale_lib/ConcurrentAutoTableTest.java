@@ -0,0 +1,305 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test ConcurrentAutoTable and Counter via JUnit
+public class ConcurrentAutoTableTest extends TestCase {
+
+  private Counter _cnt;
+  protected void setUp   () { _cnt = new Counter(); }
+  protected void tearDown() { _cnt = null; }
+
+  public void testBasic() {
+    assertThat( _cnt.get(), is(0L) );
+    _cnt.increment();
+    _cnt.add(10);
+    _cnt.decrement();
+    assertThat( _cnt.get(), is(10L) );
+    assertThat( _cnt.intValue(), is(10) );
+    assertThat( _cnt.toString(), is("10") );
+    _cnt.set(-5);
+    assertThat( _cnt.get(), is(-5L) );
+  }
+
+  // Many threads hammer one counter; no count may be lost, and the table
+  // must stay within its growth limit
+  public void testConcurrentAdd() throws InterruptedException {
+    final int THRDS = 16;
+    final int ITERS = 100000;
+    Thread ts[] = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ )
+      ts[t] = new Thread() { public void run() {
+        for( int i=0; i<ITERS; i++ )
+          _cnt.increment();
+      } };
+    for( Thread t : ts ) t.start();
+    for( Thread t : ts ) t.join();
+    assertThat( _cnt.get(), is((long)THRDS*ITERS) );
+    assertTrue( _cnt.internal_size() <= 1024*1024 );
+  }
+
+  public void testSumThenReset() {
+    _cnt.add(7);
+    assertThat( _cnt.sumThenReset(), is(7L) );
+    assertThat( _cnt.get(), is(0L) );
+    _cnt.add(3);
+    assertThat( _cnt.getAndReset(), is(3L) );
+    assertThat( _cnt.getAndReset(), is(0L) );
+
+    Counter.Interval iv = _cnt.interval();
+    _cnt.add(5);
+    assertThat( iv.delta(), is(5L) );
+    assertThat( iv.delta(), is(0L) );
+    _cnt.add(-2);
+    assertThat( iv.delta(), is(-2L) );
+  }
+
+  // Resets racing with increments lose nothing: the drained sums plus the
+  // final value account for every increment
+  public void testConcurrentReset() throws InterruptedException {
+    final int THRDS = 8;
+    final int ITERS = 200000;
+    Thread ts[] = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ )
+      ts[t] = new Thread() { public void run() {
+        for( int i=0; i<ITERS; i++ )
+          _cnt.increment();
+      } };
+    for( Thread t : ts ) t.start();
+    long drained = 0;
+    boolean alive = true;
+    while( alive ) {
+      drained += _cnt.sumThenReset();
+      alive = false;
+      for( Thread t : ts ) alive |= t.isAlive();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( drained + _cnt.get(), is((long)THRDS*ITERS) );
+  }
+
+  // A table grown under contention folds its old tables in as it goes, and
+  // halves itself once the contention has gone; no count is lost either way
+  public void testShrinkWhenIdle() throws InterruptedException {
+    final int THRDS = 16;
+    final int ITERS = 200000;
+    _cnt.grow(); _cnt.grow(); _cnt.grow();
+    Thread ts[] = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ )
+      ts[t] = new Thread() { public void run() {
+        for( int i=0; i<ITERS; i++ )
+          _cnt.increment();
+      } };
+    for( Thread t : ts ) t.start();
+    for( Thread t : ts ) t.join();
+    assertThat( _cnt.get(), is((long)THRDS*ITERS) );
+    int grown = _cnt.internal_size();
+    assertTrue( grown >= 8 );
+    // The last grown table may have collided within its first window; the
+    // second window is idle for certain
+    Thread.sleep(1100); walk(_cnt);
+    Thread.sleep(1100); walk(_cnt);
+    assertThat( _cnt.get(), is((long)THRDS*ITERS) );
+    assertThat( _cnt.internal_size(), anyOf(is(grown>>1),is(grown>>2)) );
+    _cnt.add(5);
+    assertThat( _cnt.get(), is((long)THRDS*ITERS+5) );
+  }
+
+  // Enough sums walked over the stripes, as reads following a write are,
+  // for a few idle checks to ride on
+  private static void walk( Counter cnt ) {
+    for( int i=0; i<64; i++ ) {
+      cnt.increment(); cnt.get();
+      cnt.decrement(); cnt.get();
+    }
+  }
+
+  // Readers racing a grow or an idle shrink must not keep a stale total: a
+  // retired table's cached sum would otherwise be added to the counts
+  // moved out of it
+  public void testFoldWithReaders() throws InterruptedException {
+    final int THRDS = 8;
+    Thread ts[] = new Thread[THRDS];
+    for( int round=0; round<20; round++ ) {
+      final Counter cnt = new Counter();
+      cnt.grow(); cnt.grow(); cnt.grow();
+      for( int t=0; t<THRDS; t++ ) // Spread counts over the stripes
+        (ts[t] = new Thread() { public void run() {
+          for( int i=0; i<1000; i++ ) cnt.increment();
+        } }).start();
+      for( Thread t : ts ) t.join();
+      final long total = THRDS*1000L;
+      assertThat( cnt.get(), is(total) ); // Fills the sum cache
+      final AtomicBoolean done = new AtomicBoolean();
+      for( int t=0; t<THRDS; t++ )
+        (ts[t] = new Thread() { public void run() {
+          while( !done.get() ) cnt.get();
+        } }).start();
+      for( int i=0; i<7; i++ ) { cnt.grow(); Thread.yield(); }
+      done.set(true);
+      for( Thread t : ts ) t.join();
+      for( int i=0; i<3; i++ )
+        assertThat( cnt.get(), is(total) );
+    }
+  }
+
+  // A sum racing a fold may miss counts in flight, but never counts one
+  // twice: no read exceeds the increments finished by the end of the read
+  // plus the one each thread may have in flight
+  public void testNoOvercountWhileGrowing() throws InterruptedException {
+    final int THRDS = 2;
+    final AtomicLong done = new AtomicLong();
+    final AtomicBoolean stop = new AtomicBoolean();
+    for( int round=0; round<20; round++ ) {
+      final Counter cnt = new Counter();
+      done.set(0);
+      stop.set(false);
+      Thread ts[] = new Thread[THRDS];
+      for( int t=0; t<THRDS; t++ )
+        (ts[t] = new Thread() { public void run() {
+          while( !stop.get() ) { cnt.increment(); done.incrementAndGet(); }
+        } }).start();
+      for( int i=0; i<8; i++ ) {
+        cnt.grow();
+        for( int j=0; j<100; j++ ) {
+          final long v = cnt.get();
+          final long hi = done.get()+THRDS;
+          assertTrue( v+" > "+hi, v <= hi );
+        }
+      }
+      stop.set(true);
+      for( Thread t : ts ) t.join();
+      assertThat( cnt.get(), is(done.get()) );
+    }
+  }
+
+  public void testShrinkWithReaders() throws InterruptedException {
+    _cnt.grow(); _cnt.grow(); _cnt.grow();
+    assertThat( _cnt.internal_size(), is(8) );
+    for( int i=0; i<8000; i++ ) _cnt.increment();
+    assertThat( _cnt.get(), is(8000L) );
+    final long deadline = System.currentTimeMillis()+1300; // Past one idle window
+    Thread ts[] = new Thread[8];
+    for( int t=0; t<ts.length; t++ )
+      (ts[t] = new Thread() { public void run() {
+        while( System.currentTimeMillis() < deadline ) _cnt.get();
+      } }).start();
+    while( System.currentTimeMillis() < deadline ) { // Keep the readers walking
+      _cnt.increment();
+      _cnt.decrement();
+      Thread.yield();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( _cnt.internal_size(), is(4) );
+    for( int i=0; i<3; i++ )
+      assertThat( _cnt.get(), is(8000L) );
+    _cnt.add(5);
+    assertThat( _cnt.get(), is(8005L) );
+  }
+
+  // Every long is a legal count, Long.MIN_VALUE included
+  public void testSetMinValue() {
+    _cnt.set(Long.MIN_VALUE);
+    assertThat( _cnt.get(), is(Long.MIN_VALUE) );
+    _cnt.add(3);
+    assertThat( _cnt.get(), is(Long.MIN_VALUE+3) );
+    _cnt.set(7);
+    _cnt.increment();
+    assertThat( _cnt.get(), is(8L) );
+  }
+
+  // Adds landing on or wrapping through Long.MIN_VALUE, in a single stripe
+  // and across a fold that carries a Long.MIN_VALUE stripe to a new table
+  public void testAddMinValue() {
+    _cnt.add(Long.MIN_VALUE);
+    assertThat( _cnt.get(), is(Long.MIN_VALUE) );
+    _cnt.set(Long.MIN_VALUE+1);
+    _cnt.decrement();
+    assertThat( _cnt.get(), is(Long.MIN_VALUE) );
+    _cnt.set(Long.MAX_VALUE);
+    _cnt.increment();           // Wraps around
+    assertThat( _cnt.get(), is(Long.MIN_VALUE) );
+    _cnt.decrement();           // And back
+    assertThat( _cnt.get(), is(Long.MAX_VALUE) );
+    _cnt.set(Long.MIN_VALUE);
+    _cnt.grow();                // Folds the Long.MIN_VALUE stripe across
+    _cnt.grow();
+    assertThat( _cnt.get(), is(Long.MIN_VALUE) );
+    _cnt.add(Long.MIN_VALUE);   // Wraps to zero
+    _cnt.add(5);
+    assertThat( _cnt.get(), is(5L) );
+    assertThat( _cnt.sumThenReset(), is(5L) );
+  }
+
+  public void testMaxMin() {
+    MaxCounter max = new MaxCounter();
+    MinCounter min = new MinCounter();
+    assertThat( max.get(), is(Long.MIN_VALUE) );
+    assertThat( min.get(), is(Long.MAX_VALUE) );
+    for( long x : new long[] { 5, -3, 17, 2, Long.MIN_VALUE, Long.MAX_VALUE-1 } ) {
+      max.update(x);
+      min.update(x);
+    }
+    assertThat( max.get(), is(Long.MAX_VALUE-1) );
+    assertThat( min.get(), is(Long.MIN_VALUE) );
+    assertThat( min.getThenReset(), is(Long.MIN_VALUE) );
+    assertThat( min.get(), is(Long.MAX_VALUE) );
+    min.update(4);
+    assertThat( min.toString(), is("4") );
+    max.reset();
+    assertThat( max.get(), is(Long.MIN_VALUE) );
+  }
+
+  // Resets racing a growing MAX table must reduce the drained tables with
+  // max, not add them: every reading is empty or one of the recorded values
+  public void testMaxResetWhileGrowing() throws InterruptedException {
+    final ConcurrentAutoTable max = new ConcurrentAutoTable(ConcurrentAutoTable.DEFAULT_LINE_BYTES,ConcurrentAutoTable.MAX);
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread ts[] = new Thread[4];
+    for( int t=0; t<ts.length; t++ )
+      (ts[t] = new Thread() { public void run() {
+        for( int i=0; !done.get(); i++ )
+          max.add(1000+(i%1000));
+      } }).start();
+    for( int round=0; round<10; round++ ) {
+      for( int i=0; i<6; i++ ) {
+        max.grow();
+        final long m = max.sumThenReset();
+        assertTrue( ""+m, m == Long.MIN_VALUE || (m >= 1000 && m < 2000) );
+      }
+      max.set(Long.MIN_VALUE); // Back to one stripe
+    }
+    done.set(true);
+    for( Thread t : ts ) t.join();
+  }
+
+  // Many threads race to raise and lower the marks; the extremes win
+  public void testConcurrentMaxMin() throws InterruptedException {
+    final MaxCounter max = new MaxCounter();
+    final MinCounter min = new MinCounter();
+    final int THRDS = 8;
+    final int ITERS = 100000;
+    Thread ts[] = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int off = t;
+      ts[t] = new Thread() { public void run() {
+        for( int i=0; i<ITERS; i++ ) {
+          max.update(i*THRDS+off);
+          min.update(-(i*THRDS+off));
+        }
+      } };
+    }
+    for( Thread t : ts ) t.start();
+    for( Thread t : ts ) t.join();
+    assertThat( max.get(), is((long)ITERS*THRDS-1) );
+    assertThat( min.get(), is(-((long)ITERS*THRDS-1)) );
+  }
+}
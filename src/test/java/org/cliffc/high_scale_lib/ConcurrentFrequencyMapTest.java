@@ -0,0 +1,138 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test ConcurrentFrequencyMap and ConcurrentFrequencyMapLong via JUnit
+public class ConcurrentFrequencyMapTest extends TestCase {
+
+  private ConcurrentFrequencyMap<String> _cfm;
+  protected void setUp   () { _cfm = new ConcurrentFrequencyMap<String>(); }
+  protected void tearDown() { _cfm = null; }
+
+  // Test some basic stuff; count a few keys, remove a few keys
+  public void testBasic() {
+    assertTrue ( _cfm.isEmpty() );
+    assertThat ( _cfm.get("k1"), is(0L) );
+    assertThat ( _cfm.incrementAndGet("k1"), is(1L) );
+    assertThat ( _cfm.addAndGet("k1",4), is(5L) );
+    assertThat ( _cfm.addAndGet("k2",-3), is(-3L) );
+    assertThat ( _cfm.size(), is(2) );
+    assertThat ( _cfm.addAndGet("k2",3), is(0L) );
+    assertTrue ( _cfm.containsKey("k2") ); // Counted, even at zero
+    assertThat ( _cfm.size(), is(2) );
+    assertThat ( _cfm.remove("k1"), is(5L) );
+    assertFalse( _cfm.containsKey("k1") );
+    assertThat ( _cfm.remove("k1"), is(0L) );
+    assertThat ( _cfm.size(), is(1) );
+    assertThat ( _cfm.incrementAndGet("k1"), is(1L) );
+    assertThat ( _cfm.toString(), anyOf(is("{k1=1, k2=0}"),is("{k2=0, k1=1}")) );
+    try { _cfm.addAndGet("k1",NonBlockingHashMapLongLong.MAX_VALUE); fail(); } catch( IllegalArgumentException e ) { }
+    assertThat ( _cfm.get("k1"), is(1L) );
+    _cfm.clear();
+    assertTrue ( _cfm.isEmpty() );
+  }
+
+  // Enough keys to force several resizes; then the bulk reads
+  public void testBig() {
+    final int CNT = 10000;
+    for( int i=0; i<CNT; i++ )
+      _cfm.addAndGet("k"+i,i);
+    assertThat( _cfm.size(), is(CNT) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( _cfm.get("k"+i), is((long)i) );
+
+    List<Map.Entry<String,Long>> top = _cfm.topK(3);
+    assertThat( top.size(), is(3) );
+    assertThat( top.get(0).getKey(), is("k"+(CNT-1)) );
+    assertThat( top.get(2).getValue(), is((long)CNT-3) );
+    assertThat( _cfm.topK(0).size(), is(0) );
+    assertThat( _cfm.topK(CNT+5).size(), is(CNT) );
+
+    Map<String,Long> snap = _cfm.snapshot();
+    assertThat( snap.size(), is(CNT) );
+    assertThat( snap.get("k77"), is(77L) );
+    assertThat( _cfm.size(), is(CNT) );
+    Map<String,Long> reset = _cfm.snapshotThenReset();
+    assertThat( reset, is(snap) );
+    assertTrue( _cfm.isEmpty() );
+    assertThat( _cfm.get("k77"), is(0L) );
+  }
+
+  // Many threads bump a shared set of keys, forcing resizes as they go,
+  // while another resets; no increment may be lost
+  public void testConcurrent() throws InterruptedException {
+    final int THRDS = 4;
+    final int KEYS = 5000;
+    final int ROUNDS = 20;
+    final ConcurrentFrequencyMap<Integer> cfm = new ConcurrentFrequencyMap<Integer>();
+    final long[] drained = new long[1];
+    Thread ts[] = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int off = t;
+      ts[t] = new Thread() { public void run() {
+        for( int r=0; r<ROUNDS; r++ )
+          for( int i=0; i<KEYS; i++ )
+            cfm.incrementAndGet((i+off*7)%KEYS);
+      } };
+    }
+    Thread resetter = new Thread() { public void run() {
+      for( int r=0; r<10; r++ )
+        for( long c : cfm.snapshotThenReset().values() )
+          drained[0] += c;
+    } };
+    for( Thread t : ts ) t.start();
+    resetter.start();
+    for( Thread t : ts ) t.join();
+    resetter.join();
+    long sum = drained[0];
+    for( long c : cfm.snapshot().values() ) sum += c;
+    assertThat( sum, is((long)THRDS*ROUNDS*KEYS) );
+  }
+
+  public void testSerial() throws IOException, ClassNotFoundException {
+    _cfm.addAndGet("a",3);
+    _cfm.addAndGet("b",-2);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(_cfm);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    @SuppressWarnings("unchecked")
+    ConcurrentFrequencyMap<String> cfm = (ConcurrentFrequencyMap<String>)in.readObject();
+    in.close();
+    assertThat( cfm.snapshot(), is(_cfm.snapshot()) );
+    assertThat( cfm.incrementAndGet("a"), is(4L) );
+  }
+
+  // The long-keyed twin
+  public void testLong() {
+    ConcurrentFrequencyMapLong cfml = new ConcurrentFrequencyMapLong();
+    assertThat( cfml.get(0), is(0L) );
+    for( int i=0; i<1000; i++ )
+      cfml.addAndGet(i,i%100);
+    assertThat( cfml.incrementAndGet(0), is(1L) );
+    assertThat( cfml.size(), is(1000) );
+    List<Map.Entry<Long,Long>> top = cfml.topK(5);
+    assertThat( top.size(), is(5) );
+    for( Map.Entry<Long,Long> e : top )
+      assertThat( e.getValue(), is(99L) );
+    assertThat( cfml.topK(0).size(), is(0) );
+    assertThat( cfml.topK(2000).size(), is(1000) );
+    assertThat( cfml.topK(2000).get(999).getValue(), is(0L) );
+    NonBlockingHashMapLongLong snap = cfml.snapshot();
+    assertThat( snap.get(199), is(99L) );
+    NonBlockingHashMapLongLong reset = cfml.snapshotThenReset();
+    assertThat( reset.size(), is(1000) );
+    assertTrue( cfml.isEmpty() );
+    assertThat( cfml.remove(5), is(0L) );
+  }
+}
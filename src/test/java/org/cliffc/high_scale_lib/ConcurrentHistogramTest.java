@@ -0,0 +1,99 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test ConcurrentHistogram via JUnit
+public class ConcurrentHistogramTest extends TestCase {
+
+  private ConcurrentHistogram _h;
+  protected void setUp   () { _h = new ConcurrentHistogram(); }
+  protected void tearDown() { _h = null; }
+
+  public void testEmpty() {
+    assertThat( _h.count(), is(0L) );
+    assertThat( _h.percentile(99), is(0L) );
+    assertThat( _h.min(), is(0L) );
+    assertThat( _h.max(), is(0L) );
+    try { _h.record(-1); fail(); } catch( IllegalArgumentException e ) { }
+    try { _h.percentile(101); fail(); } catch( IllegalArgumentException e ) { }
+    try { new ConcurrentHistogram(0); fail(); } catch( IllegalArgumentException e ) { }
+  }
+
+  // Small values are exact; large ones are within the precision
+  public void testPrecision() {
+    final double err = 1.0/(1<<ConcurrentHistogram.DEFAULT_PRECISION_BITS);
+    long[] vals = { 0, 1, 63, 64, 65, 1000, 123456789L, 1L<<40, Long.MAX_VALUE };
+    for( long v : vals ) {
+      ConcurrentHistogram h = new ConcurrentHistogram();
+      h.record(v);
+      assertThat( h.count(), is(1L) );
+      assertTrue( "min "+v, h.min() <= v && v <= h.max() );
+      assertTrue( "err "+v, h.max()-h.min() <= v*err );
+      assertThat( h.percentile(50), is(h.max()) );
+    }
+    assertThat( _h.precision_bits(), is(ConcurrentHistogram.DEFAULT_PRECISION_BITS) );
+  }
+
+  public void testPercentiles() {
+    for( int i=1; i<=10000; i++ )
+      _h.record(i);
+    assertThat( _h.count(), is(10000L) );
+    assertNear( _h.percentile(50), 5000 );
+    assertNear( _h.percentile(99), 9900 );
+    assertNear( _h.percentile(100), 10000 );
+    assertThat( _h.percentile(0), is(1L) );
+    assertNear( (long)_h.mean(), 5000 );
+    _h.record(1000000,10000);   // Half the values are now one large value
+    assertNear( _h.percentile(75), 1000000 );
+  }
+
+  private static void assertNear( long v, long expected ) {
+    assertTrue( v+" vs "+expected, Math.abs(v-expected) <= expected*2.0/(1<<ConcurrentHistogram.DEFAULT_PRECISION_BITS) );
+  }
+
+  public void testSnapshotAndMerge() {
+    _h.record(10,3);
+    _h.record(500);
+    ConcurrentHistogram s = _h.snapshot();
+    _h.record(7);
+    assertThat( s.count(), is(4L) );
+    ConcurrentHistogram r = _h.snapshotThenReset();
+    assertThat( r.count(), is(5L) );
+    assertThat( _h.count(), is(0L) );
+    r.add(s);
+    assertThat( r.count(), is(9L) );
+    assertThat( r.min(), is(7L) );
+    try { r.add(new ConcurrentHistogram(3)); fail(); } catch( IllegalArgumentException e ) { }
+  }
+
+  // Records racing with interval resets lose nothing
+  public void testConcurrentRecord() throws InterruptedException {
+    final int THRDS = 8;
+    final int ITERS = 100000;
+    Thread ts[] = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int off = t;
+      ts[t] = new Thread() { public void run() {
+        for( int i=0; i<ITERS; i++ )
+          _h.record((i*31+off)&1023);
+      } };
+    }
+    for( Thread t : ts ) t.start();
+    long drained = 0;
+    boolean alive = true;
+    while( alive ) {
+      drained += _h.snapshotThenReset().count();
+      alive = false;
+      for( Thread t : ts ) alive |= t.isAlive();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( drained + _h.count(), is((long)THRDS*ITERS) );
+  }
+}
@@ -1,5 +1,6 @@
 package org.cliffc.high_scale_lib;
 
+import com.boundary.high_scale_lib.NonBlockingHashSetLongTest;
 import junit.framework.Test;
 import junit.framework.TestSuite;
 
@@ -15,6 +16,16 @@ public class HighScaleLibTestSuite extends TestSuite {
     suite.addTest(new TestSuite(NonBlockingHashMapTest.class));
     suite.addTest(new TestSuite(NonBlockingIdentityHashMapTest.class));
     suite.addTest(new TestSuite(NonBlockingHashMapLongTest.class));
+    suite.addTest(new TestSuite(NonBlockingHashMapLongLongTest.class));
+    suite.addTest(new TestSuite(NonBlockingHashMapIntTest.class));
+    suite.addTest(new TestSuite(NonBlockingHashSetLongTest.class));
+    suite.addTest(new TestSuite(ConcurrentAutoTableTest.class));
+    suite.addTest(new TestSuite(ConcurrentHistogramTest.class));
+    suite.addTest(new TestSuite(StripedReadWriteLockTest.class));
+    suite.addTest(new TestSuite(ConcurrentFrequencyMapTest.class));
+    suite.addTest(new TestSuite(NonBlockingCacheTest.class));
+    suite.addTest(new TestSuite(NonBlockingExpiringMapTest.class));
+    suite.addTest(new TestSuite(NonBlockingWeakHashMapTest.class));
     return suite;
   }
 }
@@ -0,0 +1,109 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingCache via JUnit
+public class NonBlockingCacheTest extends TestCase {
+
+  private NonBlockingCache<String,String> _cache;
+  protected void setUp   () { _cache = new NonBlockingCache<String,String>(100); }
+  protected void tearDown() { _cache = null; }
+
+  // Test some basic stuff; cache a few keys, remove a few keys
+  public void testBasic() {
+    assertTrue ( _cache.isEmpty() );
+    assertThat ( _cache.get("k1"), nullValue() );
+    assertThat ( _cache.put("k1","v1"), nullValue() );
+    assertThat ( _cache.get("k1"), is("v1") );
+    assertThat ( _cache.put("k1","v1a"), is("v1") );
+    assertThat ( _cache.putIfAbsent("k1","v1b"), is("v1a") );
+    assertThat ( _cache.putIfAbsent("k2","v2"), nullValue() );
+    assertThat ( _cache.size(), is(2) );
+    assertThat ( _cache.weight(), is(2L) );
+    assertThat ( _cache.peek("k2"), is("v2") );
+    assertThat ( _cache.remove("k1"), is("v1a") );
+    assertThat ( _cache.remove("k1"), nullValue() );
+    assertFalse( _cache.containsKey("k1") );
+    assertThat ( _cache.weight(), is(1L) );
+    assertThat ( _cache.hits(), is(1L) );
+    assertThat ( _cache.misses(), is(1L) );
+    assertThat ( _cache.evictions(), is(0L) );
+    try { _cache.put("k3",null); fail(); } catch( NullPointerException e ) { }
+    _cache.clear();
+    assertTrue ( _cache.isEmpty() );
+    assertThat ( _cache.weight(), is(0L) );
+  }
+
+  // Filling past the maximum evicts, and recently read entries survive
+  public void testEviction() {
+    for( int i=0; i<100; i++ )
+      _cache.put("k"+i,"v"+i);
+    assertThat( _cache.evictions(), is(0L) );
+    for( int i=0; i<10; i++ )   // Hot keys
+      assertThat( _cache.get("k"+i), is("v"+i) );
+    for( int i=100; i<1000; i++ ) {
+      _cache.put("k"+i,"v"+i);
+      for( int j=0; j<10; j++ ) // Keep them hot
+        assertThat( _cache.get("k"+j), is("v"+j) );
+      assertTrue( _cache.weight() <= 100 );
+    }
+    assertThat( _cache.size(), is(100) );
+    assertThat( _cache.evictions(), is(900L) );
+  }
+
+  // A weigher bounds the total weight, not the entry count
+  public void testWeigher() {
+    NonBlockingCache<Integer,String> c = new NonBlockingCache<Integer,String>(1000, (k,v) -> v.length());
+    for( int i=0; i<100; i++ )
+      c.put(i,"0123456789012345678901234567890123456789"); // 40 each
+    assertTrue( c.weight() <= 1000 );
+    assertThat( c.size(), is(25) );
+    c.put(0,"x");
+    assertTrue( c.weight() <= 1000 );
+    try { new NonBlockingCache<Integer,String>(10, (k,v) -> -1).put(1,"v"); fail(); }
+    catch( IllegalArgumentException e ) { }
+  }
+
+  // Loads on miss, then hits
+  public void testComputeIfAbsent() {
+    final AtomicInteger loads = new AtomicInteger();
+    for( int j=0; j<3; j++ )
+      for( int i=0; i<10; i++ )
+        assertThat( _cache.computeIfAbsent("k"+i, k -> { loads.incrementAndGet(); return "v"+k; }), is("vk"+i) );
+    assertThat( loads.get(), is(10) );
+    assertThat( _cache.computeIfAbsent("none", k -> null), nullValue() );
+    assertFalse( _cache.containsKey("none") );
+    assertThat( _cache.hits(), is(20L) );
+  }
+
+  // Racing writers keep the weight near the maximum and the accounts exact
+  public void testConcurrent() throws InterruptedException {
+    final NonBlockingCache<Integer,Integer> c = new NonBlockingCache<Integer,Integer>(1000);
+    final int THREADS = 4, OPS = 20000;
+    Thread[] ts = new Thread[THREADS];
+    for( int t=0; t<THREADS; t++ ) {
+      final int seed = t;
+      ts[t] = new Thread() { public void run() {
+        for( int i=0; i<OPS; i++ ) {
+          final int k = (i*31+seed*7919) % 5000;
+          if( c.get(k) == null ) c.put(k,k);
+          if( (i&15) == 0 ) c.remove(k+1);
+        }
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertTrue( ""+c, c.weight() <= 1000 );
+    assertThat( c.weight(), is((long)c.size()) );
+    assertThat( c.hits()+c.misses(), is((long)THREADS*OPS) );
+    assertTrue( c.evictions() > 0 );
+  }
+}
@@ -0,0 +1,80 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingExpiringMap via JUnit
+public class NonBlockingExpiringMapTest extends TestCase {
+
+  private NonBlockingExpiringMap<String,String> _map;
+  protected void setUp   () { _map = new NonBlockingExpiringMap<String,String>(1,TimeUnit.HOURS); }
+  protected void tearDown() { _map = null; }
+
+  // Test some basic stuff; add a few keys, remove a few keys
+  public void testBasic() {
+    assertTrue ( _map.isEmpty() );
+    assertThat ( _map.put("k1","v1"), nullValue() );
+    assertThat ( _map.put("k1","v1a"), is("v1") );
+    assertThat ( _map.putIfAbsent("k1","v1b"), is("v1a") );
+    assertThat ( _map.putIfAbsent("k2","v2"), nullValue() );
+    assertThat ( _map.size(), is(2) );
+    assertThat ( _map.get("k1"), is("v1a") );
+    assertTrue ( _map.containsKey("k2") );
+    assertTrue ( _map.remainingNanos("k2") > TimeUnit.MINUTES.toNanos(59) );
+    assertThat ( _map.remainingNanos("k3"), is(-1L) );
+    assertThat ( _map.remove("k1"), is("v1a") );
+    assertThat ( _map.remove("k1"), nullValue() );
+    assertThat ( _map.get("k1"), nullValue() );
+    try { _map.put("k3",null); fail(); } catch( NullPointerException e ) { }
+    _map.clear();
+    assertTrue ( _map.isEmpty() );
+    assertThat ( _map.expirations(), is(0L) );
+  }
+
+  // Expired entries read as absent, and reads reclaim them
+  public void testExpiry() throws InterruptedException {
+    _map.put("short","v",10,TimeUnit.MILLISECONDS);
+    _map.put("long","v");
+    assertThat( _map.get("short"), is("v") );
+    Thread.sleep(30);
+    assertThat( _map.remainingNanos("short"), is(-1L) );
+    assertThat( _map.size(), is(2) );
+    assertThat( _map.get("short"), nullValue() );
+    assertThat( _map.size(), is(1) );
+    assertThat( _map.expirations(), is(1L) );
+    assertThat( _map.get("long"), is("v") );
+
+    // An expired mapping is absent to writes too
+    _map.put("short","v",1,TimeUnit.NANOSECONDS);
+    Thread.sleep(1);
+    assertThat( _map.putIfAbsent("short","w"), nullValue() );
+    assertThat( _map.get("short"), is("w") );
+    _map.put("gone","v",1,TimeUnit.NANOSECONDS);
+    Thread.sleep(1);
+    assertThat( _map.put("gone","w"), nullValue() );
+    _map.put("gone","v",1,TimeUnit.NANOSECONDS);
+    Thread.sleep(1);
+    assertThat( _map.remove("gone"), nullValue() );
+  }
+
+  // Writes sweep out expired entries nobody reads; purge gets the rest
+  public void testReaping() throws InterruptedException {
+    final int CNT = 1000;
+    for( int i=0; i<CNT; i++ )
+      _map.put("k"+i,"v",10,TimeUnit.MILLISECONDS);
+    Thread.sleep(30);
+    for( int i=0; i<CNT/2; i++ )
+      _map.put("fresh"+i,"v");
+    assertTrue( "reaped "+_map.expirations(), _map.expirations() > CNT/2 );
+    assertThat( (long)_map.purge() + _map.expirations(), is((long)CNT) );
+    assertThat( _map.size(), is(CNT/2) );
+    assertThat( _map.purge(), is(0) );
+  }
+}
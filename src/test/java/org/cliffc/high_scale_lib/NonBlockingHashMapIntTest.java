@@ -0,0 +1,202 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.Map.Entry;
+import com.boundary.high_scale_lib.NonBlockingHashSetInt;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingHashMapInt via JUnit
+public class NonBlockingHashMapIntTest extends TestCase {
+
+  private NonBlockingHashMapInt<String> _nbhmi;
+  protected void setUp   () { _nbhmi = new NonBlockingHashMapInt<String>(); }
+  protected void tearDown() { _nbhmi = null; }
+
+  // Test some basic stuff; add a few keys, remove a few keys
+  public void testBasic() {
+    assertTrue ( _nbhmi.isEmpty() );
+    assertThat ( _nbhmi.put(1,"v1"), nullValue() );
+    checkSizes (1);
+    assertThat ( _nbhmi.putIfAbsent(2,"v2"), nullValue() );
+    checkSizes (2);
+    assertTrue ( _nbhmi.containsKey(2) );
+    assertThat ( _nbhmi.put(1,"v1a"), is("v1") );
+    assertThat ( _nbhmi.put(2,"v2a"), is("v2") );
+    checkSizes (2);
+    assertThat ( _nbhmi.putIfAbsent(2,"v2b"), is("v2a") );
+    assertThat ( _nbhmi.remove(1), is("v1a") );
+    assertFalse( _nbhmi.containsKey(1) );
+    checkSizes (1);
+    assertThat ( _nbhmi.remove(1), nullValue() );
+    assertThat ( _nbhmi.remove(2), is("v2a") );
+    checkSizes (0);
+    assertThat ( _nbhmi.remove(2), nullValue() );
+    assertThat ( _nbhmi.remove("k3"), nullValue() );
+    assertThat ( _nbhmi.remove(3L), nullValue() );
+    assertTrue ( _nbhmi.isEmpty() );
+
+    assertThat ( _nbhmi.put(0,"v0"), nullValue() );
+    assertTrue ( _nbhmi.containsKey(0) );
+    checkSizes (1);
+    assertThat ( _nbhmi.remove(0), is("v0") );
+    assertFalse( _nbhmi.containsKey(0) );
+    checkSizes (0);
+
+    assertThat ( _nbhmi.replace(-1,"v1"), nullValue() );
+    assertFalse( _nbhmi.containsKey(-1) );
+    assertThat ( _nbhmi.put(-1,"v1"), nullValue() );
+    assertEquals(_nbhmi.replace(-1,"v1a"), "v1" );
+    assertEquals(_nbhmi.get(-1), "v1a" );
+    assertThat ( _nbhmi.remove(-1), is("v1a") );
+    assertFalse( _nbhmi.containsKey(-1) );
+    checkSizes (0);
+  }
+
+  // Check all iterators for correct size counts
+  private void checkSizes(int expectedSize) {
+    assertEquals( "size()", _nbhmi.size(), expectedSize );
+    Collection<String> vals = _nbhmi.values();
+    checkSizes("values()",vals.size(),vals.iterator(),expectedSize);
+    Set<Integer> keys = _nbhmi.keySet();
+    checkSizes("keySet()",keys.size(),keys.iterator(),expectedSize);
+    Set<Entry<Integer,String>> ents = _nbhmi.entrySet();
+    checkSizes("entrySet()",ents.size(),ents.iterator(),expectedSize);
+  }
+
+  // Check that the iterator iterates the correct number of times
+  private void checkSizes(String msg, int sz, Iterator it, int expectedSize) {
+    assertEquals( msg, expectedSize, sz );
+    int result = 0;
+    while (it.hasNext()) {
+      result++;
+      it.next();
+    }
+    assertEquals( msg, expectedSize, result );
+  }
+
+  public void testIterationBig() {
+    final int CNT = 10000;
+    assertThat( _nbhmi.size(), is(0) );
+    for( int i=0; i<CNT; i++ )
+      _nbhmi.put(i,"v"+i);
+    assertThat( _nbhmi.size(), is(CNT) );
+
+    int sz =0;
+    int sum = 0;
+    for( NonBlockingHashMapInt<String>.IteratorInt it = _nbhmi.new IteratorInt(); it.hasNext(); ) {
+      int x = it.nextInt();
+      sz++;
+      sum += x;
+      assertTrue(x>=0 && x<=(CNT-1));
+      assertThat( _nbhmi.get(x), is("v"+x) );
+    }
+    assertThat("Found 10000 ints",sz,is(CNT));
+    assertThat("Found all integers in list",sum,is(CNT*(CNT-1)/2));
+
+    assertThat( "can remove 3", _nbhmi.remove(3), is("v3") );
+    assertThat( "can remove 4", _nbhmi.remove(4), is("v4") );
+    sz =0;
+    sum = 0;
+    for( int x : _nbhmi.keySet() ) {
+      sz++;
+      sum += x;
+    }
+    assertThat("Found "+(CNT-2)+" ints",sz,is(CNT-2));
+    assertThat("Found all integers in list",sum,is(CNT*(CNT-1)/2 - (3+4)));
+  }
+
+  // Key 0 lives outside the table; the iterator must still remove it
+  public void testIteratorRemoveKeyZero() {
+    _nbhmi.put(0,"v0");
+    _nbhmi.put(7,"v7");
+    for( Iterator<Integer> it = _nbhmi.keySet().iterator(); it.hasNext(); ) {
+      it.next();
+      it.remove();
+    }
+    assertFalse( _nbhmi.containsKey(0) );
+    assertFalse( _nbhmi.containsKey(7) );
+    checkSizes (0);
+
+    NonBlockingHashSetInt set = new NonBlockingHashSetInt();
+    set.add(0);
+    set.add(7);
+    NonBlockingHashSetInt none = new NonBlockingHashSetInt();
+    assertTrue ( set.retainAll(none) );
+    assertTrue ( set.isEmpty() );
+  }
+
+  // Do some simple concurrent testing
+  public void testConcurrentSimple() throws InterruptedException {
+    final NonBlockingHashMapInt<String> nbhmi = new NonBlockingHashMapInt<String>();
+
+    // In 2 threads, add & remove even & odd elements concurrently
+    final int num_thrds = 2;
+    Thread ts[] = new Thread[num_thrds];
+    for( int i=1; i<num_thrds; i++ ) {
+      final int x = i;
+      ts[i] = new Thread() { public void run() { work_helper(nbhmi,x,num_thrds); } };
+    }
+    for( int i=1; i<num_thrds; i++ )
+      ts[i].start();
+    work_helper(nbhmi,0,num_thrds);
+    for( int i=1; i<num_thrds; i++ )
+      ts[i].join();
+
+    // In the end, all members should be removed
+    assertThat( "concurrent size=0", nbhmi.size(), is(0) );
+    assertFalse( nbhmi.keySet().iterator().hasNext() );
+  }
+
+  void work_helper(NonBlockingHashMapInt<String> nbhmi, int d, int num_thrds) {
+    String thrd = "T"+d;
+    final int ITERS = 20000;
+    for( int j=0; j<10; j++ ) {
+      for( int i=d; i<ITERS; i+=num_thrds )
+        assertThat( "key "+i+" not in there, so putIfAbsent must work",
+                    nbhmi.putIfAbsent(i,thrd), is((String)null) );
+      for( int i=d; i<ITERS; i+=num_thrds )
+        assertTrue( nbhmi.remove(i,thrd) );
+    }
+  }
+
+  public void testSerial() throws IOException, ClassNotFoundException {
+    assertThat ( _nbhmi.put(0x12345678,"v1"), nullValue() );
+    assertThat ( _nbhmi.put(0x87654321,"v2"), nullValue() );
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(_nbhmi);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    NonBlockingHashMapInt nbhmi = (NonBlockingHashMapInt)in.readObject();
+    in.close();
+    assertEquals(_nbhmi.toString(),nbhmi.toString());
+  }
+
+  // The Set wrapper; sparse and negative members are fine
+  public void testHashSetInt() {
+    NonBlockingHashSetInt set = new NonBlockingHashSetInt();
+    assertTrue ( set.add(-5) );
+    assertTrue ( set.add(1<<30) );
+    assertFalse( set.add(-5) );
+    assertTrue ( set.contains(1<<30) );
+    assertTrue ( set.contains(Integer.valueOf(-5)) );
+    assertFalse( set.contains(-4L) );
+    assertThat ( set.size(), is(2) );
+    int sum = 0;
+    for( IntIterator it = set.intIterator(); it.hasNext(); )
+      sum += it.next();
+    assertThat ( sum, is((1<<30)-5) );
+    assertTrue ( set.remove(-5) );
+    assertFalse( set.remove(-5) );
+    assertThat ( set.toString(), is("["+(1<<30)+"]") );
+  }
+}
@@ -0,0 +1,180 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingHashMapLongLong via JUnit
+public class NonBlockingHashMapLongLongTest extends TestCase {
+  private static final long NO_VALUE = NonBlockingHashMapLongLong.NO_VALUE;
+
+  private NonBlockingHashMapLongLong _nbhmll;
+  protected void setUp   () { _nbhmll = new NonBlockingHashMapLongLong(); }
+  protected void tearDown() { _nbhmll = null; }
+
+  // Test some basic stuff; add a few keys, remove a few keys
+  public void testBasic() {
+    assertTrue ( _nbhmll.isEmpty() );
+    assertThat ( _nbhmll.put(1,10), is(NO_VALUE) );
+    checkSizes (1);
+    assertThat ( _nbhmll.putIfAbsent(2,20), is(NO_VALUE) );
+    checkSizes (2);
+    assertTrue ( _nbhmll.containsKey(2) );
+    assertThat ( _nbhmll.put(1,11), is(10L) );
+    assertThat ( _nbhmll.put(2,21), is(20L) );
+    checkSizes (2);
+    assertThat ( _nbhmll.putIfAbsent(2,22), is(21L) );
+    assertThat ( _nbhmll.remove(1), is(11L) );
+    assertFalse( _nbhmll.containsKey(1) );
+    checkSizes (1);
+    assertThat ( _nbhmll.remove(1), is(NO_VALUE) );
+    assertFalse( _nbhmll.remove(2,20) );
+    assertTrue ( _nbhmll.remove(2,21) );
+    checkSizes (0);
+    assertTrue ( _nbhmll.isEmpty() );
+
+    // Value zero is a real value, and key zero is a real key
+    assertThat ( _nbhmll.put(0,0), is(NO_VALUE) );
+    assertTrue ( _nbhmll.containsKey(0) );
+    assertThat ( _nbhmll.get(0), is(0L) );
+    checkSizes (1);
+    assertThat ( _nbhmll.replace(0,5), is(0L) );
+    assertFalse( _nbhmll.replace(0,4,6) );
+    assertTrue ( _nbhmll.replace(0,5,6) );
+    assertThat ( _nbhmll.remove(0), is(6L) );
+    assertFalse( _nbhmll.containsKey(0) );
+    assertThat ( _nbhmll.replace(0,1), is(NO_VALUE) );
+    assertFalse( _nbhmll.containsKey(0) );
+    checkSizes (0);
+
+    assertThat ( _nbhmll.replace(1,1), is(NO_VALUE) );
+    assertFalse( _nbhmll.containsKey(1) );
+    assertThat ( _nbhmll.getOrDefault(1,-7), is(-7L) );
+    assertThat ( _nbhmll.replace(5,1), is(NO_VALUE) );
+    assertFalse( _nbhmll.replace(6,1,2) );
+    checkSizes (0);
+  }
+
+  // The extremes of the value range round-trip; just past them is refused
+  public void testValueRange() {
+    final long lo = NonBlockingHashMapLongLong.MIN_VALUE+1;
+    final long hi = NonBlockingHashMapLongLong.MAX_VALUE-1;
+    _nbhmll.put(1,lo);
+    _nbhmll.put(2,hi);
+    _nbhmll.put(3,-1);
+    assertThat( _nbhmll.get(1), is(lo) );
+    assertThat( _nbhmll.get(2), is(hi) );
+    assertThat( _nbhmll.get(3), is(-1L) );
+    try { _nbhmll.put(4,hi+1); fail(); } catch( IllegalArgumentException e ) { }
+    try { _nbhmll.put(4,NO_VALUE); fail(); } catch( IllegalArgumentException e ) { }
+    try { _nbhmll.addAndGet(2,1); fail(); } catch( IllegalArgumentException e ) { }
+    assertThat( _nbhmll.get(2), is(hi) );
+    assertFalse( _nbhmll.containsKey(4) );
+    assertFalse( _nbhmll.containsValue(NO_VALUE) );
+    assertTrue ( _nbhmll.containsValue(lo) );
+  }
+
+  // Check the iterator for correct size counts
+  private void checkSizes(int expectedSize) {
+    assertEquals( "size()", _nbhmll.size(), expectedSize );
+    int result = 0;
+    for( LongIterator it = _nbhmll.keys(); it.hasNext(); ) {
+      result++;
+      it.nextLong();
+    }
+    assertEquals( "keys()", expectedSize, result );
+  }
+
+  public void testIterationBig() {
+    final int CNT = 10000;
+    assertThat( _nbhmll.size(), is(0) );
+    for( int i=0; i<CNT; i++ )
+      _nbhmll.put(i,i*3);
+    assertThat( _nbhmll.size(), is(CNT) );
+
+    int sz =0;
+    long sum = 0;
+    for( NonBlockingHashMapLongLong.IteratorLong it = _nbhmll.keys(); it.hasNext(); ) {
+      long x = it.nextLong();
+      sz++;
+      sum += x;
+      assertThat( it.value(), is(x*3) );
+    }
+    assertThat("Found 10000 ints",sz,is(CNT));
+    assertThat("Found all integers in list",sum,is((long)CNT*(CNT-1)/2));
+
+    assertThat( "can remove 3", _nbhmll.remove(3), is(9L) );
+    for( NonBlockingHashMapLongLong.IteratorLong it = _nbhmll.keys(); it.hasNext(); )
+      if( it.nextLong() == 4 ) it.remove();
+    assertFalse( _nbhmll.containsKey(4) );
+    assertThat( _nbhmll.size(), is(CNT-2) );
+  }
+
+  // Key 0 lives outside the table; the iterator must still remove it
+  public void testIteratorRemoveKeyZero() {
+    _nbhmll.put(0,3);
+    _nbhmll.put(7,4);
+    for( NonBlockingHashMapLongLong.IteratorLong it = _nbhmll.keys(); it.hasNext(); ) {
+      it.nextLong();
+      it.remove();
+    }
+    assertFalse( _nbhmll.containsKey(0) );
+    assertFalse( _nbhmll.containsKey(7) );
+    checkSizes(0);
+  }
+
+  public void testAddAndGet() {
+    assertThat( _nbhmll.addAndGet(7,5), is(5L) );
+    assertThat( _nbhmll.addAndGet(7,-8), is(-3L) );
+    assertThat( _nbhmll.addAndGet(0,2), is(2L) );
+    assertThat( _nbhmll.addAndGet(0,2), is(4L) );
+    assertThat( _nbhmll.get(7), is(-3L) );
+    checkSizes(2);
+  }
+
+  // Many threads bump a shared set of counters, forcing resizes as they go
+  public void testConcurrentAddAndGet() throws InterruptedException {
+    final int THRDS = 4;
+    final int KEYS = 5000;
+    final int ROUNDS = 20;
+    Thread ts[] = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int off = t;
+      ts[t] = new Thread() { public void run() {
+        for( int r=0; r<ROUNDS; r++ )
+          for( int i=0; i<KEYS; i++ )
+            _nbhmll.addAndGet((i+off*7)%KEYS,1);
+      } };
+    }
+    for( Thread t : ts ) t.start();
+    for( Thread t : ts ) t.join();
+    assertThat( _nbhmll.size(), is(KEYS) );
+    for( int i=0; i<KEYS; i++ )
+      assertThat( "key "+i, _nbhmll.get(i), is((long)THRDS*ROUNDS) );
+  }
+
+  public void testSerial() throws IOException, ClassNotFoundException {
+    assertThat ( _nbhmll.put(0x12345678L,1), is(NO_VALUE) );
+    assertThat ( _nbhmll.put(0x87654321L,-2), is(NO_VALUE) );
+    assertThat ( _nbhmll.put(0,3), is(NO_VALUE) );
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(_nbhmll);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    NonBlockingHashMapLongLong nbhmll = (NonBlockingHashMapLongLong)in.readObject();
+    in.close();
+    assertThat( nbhmll.size(), is(3) );
+    assertThat( nbhmll.get(0x87654321L), is(-2L) );
+    assertThat( nbhmll.get(0), is(3L) );
+    assertThat( nbhmll.addAndGet(0x12345678L,1), is(2L) );
+  }
+}
@@ -505,6 +505,25 @@ public class NonBlockingHashMapLongTest extends TestCase {
     assertEquals("values().iterator() count", itemCount, iteratorCount);
   }
 
+  public void testImmutable() {
+    _nbhml.put(0,"v0");
+    for( int i=1; i<1000; i++ )
+      _nbhml.put(i,"v"+i);
+    _nbhml.immutable();
+    assertThat( _nbhml.size(), is(1000) );
+    assertThat( _nbhml.get(0), is("v0") );
+    assertThat( _nbhml.get(999), is("v999") );
+    assertTrue ( _nbhml.containsValue("v0") );
+    try { _nbhml.put(0,"x");     fail(); } catch( IllegalStateException e ) { }
+    try { _nbhml.put(5,"x");     fail(); } catch( IllegalStateException e ) { }
+    try { _nbhml.put(5000,"x");  fail(); } catch( IllegalStateException e ) { }
+    try { _nbhml.remove(6);      fail(); } catch( IllegalStateException e ) { }
+    try { _nbhml.clear();        fail(); } catch( IllegalStateException e ) { }
+    assertThat( _nbhml.get(5), is("v5") );
+    assertFalse( _nbhml.containsKey(5000) );
+    checkSizes(1000);
+  }
+
   public void testLongIterator() {
     NonBlockingHashMapLong<String> map = new NonBlockingHashMapLong<String>();
     map.put(1L, "abc");
@@ -518,4 +537,21 @@ public class NonBlockingHashMapLongTest extends TestCase {
     assertEquals(Arrays.asList(1L, 2L), keys);
   }
 
+  // Resize statistics are off until asked for, then see every resize
+  public void testResizeStats() {
+    NonBlockingHashMapLong<String> map = new NonBlockingHashMapLong<String>();
+    assertThat( map.resizeStats(), nullValue() );
+    ResizeStats stats = map.enableResizeStats();
+    assertSame( stats, map.enableResizeStats() );
+    for( long i=1; i<=10000; i++ ) // Key 0 lives outside the table
+      map.put(i,"v"+i);
+    for( long i=1; i<=10000; i++ )
+      assertThat( map.get(i), is("v"+i) );
+    assertTrue( stats.resizes() > 0 );
+    assertTrue( stats.promotions() > 0 );
+    assertTrue( stats.lastNewSize() > stats.lastOldSize() );
+    assertTrue( stats.reprobes().count() >= 20000 );
+    assertTrue( stats.copyNanos().count() > 0 );
+  }
+
 }
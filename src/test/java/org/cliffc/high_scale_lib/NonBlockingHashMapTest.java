@@ -9,6 +9,7 @@ import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import junit.framework.TestCase;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
@@ -100,6 +101,61 @@ public class NonBlockingHashMapTest extends TestCase {
     map.get(33);  // this causes a NPE
   }
 
+  // Test the compute family; computeIfAbsent, computeIfPresent, compute, merge
+  public void testCompute() {
+    assertThat ( _nbhm.computeIfAbsent("k1", k -> "v1"), is("v1") );
+    assertThat ( _nbhm.computeIfAbsent("k1", k -> { throw new AssertionError("mapped keys do not compute"); }), is("v1") );
+    assertThat ( _nbhm.computeIfAbsent("k2", k -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    checkSizes (1);
+
+    assertThat ( _nbhm.computeIfPresent("k2", (k,v) -> "v2"), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    assertThat ( _nbhm.computeIfPresent("k1", (k,v) -> v+"a"), is("v1a") );
+    assertThat ( _nbhm.get("k1"), is("v1a") );
+    assertThat ( _nbhm.computeIfPresent("k1", (k,v) -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k1") );
+    checkSizes (0);
+
+    assertThat ( _nbhm.compute("k1", (k,v) -> v == null ? "v1" : v+"a"), is("v1") );
+    assertThat ( _nbhm.compute("k1", (k,v) -> v == null ? "v1" : v+"a"), is("v1a") );
+    assertThat ( _nbhm.compute("k2", (k,v) -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    checkSizes (1);
+    assertThat ( _nbhm.compute("k1", (k,v) -> null), nullValue() );
+    checkSizes (0);
+
+    assertThat ( _nbhm.merge("k1", "v1", (a,b) -> a+b), is("v1") );
+    assertThat ( _nbhm.merge("k1", "v1", (a,b) -> a+b), is("v1v1") );
+    checkSizes (1);
+    assertThat ( _nbhm.merge("k1", "v1", (a,b) -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k1") );
+    checkSizes (0);
+  }
+
+  // Racing merges must not lose any counts, even across table resizes
+  public void testConcurrentMerge() throws InterruptedException {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int THREADS = 4, KEYS = 1000, ITERS = 20;
+    Thread[] ts = new Thread[THREADS];
+    for( int t=0; t<THREADS; t++ ) {
+      ts[t] = new Thread() { public void run() {
+        for( int j=0; j<ITERS; j++ )
+          for( int i=0; i<KEYS; i++ ) {
+            nbhm.merge(i,1,Integer::sum);
+            nbhm.computeIfAbsent(-1-i, k -> k);
+          }
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhm.size(), is(KEYS*2) );
+    for( int i=0; i<KEYS; i++ ) {
+      assertThat( nbhm.get(i), is(THREADS*ITERS) );
+      assertThat( nbhm.get(-1-i), is(-1-i) );
+    }
+  }
+
   // Check all iterators for correct size counts
   private void checkSizes(int expectedSize) {
     assertEquals( "size()", _nbhm.size(), expectedSize );
@@ -235,6 +291,170 @@ public class NonBlockingHashMapTest extends TestCase {
     assertThat("Found all integers in list",sum,is(CNT*(CNT-1)/2 - (3+4)));
   }
 
+  // Spliterators split the table and see every element exactly once
+  public void testSpliterator() {
+    final int CNT = 100000;
+    NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    for( int i=0; i<CNT; i++ )
+      nbhm.put(i,i);
+    for( int i=0; i<CNT; i+=3 )
+      nbhm.remove(i);
+    final long sum = (long)CNT*(CNT-1)/2 - 3L*(CNT/3+1)*(CNT/3)/2;
+    final long cnt = CNT - (CNT/3+1);
+    assertThat( nbhm.keySet().parallelStream().mapToLong(Integer::longValue).sum(), is(sum) );
+    assertThat( nbhm.values().parallelStream().mapToLong(Integer::longValue).sum(), is(sum) );
+    assertThat( nbhm.entrySet().parallelStream().filter(e -> e.getKey().equals(e.getValue())).count(), is(cnt) );
+    assertThat( nbhm.keySet().stream().distinct().count(), is(cnt) );
+
+    Spliterator<Integer> s0 = nbhm.keySet().spliterator();
+    Spliterator<Integer> s1 = s0.trySplit();
+    assertNotNull( s1 );
+    final long[] seen = new long[1];
+    s0.forEachRemaining(k -> seen[0]++);
+    while( s1.tryAdvance(k -> seen[0]++) ) ;
+    assertThat( seen[0], is(cnt) );
+  }
+
+  // Spliterators racing a table-copy see only user values, never a Prime
+  public void testSpliteratorDuringCopy() throws InterruptedException {
+    final int CNT = 20000;
+    for( int round=0; round<5; round++ ) {
+      final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+      for( int i=0; i<CNT; i++ )
+        nbhm.put(i,i);
+      Thread grower = new Thread() { public void run() {
+        for( int i=CNT; i<CNT*8; i++ ) nbhm.put(i,i); // Several resizes
+      } };
+      grower.start();
+      while( grower.isAlive() ) {
+        final Spliterator<Integer> s = nbhm.values().spliterator();
+        s.forEachRemaining(v -> assertTrue( ((Object)v) instanceof Integer ));
+      }
+      grower.join();
+    }
+  }
+
+  // Parallel bulk operations, with both sequential & parallel thresholds
+  public void testBulkOps() {
+    final int CNT = 100000;
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    for( int i=0; i<CNT; i++ )
+      nbhm.put(i,i*2);
+    final long sum = (long)CNT*(CNT-1);
+    for( long threshold : new long[]{ 1, 1000, Long.MAX_VALUE } ) {
+      final AtomicLong acc = new AtomicLong();
+      nbhm.forEach(threshold, (k,v) -> acc.addAndGet(v));
+      assertThat( acc.get(), is(sum) );
+      assertThat( nbhm.reduce(threshold, (k,v) -> (long)v, Long::sum), is(sum) );
+      assertThat( nbhm.reduce(threshold, (k,v) -> k < 10 ? (long)v : null, Long::sum), is(90L) );
+      assertThat( nbhm.search(threshold, (k,v) -> k == 12345 ? v : null), is(24690) );
+      assertThat( nbhm.search(threshold, (k,v) -> k < 0 ? v : null), nullValue() );
+    }
+    final AtomicLong acc = new AtomicLong();
+    nbhm.forEach((k,v) -> acc.addAndGet(k));
+    assertThat( acc.get(), is(sum/2) );
+    assertThat( new NonBlockingHashMap<Integer,Integer>().reduce(1, (k,v) -> v, Integer::sum), nullValue() );
+  }
+
+  // Mass deletion then compact shrinks the table, and keeps the survivors
+  public void testCompact() {
+    final int CNT = 100000;
+    NonBlockingHashMap<Integer,String> nbhm = new NonBlockingHashMap<Integer,String>();
+    for( int i=0; i<CNT; i++ )
+      nbhm.put(i,"v"+i);
+    final int big = nbhm.capacity();
+    for( int i=0; i<CNT; i++ )
+      if( (i%1000) != 0 )
+        nbhm.remove(i);
+    assertThat( nbhm.size(), is(CNT/1000) );
+    nbhm.compact();
+    assertTrue( "table shrank from "+big+" to "+nbhm.capacity(), nbhm.capacity() < big/64 );
+    assertThat( nbhm.size(), is(CNT/1000) );
+    for( int i=0; i<CNT; i+=1000 )
+      assertThat( nbhm.get(i), is("v"+i) );
+    assertThat( nbhm.get(1), nullValue() );
+    // Still a working table afterwards
+    for( int i=0; i<CNT; i++ )
+      nbhm.putIfAbsent(i,"w"+i);
+    assertThat( nbhm.size(), is(CNT) );
+    assertThat( nbhm.get(1000), is("v1000") );
+    assertThat( nbhm.get(1001), is("w1001") );
+
+    nbhm.clear();
+    nbhm.compact();
+    assertTrue( nbhm.isEmpty() );
+
+    // A dense table is not grown
+    NonBlockingHashMap<Integer,String> small = new NonBlockingHashMap<Integer,String>();
+    for( int i=0; i<10; i++ )
+      small.put(i,"v"+i);
+    final int cap = small.capacity();
+    small.compact();
+    assertTrue( "table grew from "+cap+" to "+small.capacity(), small.capacity() <= cap );
+    assertThat( small.size(), is(10) );
+  }
+
+  // A hashing strategy keys on arrays and sequences by content, across resizes
+  public void testHashingStrategy() throws Exception {
+    final int CNT = 10000;
+    NonBlockingHashMap<byte[],Integer> bytes = new NonBlockingHashMap<byte[],Integer>(HashingStrategy.Standard.BYTE_ARRAY);
+    assertSame( bytes.hashingStrategy(), HashingStrategy.Standard.BYTE_ARRAY );
+    for( int i=0; i<CNT; i++ )
+      assertThat( bytes.put(("k"+i).getBytes("UTF-8"),i), nullValue() );
+    assertThat( bytes.size(), is(CNT) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( bytes.get(("k"+i).getBytes("UTF-8")), is(i) ); // Fresh array, same bytes
+    assertThat( bytes.put("k7".getBytes("UTF-8"),-7), is(7) );
+    assertThat( bytes.remove("k8".getBytes("UTF-8")), is(8) );
+    assertFalse( bytes.containsKey("k8".getBytes("UTF-8")) );
+    assertThat( bytes.size(), is(CNT-1) );
+    try { bytes.get(null); fail(); } catch( NullPointerException e ) { }
+
+    // Any CharSequence finds any other with the same characters
+    NonBlockingHashMap<CharSequence,String> chars = new NonBlockingHashMap<CharSequence,String>(HashingStrategy.Standard.CHAR_SEQUENCE);
+    chars.put("abc","v1");
+    assertThat( chars.get(new StringBuilder("abc")), is("v1") );
+    assertThat( chars.get(java.nio.CharBuffer.wrap("xxabcxx",2,5)), is("v1") );
+    assertThat( chars.putIfAbsent(new StringBuilder("abc"),"v2"), is("v1") );
+    assertThat( chars.get("abd"), nullValue() );
+
+    NonBlockingHashMap<String,String> ids = new NonBlockingHashMap<String,String>(HashingStrategy.Standard.IDENTITY);
+    final String k1 = new String("k"), k2 = new String("k");
+    ids.put(k1,"v1");
+    ids.put(k2,"v2");
+    assertThat( ids.size(), is(2) );
+    assertThat( ids.get(k1), is("v1") );
+    assertThat( ids.get("k"), nullValue() );
+
+    // The strategy survives serialization
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(bytes);
+    out.close();
+    NonBlockingHashMap<byte[],Integer> copy = (NonBlockingHashMap<byte[],Integer>)
+      new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+    assertThat( copy.size(), is(CNT-1) );
+    assertThat( copy.get("k7".getBytes("UTF-8")), is(-7) );
+  }
+
+  // Resize statistics are off until asked for, then see every resize
+  public void testResizeStats() {
+    assertThat( _nbhm.resizeStats(), nullValue() );
+    ResizeStats stats = _nbhm.enableResizeStats();
+    assertSame( stats, _nbhm.enableResizeStats() );
+    assertSame( stats, _nbhm.resizeStats() );
+    for( int i=0; i<10000; i++ )
+      _nbhm.put("k"+i,"v"+i);
+    for( int i=0; i<10000; i++ )
+      assertThat( _nbhm.get("k"+i), is("v"+i) );
+    assertTrue( stats.resizes() > 0 );
+    assertTrue( stats.promotions() > 0 );
+    assertTrue( stats.lastNewSize() > stats.lastOldSize() );
+    assertTrue( stats.reprobes().count() >= 20000 );
+    assertTrue( stats.copyNanos().count() > 0 );
+    assertTrue( stats.lastTombstoneRatio() < 0.01 ); // Nothing removed
+  }
+
   // Do some simple concurrent testing
   public void testConcurrentSimple() throws InterruptedException {
     final NonBlockingHashMap<String,String> nbhm = new NonBlockingHashMap<String,String>();
@@ -527,6 +527,25 @@ public class NonBlockingIdentityHashMapTest extends TestCase {
     assertEquals("values().iterator() count", itemCount, iteratorCount);
   }
 
+  // Resize statistics are off until asked for, then see every resize
+  public void testResizeStats() {
+    assertThat( _nbhm.resizeStats(), nullValue() );
+    ResizeStats stats = _nbhm.enableResizeStats();
+    assertSame( stats, _nbhm.enableResizeStats() );
+    String[] keys = new String[10000];
+    for( int i=0; i<keys.length; i++ )
+      _nbhm.put(keys[i] = "k"+i,"v"+i);
+    for( int i=0; i<keys.length; i+=2 )
+      _nbhm.remove(keys[i]);
+    for( int i=1; i<keys.length; i+=2 )
+      assertThat( _nbhm.get(keys[i]), is("v"+i) );
+    assertTrue( stats.resizes() > 0 );
+    assertTrue( stats.promotions() > 0 );
+    assertTrue( stats.lastNewSize() > stats.lastOldSize() );
+    assertTrue( stats.reprobes().count() > 0 );
+    assertTrue( stats.copyNanos().count() > 0 );
+  }
+
   // This test is a copy of the JCK test Hashtable2027, which is incorrect.
   // The test requires a particular order of values to appear in the esa
   // array - but this is not part of the spec.  A different implementation
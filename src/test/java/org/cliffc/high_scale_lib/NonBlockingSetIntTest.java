@@ -3,7 +3,9 @@ package org.cliffc.high_scale_lib;
 import junit.framework.TestCase;
 
 import java.io.*;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.Random;
 
 import static org.hamcrest.CoreMatchers.anyOf;
 import static org.hamcrest.CoreMatchers.is;
@@ -99,6 +101,63 @@ public class NonBlockingSetIntTest extends TestCase {
     new NonBlockingSetInt().intersect(c);
   }
 
+  // xor, andNot, complement and the in-place variants, checked against
+  // java.util.BitSet; the members straddle the every-64th-bit nested sets
+  public void testBitwiseAlgebra() {
+    NonBlockingSetInt a = new NonBlockingSetInt();
+    NonBlockingSetInt b = new NonBlockingSetInt();
+    BitSet ba = new BitSet(), bb = new BitSet();
+    Random r = new Random(42);
+    for( int i=0; i<3000; i++ ) {
+      int x = r.nextInt(300000);
+      if( (i&7) == 0 ) x |= 63;
+      a.add(x); ba.set(x);
+      int y = r.nextInt(100000);
+      if( (i&7) == 1 ) y |= 4095;
+      b.add(y); bb.set(y);
+    }
+
+    BitSet e = (BitSet)ba.clone(); e.and(bb);
+    checkSame( a.intersect(b), e );
+    e = (BitSet)ba.clone(); e.or(bb);
+    checkSame( a.union(b), e );
+    e = (BitSet)ba.clone(); e.xor(bb);
+    checkSame( a.xor(b), e );
+    checkSame( b.xor(a), e );
+    e = (BitSet)ba.clone(); e.andNot(bb);
+    checkSame( a.andNot(b), e );
+    e = (BitSet)bb.clone(); e.andNot(ba);
+    checkSame( b.andNot(a), e );
+    e = new BitSet(); e.set(1000,70000); e.andNot(ba);
+    checkSame( a.complement(1000,70000), e );
+    checkSame( a.complement(5,5), new BitSet() );
+
+    NonBlockingSetInt c = a.union(new NonBlockingSetInt());
+    e = (BitSet)ba.clone(); e.xor(bb);
+    c.xorWith(b);         checkSame( c, e );
+    e.andNot(bb);
+    c.andNotWith(b);      checkSame( c, e );
+    e.or(bb);
+    c.unionWith(b);       checkSame( c, e );
+    e.and(ba);
+    c.intersectWith(a);   checkSame( c, e );
+    e.flip(63,5000);
+    c.flip(63,5000);      checkSame( c, e );
+    e.flip(250000,1<<20);
+    c.flip(250000,1<<20); checkSame( c, e );
+    c.xorWith(c);         checkSame( c, new BitSet() );
+    try { c.flip(-1,3); fail(); } catch( IllegalArgumentException ex ) { }
+    try { a.complement(9,3); fail(); } catch( IllegalArgumentException ex ) { }
+  }
+
+  private static void checkSame( NonBlockingSetInt s, BitSet e ) {
+    assertThat( "size", s.size(), is(e.cardinality()) );
+    int x = e.nextSetBit(0);
+    for( IntIterator it = s.intIterator(); it.hasNext(); x = e.nextSetBit(x+1) )
+      assertThat( it.next(), is(x) );
+    assertThat( x, is(-1) );
+  }
+
   private NonBlockingSetInt _nbsi;
   protected void setUp   () { _nbsi = new NonBlockingSetInt(); }
   protected void tearDown() { _nbsi = null; }
@@ -200,6 +259,47 @@ public class NonBlockingSetIntTest extends TestCase {
 
   }
 
+  // Sparse members, including every-64th bits at several nesting depths
+  public void testIterationSparse() {
+    final int[] vals = { 0, 62, 63, 64, 127, 4095, 4096, 262143, 1000000, 100000000 };
+    for( int v : vals )
+      assertTrue( _nbsi.add(v) );
+    int n = 0;
+    for( IntIterator it = _nbsi.intIterator(); it.hasNext(); )
+      assertThat( it.next(), is(vals[n++]) );
+    assertThat( n, is(vals.length) );
+
+    final int[] cnt = new int[1];
+    _nbsi.forEachInt(new java.util.function.IntConsumer() {
+        public void accept( int v ) { assertThat( v, is(vals[cnt[0]++]) ); } });
+    assertThat( cnt[0], is(vals.length) );
+
+    for( IntIterator it = _nbsi.intIterator(); it.hasNext(); )
+      if( it.next() == 4095 ) it.remove();
+    assertFalse( _nbsi.contains(4095) );
+    assertThat( _nbsi.size(), is(vals.length-1) );
+  }
+
+  // Iterate while another thread grows the set; every member that was
+  // present before the iteration started must be seen exactly once
+  public void testIterationResize() throws InterruptedException {
+    for( int i=0; i<1000; i+=7 )
+      _nbsi.add(i);
+    Thread t = new Thread() { public void run() {
+      for( int i=1000; i<200000; i+=3 ) _nbsi.add(i);
+    } };
+    t.start();
+    int prev = -1, sz = 0;
+    for( IntIterator it = _nbsi.intIterator(); it.hasNext(); ) {
+      int x = it.next();
+      assertTrue( x > prev );
+      prev = x;
+      if( x < 1000 ) { assertThat( x%7, is(0) ); sz++; }
+    }
+    t.join();
+    assertThat( sz, is((1000+6)/7) );
+  }
+
   public void testSerial() {
     assertTrue ( _nbsi.isEmpty() );
     assertTrue ( _nbsi.add(1) );
@@ -231,6 +331,31 @@ public class NonBlockingSetIntTest extends TestCase {
     }
   }
 
+  // Sparse, large members serialize in a few bytes and reload intact
+  public void testSerialSparse() throws IOException, ClassNotFoundException {
+    final int[] vals = { 5, 63, 4095, 262143, 1000000, 1000001, 100000000 };
+    for( int v : vals )
+      _nbsi.add(v);
+    for( int i=2000; i<3000; i++ ) // A run of full words
+      _nbsi.add(i);
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(_nbsi);
+    out.close();
+    assertTrue( "compact stream", bos.size() < 1000 );
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    NonBlockingSetInt nbsi = (NonBlockingSetInt)in.readObject();
+    in.close();
+    assertEquals( _nbsi.toString(), nbsi.toString() );
+    assertThat( nbsi.size(), is(_nbsi.size()) );
+    assertTrue ( nbsi.contains(262143) );
+    assertFalse( nbsi.contains(262142) );
+    assertTrue ( nbsi.add(200000000) ); // Still grows after a bulk load
+    assertTrue ( nbsi.remove(63) );
+    assertThat( nbsi.size(), is(_nbsi.size()) );
+  }
+
   // Do some simple concurrent testing
   public void testConcurrentSimple() throws InterruptedException {
     final NonBlockingSetInt nbsi = new NonBlockingSetInt();
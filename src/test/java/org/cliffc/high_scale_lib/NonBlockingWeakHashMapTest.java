@@ -0,0 +1,91 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import java.util.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingWeakHashMap and NonBlockingWeakIdentityHashMap via JUnit
+public class NonBlockingWeakHashMapTest extends TestCase {
+
+  // Test some basic stuff; add a few keys, remove a few keys
+  public void testBasic() {
+    for( boolean soft : new boolean[] { false, true } ) {
+      NonBlockingWeakHashMap<String,String> map = new NonBlockingWeakHashMap<String,String>(soft);
+      final String k1 = "k1", k2 = "k2";
+      assertTrue ( map.isEmpty() );
+      assertThat ( map.put(k1,"v1"), nullValue() );
+      assertThat ( map.put(new String(k1),"v1a"), is("v1") ); // equals, not ==
+      assertThat ( map.putIfAbsent(k1,"v1b"), is("v1a") );
+      assertThat ( map.putIfAbsent(k2,"v2"), nullValue() );
+      assertThat ( map.size(), is(2) );
+      assertThat ( map.get(new String(k1)), is("v1a") );
+      assertTrue ( map.containsKey(k2) );
+      assertThat ( map.remove(k1), is("v1a") );
+      assertThat ( map.remove(k1), nullValue() );
+      assertFalse( map.containsKey(k1) );
+      final StringBuilder sb = new StringBuilder();
+      map.forEach((k,v) -> sb.append(k).append(v));
+      assertThat ( sb.toString(), is("k2v2") );
+      try { map.put(k1,null); fail(); } catch( NullPointerException e ) { }
+      map.clear();
+      assertTrue ( map.isEmpty() );
+    }
+  }
+
+  // Null keys are rejected, not stored where they could never be found
+  public void testNullKey() {
+    NonBlockingWeakHashMap<String,String> map = new NonBlockingWeakIdentityHashMap<String,String>();
+    try { map.put(null,"v");         fail(); } catch( NullPointerException e ) { }
+    try { map.putIfAbsent(null,"v"); fail(); } catch( NullPointerException e ) { }
+    try { map.get(null);             fail(); } catch( NullPointerException e ) { }
+    try { map.remove(null);          fail(); } catch( NullPointerException e ) { }
+    assertTrue( map.isEmpty() );
+    map = new NonBlockingWeakHashMap<String,String>();
+    try { map.put(null,"v");         fail(); } catch( NullPointerException e ) { }
+    try { map.get(null);             fail(); } catch( NullPointerException e ) { }
+  }
+
+  // Identity maps tell equal keys apart
+  public void testIdentity() {
+    NonBlockingWeakIdentityHashMap<String,String> map = new NonBlockingWeakIdentityHashMap<String,String>();
+    final String k1 = new String("k"), k2 = new String("k");
+    assertThat( map.put(k1,"v1"), nullValue() );
+    assertThat( map.put(k2,"v2"), nullValue() );
+    assertThat( map.size(), is(2) );
+    assertThat( map.get(k1), is("v1") );
+    assertThat( map.get(k2), is("v2") );
+    assertThat( map.get("k"), nullValue() );
+    assertThat( map.remove(k1), is("v1") );
+    assertThat( map.get(k2), is("v2") );
+  }
+
+  // Entries go away once their keys are collected; live keys stay
+  public void testCollected() throws InterruptedException {
+    final int CNT = 10000;
+    NonBlockingWeakIdentityHashMap<Object,Integer> map = new NonBlockingWeakIdentityHashMap<Object,Integer>();
+    List<Object> live = new ArrayList<Object>();
+    List<Object> all = new ArrayList<Object>(); // Nothing dies while filling
+    for( int i=0; i<CNT; i++ ) {
+      Object k = new Object();
+      if( (i&1) == 0 ) live.add(k);
+      all.add(k);
+      map.put(k,i);
+    }
+    assertThat( map.size(), is(CNT) );
+    all = null;
+    for( int i=0; i<50 && map.size() > CNT/2; i++ ) {
+      System.gc();
+      Thread.sleep(10);
+      map.expunge();
+    }
+    assertThat( map.size(), is(CNT/2) );
+    for( int i=0; i<live.size(); i++ )
+      assertThat( map.get(live.get(i)), is(i*2) );
+  }
+}
@@ -0,0 +1,129 @@
+package org.cliffc.high_scale_lib;
+
+/*
+ * Written by Cliff Click and released to the public domain, as explained at
+ * http://creativecommons.org/licenses/publicdomain
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test StripedReadWriteLock via JUnit
+public class StripedReadWriteLockTest extends TestCase {
+
+  // Readers share; a writer excludes readers and other writers
+  public void testBasic() {
+    StripedReadWriteLock rw = new StripedReadWriteLock(StripedReadWriteLock.WRITER_PREFERRED,4);
+    Lock r = rw.readLock(), w = rw.writeLock();
+    assertTrue ( r.tryLock() );
+    assertTrue ( r.tryLock() );
+    assertThat ( rw.getReadLockCount(), is(2) );
+    assertFalse( w.tryLock() );
+    assertFalse( rw.isWriteLocked() );
+    r.unlock();
+    r.unlock();
+    assertThat ( rw.getReadLockCount(), is(0) );
+    assertTrue ( w.tryLock() );
+    assertTrue ( rw.isWriteLocked() );
+    assertFalse( r.tryLock() );
+    assertFalse( w.tryLock() );
+    w.unlock();
+    assertFalse( rw.isWriteLocked() );
+    assertTrue ( r.tryLock() );
+    r.unlock();
+    try { r.newCondition(); fail(); } catch( UnsupportedOperationException e ) { }
+    try { new StripedReadWriteLock(StripedReadWriteLock.FAIR,3); fail(); } catch( IllegalArgumentException e ) { }
+    try { new StripedReadWriteLock(3); fail(); } catch( IllegalArgumentException e ) { }
+  }
+
+  // A timed write lock gives up on a held read lock, and leaves the lock usable
+  public void testTimeout() throws InterruptedException {
+    for( int p=StripedReadWriteLock.WRITER_PREFERRED; p<=StripedReadWriteLock.FAIR; p++ ) {
+      StripedReadWriteLock rw = new StripedReadWriteLock(p);
+      Lock r = rw.readLock(), w = rw.writeLock();
+      r.lock();
+      assertFalse( w.tryLock(10,TimeUnit.MILLISECONDS) );
+      assertFalse( rw.isWriteLocked() );
+      assertTrue ( r.tryLock(10,TimeUnit.MILLISECONDS) );
+      r.unlock();
+      r.unlock();
+      w.lock();
+      assertFalse( r.tryLock(10,TimeUnit.MILLISECONDS) );
+      w.unlock();
+      assertTrue ( r.tryLock() );
+      r.unlock();
+    }
+  }
+
+  // A timeout too big to add to System.nanoTime still waits, rather than
+  // timing out at once or waiting untimed
+  public void testHugeTimeout() throws InterruptedException {
+    final StripedReadWriteLock rw = new StripedReadWriteLock();
+    final Lock r = rw.readLock();
+    Thread t = new Thread() { public void run() {
+      try { Thread.sleep(20); } catch( InterruptedException e ) { }
+      rw.writeLock().unlock();
+    } };
+    rw.writeLock().lock();
+    t.start();
+    assertTrue( r.tryLock(Long.MAX_VALUE,TimeUnit.NANOSECONDS) );
+    r.unlock();
+    t.join();
+    assertTrue ( rw.writeLock().tryLock(Long.MAX_VALUE,TimeUnit.DAYS) );
+    assertFalse( r.tryLock(0,TimeUnit.NANOSECONDS) );
+    assertFalse( r.tryLock(-1,TimeUnit.NANOSECONDS) );
+    rw.writeLock().unlock();
+  }
+
+  // An interrupted waiter throws instead of waiting
+  public void testInterrupt() {
+    StripedReadWriteLock rw = new StripedReadWriteLock();
+    rw.writeLock().lock();
+    Thread.currentThread().interrupt();
+    try { rw.readLock().lockInterruptibly(); fail(); } catch( InterruptedException e ) { }
+    rw.writeLock().unlock();
+  }
+
+  // Many threads mix reads and writes; no reader ever sees a half-done
+  // write, and no write is lost, under every policy
+  public void testConcurrent() throws InterruptedException {
+    for( int p=StripedReadWriteLock.WRITER_PREFERRED; p<=StripedReadWriteLock.FAIR; p++ )
+      concurrent(new StripedReadWriteLock(p,8));
+  }
+
+  private long _a, _b;
+  private void concurrent( final StripedReadWriteLock rw ) throws InterruptedException {
+    final int THRDS = 4;
+    final int ITERS = 20000;
+    final AtomicInteger bad = new AtomicInteger();
+    final AtomicLong writes = new AtomicLong();
+    _a = _b = 0;
+    Thread ts[] = new Thread[THRDS];
+    for( int t=0; t<THRDS; t++ ) {
+      final int seed = t;
+      ts[t] = new Thread() { public void run() {
+        Lock r = rw.readLock(), w = rw.writeLock();
+        for( int i=0; i<ITERS; i++ ) {
+          if( ((i+seed)&7) == 0 ) {
+            w.lock();
+            try { _a++; Thread.yield(); _b++; } finally { w.unlock(); }
+            writes.incrementAndGet();
+          } else {
+            r.lock();
+            try { if( _a != _b ) bad.incrementAndGet(); } finally { r.unlock(); }
+          }
+        }
+      } };
+    }
+    for( Thread t : ts ) t.start();
+    for( Thread t : ts ) t.join();
+    assertThat( "policy "+rw.policy(), bad.get(), is(0) );
+    assertThat( "policy "+rw.policy(), _a, is(writes.get()) );
+    assertThat( rw.getReadLockCount(), is(0) );
+    assertFalse( rw.isWriteLocked() );
+  }
+}